@@ -0,0 +1,81 @@
+package rejfree.local;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+/**
+ * The queue operations performed by the local sampler after each collision:
+ * pop the next event, then reschedule a few factors (here, the popped one 
+ * and a random one, mimicking a chain-shaped factor graph).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventQueueBenchmark
+{
+  @Param({"100", "10000", "1000000"})
+  public int size;
+  
+  private EventQueue<Integer> queue;
+  private IndexedEventQueue indexedQueue;
+  private Random random;
+  
+  @Setup
+  public void setup()
+  {
+    random = new Random(1);
+    queue = new EventQueue<>();
+    indexedQueue = new IndexedEventQueue(size);
+    for (int i = 0; i < size; i++)
+    {
+      final double time = random.nextDouble();
+      queue.add(i, time);
+      indexedQueue.update(i, time);
+    }
+  }
+  
+  private int other(int popped)
+  {
+    final int result = random.nextInt(size);
+    return result == popped ? (result + 1) % size : result;
+  }
+  
+  @Benchmark
+  public double eventQueue()
+  {
+    final double time = queue.peekTime();
+    final Integer popped = queue.pollEvent().getValue();
+    final Integer other = other(popped);
+    queue.remove(other);
+    queue.add(other, time + random.nextDouble());
+    queue.add(popped, time + random.nextDouble());
+    return time;
+  }
+  
+  @Benchmark
+  public double indexedEventQueue()
+  {
+    final double time = indexedQueue.peekTime();
+    final int popped = indexedQueue.pollEvent();
+    indexedQueue.update(other(popped), time + random.nextDouble());
+    indexedQueue.update(popped, time + random.nextDouble());
+    return time;
+  }
+}
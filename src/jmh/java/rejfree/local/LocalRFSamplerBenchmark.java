@@ -0,0 +1,122 @@
+package rejfree.local;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.RandomStreams;
+import rejfree.models.expfam.MRF;
+import rejfree.models.expfam.MRFOptions;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.models.normal.NormalChain;
+import rejfree.models.normal.NormalChainOptions;
+import blang.ProbabilityModel;
+
+
+
+/**
+ * Events per second of LocalRFSampler.iterate() on a few models, with no 
+ * point or ray processors. Each invocation runs a fresh sampler for 
+ * N_EVENTS events (creating the sampler is not timed).
+ * 
+ * Note: NormalChain computes a dense covariance matrix, so sizes much 
+ * larger than the ones below are not practical for that model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalRFSamplerBenchmark
+{
+  public static final int N_EVENTS = 10000;
+  
+  public static enum Model 
+  { 
+    NORMAL_CHAIN 
+    {
+      @Override
+      public Object modelSpec(int size)
+      {
+        NormalChainOptions options = new NormalChainOptions();
+        options.nPairs = size - 1;
+        NormalChain chain = new NormalChain(options);
+        return chain.new NormalChainModel(new double[size]);
+      }
+    },
+    MRF_GRID 
+    {
+      @Override
+      public Object modelSpec(int size)
+      {
+        MRFOptions options = new MRFOptions();
+        options.nRows = (int) Math.sqrt(size);
+        options.nCols = size / options.nRows;
+        return new MRF(options).newModelSpec();
+      }
+    },
+    BROWNIAN_BRIDGE 
+    {
+      @Override
+      public Object modelSpec(int size)
+      {
+        return BrownianBridge.regularlySpaced(size).localFactorModelSpec();
+      }
+    };
+    
+    public abstract Object modelSpec(int size);
+  }
+  
+  @Param
+  public Model model;
+  
+  @Param({"100", "1000"})
+  public int size;
+  
+  @Param({"SHARED", "XOROSHIRO"})
+  public RandomStreams randomStreams;
+  
+  private Object modelSpec;
+  private RFSamplerOptions options;
+  private Random random;
+  private LocalRFSampler sampler;
+  
+  @Setup(Level.Trial)
+  public void setupModel()
+  {
+    modelSpec = model.modelSpec(size);
+    options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    options.randomStreams = randomStreams;
+    random = new Random(1);
+  }
+  
+  @Setup(Level.Invocation)
+  public void setupSampler()
+  {
+    sampler = new LocalRFSampler(new ProbabilityModel(modelSpec), options);
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(N_EVENTS)
+  public double iterate()
+  {
+    sampler.iterate(random, N_EVENTS);
+    return sampler.getTrajectoryLength();
+  }
+}
@@ -0,0 +1,107 @@
+package rejfree.models.normal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jblas.DoubleMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rejfree.StaticUtils;
+import rejfree.local.CollisionContext;
+import rejfree.local.PrimitiveCollisionContext;
+import blang.variables.RealVariable;
+
+
+
+/**
+ * Collision time and bounce computations for a normal factor of a given 
+ * dimension. Between calls, one coordinate of the velocity is changed, as
+ * happens after a collision in a neighbor factor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalCollisionBenchmark
+{
+  @Param({"2", "10", "100"})
+  public int dim;
+  
+  private NormalFactor factor;
+  private PrimitiveCollisionContext context;
+  private double [] gradient;
+  private DoubleMatrix velocityMatrix, gradientMatrix;
+  private Random random;
+  
+  @Setup
+  public void setup()
+  {
+    random = new Random(1);
+    DoubleMatrix a = DoubleMatrix.zeros(dim, dim);
+    for (int i = 0; i < a.data.length; i++)
+      a.data[i] = random.nextGaussian();
+    DoubleMatrix precision = a.mmul(a.transpose()).add(DoubleMatrix.eye(dim));
+    List<RealVariable> variables = new ArrayList<>();
+    for (int i = 0; i < dim; i++)
+      variables.add(RealVariable.real(random.nextGaussian()));
+    factor = new NormalFactor(precision, variables);
+    
+    context = new PrimitiveCollisionContext(random, new double[dim], new double[dim]);
+    for (int i = 0; i < dim; i++)
+    {
+      context.position[i] = variables.get(i).getValue();
+      context.velocity[i] = random.nextGaussian();
+    }
+    gradient = new double[dim];
+    factor.gradient(context.position, gradient);
+    velocityMatrix = new DoubleMatrix(context.velocity);
+    gradientMatrix = new DoubleMatrix(gradient);
+  }
+  
+  @Benchmark
+  public double normalCollisionTime()
+  {
+    return NormalFactor.normalCollisionTime(StaticUtils.generateUnitRateExponential(random), random.nextGaussian(), 1.0);
+  }
+  
+  @Benchmark
+  public double primitiveCollisionTime()
+  {
+    context.velocity[random.nextInt(dim)] = random.nextGaussian();
+    return factor.getLowerBoundForCollisionDeltaTime(context);
+  }
+  
+  @Benchmark
+  public double boxedCollisionTime()
+  {
+    velocityMatrix.data[random.nextInt(dim)] = random.nextGaussian();
+    return factor.getLowerBoundForCollisionDeltaTime(new CollisionContext(random, velocityMatrix)).getLeft();
+  }
+  
+  @Benchmark
+  public DoubleMatrix bounce()
+  {
+    return StaticUtils.bounce(velocityMatrix, gradientMatrix);
+  }
+  
+  @Benchmark
+  public double [] bounceInPlace()
+  {
+    StaticUtils.bounceInPlace(context.velocity, gradient, dim);
+    return context.velocity;
+  }
+}
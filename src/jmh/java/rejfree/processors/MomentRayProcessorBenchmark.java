@@ -0,0 +1,68 @@
+package rejfree.processors;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rejfree.RFSamplerOptions;
+import rejfree.local.FactorGraphIndex;
+import rejfree.local.LocalRFSampler;
+import rejfree.models.normal.BrownianBridge;
+import blang.ProbabilityModel;
+
+
+
+/**
+ * Cost of closing one ray in the moment processor, for a random variable
+ * among a given number of variables.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MomentRayProcessorBenchmark
+{
+  @Param({"100", "10000"})
+  public int nVariables;
+  
+  private MomentRayProcessor processor;
+  private FactorGraphIndex graph;
+  private Random random;
+  private double time;
+  
+  @Setup
+  public void setup()
+  {
+    random = new Random(1);
+    LocalRFSampler sampler = new LocalRFSampler(
+        new ProbabilityModel(BrownianBridge.regularlySpaced(nVariables).localFactorModelSpec()), 
+        new RFSamplerOptions());
+    graph = sampler.getFactorGraph();
+    processor = new MomentRayProcessor();
+    processor.init(sampler);
+    time = 0.0;
+  }
+  
+  @Benchmark
+  public double processRay()
+  {
+    final int variable = random.nextInt(nVariables);
+    final double t = time;
+    time += random.nextDouble();
+    processor.processRay(variable, graph.getVariable(variable), t, random.nextGaussian(), random.nextGaussian(), time, null);
+    return processor.currentTime;
+  }
+}
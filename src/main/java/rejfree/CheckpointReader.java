@@ -0,0 +1,165 @@
+package rejfree;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+
+
+/**
+ * Reads a file written by a CheckpointWriter (see the format there), 
+ * through a fixed size buffer. Arrays are read into the caller's storage.
+ */
+public class CheckpointReader implements Closeable
+{
+  private final File file;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(CheckpointWriter.BUFFER_SIZE);
+  
+  /**
+   * @param kind Should match the one given to the CheckpointWriter
+   */
+  public CheckpointReader(File file, int kind)
+  {
+    this.file = file;
+    try
+    {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    buffer.flip();
+    if (getInt() != CheckpointWriter.MAGIC)
+      throw new RuntimeException("Not a checkpoint: " + file);
+    final int actualKind = getInt();
+    if (actualKind != kind)
+      throw new RuntimeException("Expected a checkpoint of kind " + kind + ", got " + actualKind + ": " + file);
+  }
+  
+  public int getInt()
+  {
+    fill(Integer.BYTES);
+    return buffer.getInt();
+  }
+  
+  public long getLong()
+  {
+    fill(Long.BYTES);
+    return buffer.getLong();
+  }
+  
+  public double getDouble()
+  {
+    fill(Double.BYTES);
+    return buffer.getDouble();
+  }
+  
+  public boolean getBoolean()
+  {
+    fill(1);
+    return buffer.get() != 0;
+  }
+  
+  /**
+   * Read an array written by putDoubles().
+   * 
+   * @param result Where to read the array, of the same length (null 
+   *   to allocate it)
+   * @return The array read (null if a null array was written)
+   */
+  public double [] getDoubles(double [] result)
+  {
+    if (!getBoolean())
+      return null;
+    final int length = getInt();
+    if (result == null)
+      result = new double[length];
+    checkLength(result.length, length);
+    for (int i = 0; i < length; i++)
+      result[i] = getDouble();
+    return result;
+  }
+  
+  /**
+   * Same as getDoubles(), for an array written by putLongs().
+   */
+  public long [] getLongs(long [] result)
+  {
+    if (!getBoolean())
+      return null;
+    final int length = getInt();
+    if (result == null)
+      result = new long[length];
+    checkLength(result.length, length);
+    for (int i = 0; i < length; i++)
+      result[i] = getLong();
+    return result;
+  }
+  
+  private void checkLength(int expected, int length)
+  {
+    if (expected != length)
+      throw new RuntimeException("Expected an array of length " + expected + ", got " + length + ": " + file);
+  }
+  
+  public Random getRandom()
+  {
+    final byte [] bytes = new byte[getInt()];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      fill(1);
+      bytes[i] = buffer.get();
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+    {
+      return (Random) in.readObject();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Read from the channel until the buffer (in read mode) has at least 
+   * nBytes remaining.
+   */
+  private void fill(int nBytes)
+  {
+    if (buffer.remaining() >= nBytes)
+      return;
+    buffer.compact();
+    try
+    {
+      while (buffer.position() < nBytes)
+        if (channel.read(buffer) < 0)
+          throw new RuntimeException("Truncated checkpoint: " + file);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    buffer.flip();
+  }
+  
+  @Override
+  public void close()
+  {
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package rejfree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+
+
+/**
+ * Writes the state of a sampler to a binary file, through a fixed size 
+ * buffer: arrays are streamed from the sampler's own storage, without 
+ * copying them first.
+ * 
+ * Format (big endian): a header (the int MAGIC and an int identifying the 
+ * kind of sampler), followed by the values in the order of the calls. 
+ * Arrays are preceded by their length (int), nullable arrays by a boolean 
+ * (byte). Generators are written with Java serialization (length, then 
+ * bytes), which covers java.util.Random and its subclasses in rejfree. 
+ * Read with a CheckpointReader, in the same order. The file is only 
+ * written when commit() is called.
+ */
+public class CheckpointWriter implements Closeable
+{
+  public static final int MAGIC = 0x52464350; // "RFCP"
+  
+  static final int BUFFER_SIZE = 1 << 16;
+  
+  private final File file, temporary;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  
+  /**
+   * The checkpoint is written to a temporary file in the same directory, 
+   * which replaces the given file atomically in commit(), so that an 
+   * interruption while writing leaves the previous checkpoint intact.
+   * 
+   * @param kind Identifies the sampler, checked by CheckpointReader
+   */
+  public CheckpointWriter(File file, int kind)
+  {
+    this.file = file;
+    this.temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    try
+    {
+      channel = FileChannel.open(temporary.toPath(), 
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    putInt(MAGIC);
+    putInt(kind);
+  }
+  
+  public void putInt(int value)
+  {
+    ensure(Integer.BYTES);
+    buffer.putInt(value);
+  }
+  
+  public void putLong(long value)
+  {
+    ensure(Long.BYTES);
+    buffer.putLong(value);
+  }
+  
+  public void putDouble(double value)
+  {
+    ensure(Double.BYTES);
+    buffer.putDouble(value);
+  }
+  
+  public void putBoolean(boolean value)
+  {
+    ensure(1);
+    buffer.put(value ? (byte) 1 : (byte) 0);
+  }
+  
+  /**
+   * @param array Can be null
+   */
+  public void putDoubles(double [] array)
+  {
+    putBoolean(array != null);
+    if (array == null)
+      return;
+    putInt(array.length);
+    for (double value : array)
+      putDouble(value);
+  }
+  
+  /**
+   * @param array Can be null
+   */
+  public void putLongs(long [] array)
+  {
+    putBoolean(array != null);
+    if (array == null)
+      return;
+    putInt(array.length);
+    for (long value : array)
+      putLong(value);
+  }
+  
+  public void putRandom(Random random)
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+    {
+      out.writeObject(random);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    putInt(bytes.size());
+    for (byte b : bytes.toByteArray())
+    {
+      ensure(1);
+      buffer.put(b);
+    }
+  }
+  
+  private void ensure(int nBytes)
+  {
+    if (buffer.remaining() < nBytes)
+      flush();
+  }
+  
+  private void flush()
+  {
+    buffer.flip();
+    try
+    {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    buffer.clear();
+  }
+  
+  /**
+   * Write what is left in the buffer, and replace the checkpoint file by 
+   * the temporary one.
+   */
+  public void commit()
+  {
+    flush();
+    try
+    {
+      channel.force(false);
+      channel.close();
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    committed = true;
+  }
+  
+  private boolean committed = false;
+  
+  /**
+   * If commit() was not called (e.g. after an exception while writing), 
+   * discard the temporary file and leave the checkpoint file unchanged.
+   */
+  @Override
+  public void close()
+  {
+    if (committed)
+      return;
+    try
+    {
+      channel.close();
+      Files.deleteIfExists(temporary.toPath());
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}
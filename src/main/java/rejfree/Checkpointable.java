@@ -0,0 +1,19 @@
+package rejfree;
+
+
+
+/**
+ * An object with state to save in the checkpoints of the samplers (e.g. a
+ * processor accumulating moments, or a factor caching intermediate 
+ * quantities whose round-off affects the trajectory).
+ * 
+ * readState() is called on an object constructed like the one which wrote
+ * the state (for processors, after their init()), and should read exactly
+ * what writeState() wrote.
+ */
+public interface Checkpointable
+{
+  public void writeState(CheckpointWriter out);
+  
+  public void readState(CheckpointReader in);
+}
@@ -0,0 +1,115 @@
+package rejfree;
+
+
+
+/**
+ * A counter-based generator: the Philox4x32-10 block cipher of Salmon et 
+ * al. (2011), keyed by the seed, applied to successive counters.
+ * 
+ * The counter is made of a stream index, an event index, and the index of
+ * the block within the event, so that seek(stream, event) gives random 
+ * access to the draws of any (stream, event) pair without generating the 
+ * others. This is used to give each factor its own stream, indexed by the
+ * number of collision times computed for it so far, making the draws 
+ * independent of the order in which the factors are processed. Not thread
+ * safe.
+ */
+public class CounterRandom extends UnsynchronizedRandom
+{
+  private static final long serialVersionUID = 1L;
+  
+  private static final int M0 = 0xD2511F53, M1 = 0xCD9E8D57;
+  private static final int W0 = 0x9E3779B9, W1 = 0xBB67AE85;
+  
+  private int key0, key1;
+  
+  /*
+   * Current counter (block within the event, low and high bits of the event,
+   * stream), current output block, and number of words of it already used
+   * (no initializers: setSeed() is called by the super constructor)
+   */
+  private int [] counter, output;
+  private int nUsed;
+  
+  public CounterRandom(long seed)
+  {
+    super(seed);
+  }
+  
+  @Override
+  public void setSeed(long seed)
+  {
+    if (counter == null)
+    {
+      counter = new int[4];
+      output = new int[4];
+    }
+    key0 = (int) seed;
+    key1 = (int) (seed >>> 32);
+    seek(0, 0L);
+  }
+  
+  /**
+   * Position the generator at the start of the draws of the given event of
+   * the given stream.
+   */
+  public void seek(int stream, long event)
+  {
+    counter[0] = 0;
+    counter[1] = (int) event;
+    counter[2] = (int) (event >>> 32);
+    counter[3] = stream;
+    nUsed = 4;
+    clearSpareGaussian();
+  }
+  
+  @Override
+  public long nextLong()
+  {
+    return ((long) nextWord() << 32) | (nextWord() & 0xFFFFFFFFL);
+  }
+  
+  @Override
+  protected int next(int bits)
+  {
+    return nextWord() >>> (32 - bits);
+  }
+  
+  private int nextWord()
+  {
+    if (nUsed == 4)
+    {
+      System.arraycopy(counter, 0, output, 0, 4);
+      philox(output, key0, key1);
+      counter[0]++;
+      nUsed = 0;
+    }
+    return output[nUsed++];
+  }
+  
+  /**
+   * Replace the counter (c[0], c[1], c[2], c[3]) by its image under 
+   * Philox4x32 with 10 rounds and the key (k0, k1).
+   */
+  static void philox(final int [] c, int k0, int k1)
+  {
+    int c0 = c[0], c1 = c[1], c2 = c[2], c3 = c[3];
+    for (int round = 0; round < 10; round++)
+    {
+      if (round > 0)
+      {
+        k0 += W0;
+        k1 += W1;
+      }
+      final long product0 = (M0 & 0xFFFFFFFFL) * (c0 & 0xFFFFFFFFL);
+      final long product1 = (M1 & 0xFFFFFFFFL) * (c2 & 0xFFFFFFFFL);
+      final int newC0 = (int) (product1 >>> 32) ^ c1 ^ k0;
+      final int newC2 = (int) (product0 >>> 32) ^ c3 ^ k1;
+      c1 = (int) product1;
+      c3 = (int) product0;
+      c0 = newC0;
+      c2 = newC2;
+    }
+    c[0] = c0; c[1] = c1; c[2] = c2; c[3] = c3;
+  }
+}
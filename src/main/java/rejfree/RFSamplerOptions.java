@@ -1,5 +1,8 @@
 package rejfree;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 import briefj.opt.Option;
 
 
@@ -25,4 +28,73 @@ public class RFSamplerOptions
   
   @Option
   public double beta = 4.0;
-}
\ No newline at end of file
+  
+  @Option(gloss = "Global sampler only: keep all the event positions and collected samples in memory "
+      + "(for getTrajectory() and getSamples()); for long runs, disable and add TrajectorySinks instead")
+  public boolean storeTrajectory = true;
+  
+  @Option(gloss = "Global sampler only: moments integrated along the trajectory, MEANS only, DIAGONAL "
+      + "(means and second moments of the coordinates, O(dimension) per event), or FULL (means and matrix "
+      + "of second moments, O(dimension^2) per event)")
+  public MomentMode momentMode = MomentMode.FULL;
+  
+  public static enum MomentMode
+  {
+    MEANS, DIAGONAL, FULL;
+  }
+  
+  @Option(gloss = "Local sampler only: store the neighborhood of each factor instead of recomputing it at each event "
+      + "(uses more memory when some variables are connected to many factors)")
+  public boolean precomputeNeighborhoods = true;
+  
+  @Option(gloss = "Local sampler only: number of worker threads; when larger than one, the simulation is "
+      + "parallelized as given by parallelMode")
+  public int nThreads = 1;
+  
+  @Option(gloss = "Local sampler with nThreads > 1: PARTITIONED alternates between the regions and their boundary; "
+      + "OPTIMISTIC speculatively simulates the regions and rolls them back when they receive changes from their neighbors "
+      + "(same law as the sequential sampler, PrimitiveCollisionFactors only); "
+      + "BATCH processes concurrently the upcoming events whose neighborhoods are disjoint (same law as the sequential sampler, PrimitiveCollisionFactors only)")
+  public ParallelMode parallelMode = ParallelMode.PARTITIONED;
+  
+  public static enum ParallelMode
+  {
+    PARTITIONED, OPTIMISTIC, BATCH;
+  }
+  
+  @Option(gloss = "Local sampler only: SHARED draws everything from the java.util.Random passed to initialize() (or to the first iterate()); "
+      + "XOROSHIRO from an unsynchronized xoroshiro128++ generator seeded by it; COUNTER also gives each factor "
+      + "its own counter-based stream indexed by the number of collision times computed for it, so that the BATCH "
+      + "parallel mode reproduces the sequential trajectories exactly (when collectRate = 0)")
+  public RandomStreams randomStreams = RandomStreams.SHARED;
+  
+  public static enum RandomStreams
+  {
+    SHARED, XOROSHIRO, COUNTER;
+  }
+  
+  @Option(gloss = "Local sampler with nThreads > 1: length of the time windows (when collectRate > 0, one point "
+      + "is collected at the end of each window)")
+  public double windowLength = 1.0;
+  
+  /**
+   * @return A copy of these options, e.g. to adjust some of them for one 
+   *   sampler without changing a configuration shared with others
+   */
+  public RFSamplerOptions copy()
+  {
+    final RFSamplerOptions result = new RFSamplerOptions();
+    try
+    {
+      // all the options are public fields of immutable types
+      for (Field field : RFSamplerOptions.class.getFields())
+        if (!Modifier.isStatic(field.getModifiers()))
+          field.set(result, field.get(this));
+    }
+    catch (IllegalAccessException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return result;
+  }
+}
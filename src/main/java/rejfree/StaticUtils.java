@@ -18,7 +18,46 @@ public class StaticUtils
   
   public static double generateUnitRateExponential(Random random)
   {
-    return - Math.log(random.nextDouble());
+    return Ziggurat.exponential(random);
+  }
+  
+  public static double generateExponential(Random random, double rate)
+  {
+    return Ziggurat.exponential(random) / rate;
+  }
+  
+  public static double generateStandardNormal(Random random)
+  {
+    return Ziggurat.normal(random);
+  }
+  
+  /**
+   * Fill the first length entries of the buffer with independent standard 
+   * normals.
+   */
+  public static void fillStandardNormal(Random random, double [] buffer, int length)
+  {
+    for (int i = 0; i < length; i++)
+      buffer[i] = Ziggurat.normal(random);
+  }
+  
+  /**
+   * Fill the first length entries of the buffer with independent unit rate
+   * exponentials.
+   */
+  public static void fillUnitRateExponential(Random random, double [] buffer, int length)
+  {
+    for (int i = 0; i < length; i++)
+      buffer[i] = Ziggurat.exponential(random);
+  }
+  
+  /**
+   * @return A generator for the given substream of the seed (seeds of 
+   *   consecutive substreams are decorrelated with the SplitMix64 finalizer)
+   */
+  public static Random substream(long seed, long index)
+  {
+    return new Random(XoroshiroRandom.splitMix64(seed + index * 0x9E3779B97F4A7C15L));
   }
   
   /**
@@ -37,8 +76,7 @@ public class StaticUtils
   public static DoubleMatrix standardMultivariateNormal(int dimension, Random rand)
   {
     DoubleMatrix random = new DoubleMatrix(dimension);
-    for (int i = 0; i < dimension; i++)
-      random.data[i] = rand.nextGaussian();
+    fillStandardNormal(rand, random.data, dimension);
     return random;
   }
   
@@ -77,6 +115,26 @@ public class StaticUtils
     return oldVelocity.sub(gradient.mul(scale)); 
   }
   
+  /**
+   * Allocation-free version of bounce().
+   * 
+   * @param velocity Velocities before collision, overwritten with the updated velocities
+   * @param gradient Gradient of the log density at collision
+   * @param length Number of coordinates to use in the two arrays
+   */
+  public static void bounceInPlace(double [] velocity, double [] gradient, int length)
+  {
+    double gradientDotVelocity = 0.0, gradientNormSquared = 0.0;
+    for (int i = 0; i < length; i++)
+    {
+      gradientDotVelocity += gradient[i] * velocity[i];
+      gradientNormSquared += gradient[i] * gradient[i];
+    }
+    final double scale = 2.0 * gradientDotVelocity / gradientNormSquared;
+    for (int i = 0; i < length; i++)
+      velocity[i] -= scale * gradient[i];
+  }
+  
   /**
    * 
    * @return Array of length 0, 1, or 2 containing the real roots of the polynomial
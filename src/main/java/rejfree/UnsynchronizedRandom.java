@@ -0,0 +1,78 @@
+package rejfree;
+
+import java.util.Random;
+
+
+
+/**
+ * Base class for generators used in place of java.util.Random in the inner
+ * loops of the samplers.
+ * 
+ * java.util.Random is thread safe, which costs a compare-and-swap on each 
+ * draw (and nextGaussian() is synchronized). Subclasses are not thread 
+ * safe: each thread should own its instance. Everything is derived from 
+ * nextLong().
+ */
+public abstract class UnsynchronizedRandom extends Random
+{
+  private static final long serialVersionUID = 1L;
+  
+  /*
+   * Second normal variate of the last pair generated by nextGaussian() 
+   * (no initializers: setSeed() is called by the super constructor)
+   */
+  private boolean hasSpareGaussian;
+  private double spareGaussian;
+  
+  protected UnsynchronizedRandom(long seed)
+  {
+    super(seed);
+  }
+  
+  @Override
+  public abstract long nextLong();
+  
+  @Override
+  protected int next(int bits)
+  {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+  
+  @Override
+  public double nextDouble()
+  {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+  
+  /**
+   * Same algorithm as java.util.Random (Marsaglia's polar method).
+   */
+  @Override
+  public double nextGaussian()
+  {
+    if (hasSpareGaussian)
+    {
+      hasSpareGaussian = false;
+      return spareGaussian;
+    }
+    double v1, v2, s;
+    do
+    {
+      v1 = 2.0 * nextDouble() - 1.0;
+      v2 = 2.0 * nextDouble() - 1.0;
+      s = v1 * v1 + v2 * v2;
+    } while (s >= 1.0 || s == 0.0);
+    final double multiplier = StrictMath.sqrt(-2.0 * StrictMath.log(s) / s);
+    spareGaussian = v2 * multiplier;
+    hasSpareGaussian = true;
+    return v1 * multiplier;
+  }
+  
+  /**
+   * Forget the spare normal variate, to be called when the state is reset.
+   */
+  protected void clearSpareGaussian()
+  {
+    hasSpareGaussian = false;
+  }
+}
@@ -0,0 +1,49 @@
+package rejfree;
+
+
+
+/**
+ * The xoroshiro128++ generator of Blackman and Vigna, seeded with 
+ * SplitMix64. Not thread safe.
+ */
+public class XoroshiroRandom extends UnsynchronizedRandom
+{
+  private static final long serialVersionUID = 1L;
+  
+  private long s0, s1;
+  
+  public XoroshiroRandom(long seed)
+  {
+    super(seed);
+  }
+  
+  @Override
+  public void setSeed(long seed)
+  {
+    s0 = splitMix64(seed);
+    s1 = splitMix64(seed + 0x9E3779B97F4A7C15L);
+    if (s0 == 0L && s1 == 0L)
+      s1 = 1L;
+    clearSpareGaussian();
+  }
+  
+  @Override
+  public long nextLong()
+  {
+    final long s0 = this.s0;
+    long s1 = this.s1;
+    final long result = Long.rotateLeft(s0 + s1, 17) + s0;
+    s1 ^= s0;
+    this.s0 = Long.rotateLeft(s0, 49) ^ s1 ^ (s1 << 21);
+    this.s1 = Long.rotateLeft(s1, 28);
+    return result;
+  }
+  
+  static long splitMix64(long z)
+  {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,124 @@
+package rejfree;
+
+import java.util.Random;
+
+
+
+/**
+ * Ziggurat generators (Marsaglia and Tsang, 2000) for the standard normal 
+ * and the unit rate exponential distributions, in the floating point 
+ * variant of Doornik (2005): the layer and the uniform used within the 
+ * layer come from disjoint bits of one nextLong(), which avoids the 
+ * correlation issue of the original integer version.
+ * 
+ * Most draws cost one nextLong(), one comparison and one multiplication; 
+ * by comparison, nextGaussian() consumes two nextDouble() per pair and 
+ * computes a log and a square root, and -log(U) computes a log per draw.
+ * 
+ * Used through StaticUtils.
+ */
+final class Ziggurat
+{
+  private static final int NORMAL_LAYERS = 128;
+  private static final double NORMAL_R = 3.442619855899;
+  private static final double NORMAL_V = 9.91256303526217e-3;
+  
+  private static final int EXPONENTIAL_LAYERS = 256;
+  private static final double EXPONENTIAL_R = 7.69711747013104972;
+  private static final double EXPONENTIAL_V = 3.949659822581572e-3;
+  
+  /*
+   * Right edges of the layers (x[0] is the width of the base layer, scaled 
+   * so that its area is that of the other layers), ratios x[i+1] / x[i], 
+   * and densities at the edges
+   */
+  private static final double [] normalX = new double[NORMAL_LAYERS + 1];
+  private static final double [] normalRatio = new double[NORMAL_LAYERS];
+  private static final double [] exponentialX = new double[EXPONENTIAL_LAYERS + 1];
+  private static final double [] exponentialRatio = new double[EXPONENTIAL_LAYERS];
+  private static final double [] exponentialF = new double[EXPONENTIAL_LAYERS + 1];
+  
+  static
+  {
+    normalX[0] = NORMAL_V / unnormalizedNormal(NORMAL_R);
+    normalX[1] = NORMAL_R;
+    for (int i = 2; i < NORMAL_LAYERS; i++)
+      normalX[i] = Math.sqrt(-2.0 * Math.log(NORMAL_V / normalX[i - 1] + unnormalizedNormal(normalX[i - 1])));
+    normalX[NORMAL_LAYERS] = 0.0;
+    for (int i = 0; i < NORMAL_LAYERS; i++)
+      normalRatio[i] = normalX[i + 1] / normalX[i];
+    
+    exponentialX[0] = EXPONENTIAL_V / Math.exp(-EXPONENTIAL_R);
+    exponentialX[1] = EXPONENTIAL_R;
+    for (int i = 2; i < EXPONENTIAL_LAYERS; i++)
+      exponentialX[i] = -Math.log(EXPONENTIAL_V / exponentialX[i - 1] + Math.exp(-exponentialX[i - 1]));
+    exponentialX[EXPONENTIAL_LAYERS] = 0.0;
+    for (int i = 0; i < EXPONENTIAL_LAYERS; i++)
+      exponentialRatio[i] = exponentialX[i + 1] / exponentialX[i];
+    for (int i = 0; i <= EXPONENTIAL_LAYERS; i++)
+      exponentialF[i] = Math.exp(-exponentialX[i]);
+  }
+  
+  private static double unnormalizedNormal(double x)
+  {
+    return Math.exp(-0.5 * x * x);
+  }
+  
+  static double normal(Random random)
+  {
+    while (true)
+    {
+      final long bits = random.nextLong();
+      final int layer = (int) (bits & (NORMAL_LAYERS - 1));
+      // uniform on [-1, 1), from the top 53 bits
+      final double u = 2.0 * ((bits >>> 11) * 0x1.0p-53) - 1.0;
+      if (Math.abs(u) < normalRatio[layer])
+        return u * normalX[layer];
+      if (layer == 0)
+        return normalTail(random, u < 0.0);
+      final double x = u * normalX[layer];
+      final double f0 = Math.exp(-0.5 * (normalX[layer] * normalX[layer] - x * x));
+      final double f1 = Math.exp(-0.5 * (normalX[layer + 1] * normalX[layer + 1] - x * x));
+      if (f1 + random.nextDouble() * (f0 - f1) < 1.0)
+        return x;
+    }
+  }
+  
+  /**
+   * Marsaglia's method for the tail beyond NORMAL_R.
+   */
+  private static double normalTail(Random random, boolean negative)
+  {
+    double x, y;
+    do
+    {
+      x = -Math.log(1.0 - random.nextDouble()) / NORMAL_R;
+      y = -Math.log(1.0 - random.nextDouble());
+    } while (2.0 * y < x * x);
+    return negative ? -(NORMAL_R + x) : NORMAL_R + x;
+  }
+  
+  static double exponential(Random random)
+  {
+    double shift = 0.0;
+    while (true)
+    {
+      final long bits = random.nextLong();
+      final int layer = (int) (bits & (EXPONENTIAL_LAYERS - 1));
+      final double u = (bits >>> 11) * 0x1.0p-53;
+      if (u < exponentialRatio[layer])
+        return shift + u * exponentialX[layer];
+      if (layer == 0)
+      {
+        // by memorylessness, the tail beyond EXPONENTIAL_R is a shifted exponential
+        shift += EXPONENTIAL_R;
+        continue;
+      }
+      final double x = u * exponentialX[layer];
+      if (exponentialF[layer] + random.nextDouble() * (exponentialF[layer + 1] - exponentialF[layer]) < Math.exp(-x))
+        return shift + x;
+    }
+  }
+  
+  private Ziggurat() {}
+}
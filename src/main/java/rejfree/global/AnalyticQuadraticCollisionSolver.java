@@ -0,0 +1,40 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+
+import rejfree.global.GlobalRFSampler.CollisionSolver;
+import bayonet.opt.DifferentiableFunction;
+
+
+
+/**
+ * Exact collision times for QuadraticEnergy's: along the ray x + v t, the 
+ * energy increases by t x'Av + t^2 v'Av / 2, so the collision time is the 
+ * root of a quadratic, after the minimum along the ray.
+ */
+public class AnalyticQuadraticCollisionSolver implements CollisionSolver
+{
+  @Override
+  public double collisionTime(DoubleMatrix initialPoint, DoubleMatrix velocity, DifferentiableFunction energy, double exponential)
+  {
+    final DoubleMatrix av = ((QuadraticEnergy) energy).quadraticForm().mmul(velocity);
+    return collisionTime(exponential, initialPoint.dot(av), velocity.dot(av));
+  }
+  
+  /**
+   * @param exponential
+   * @param xv x'Av
+   * @param vv v'Av
+   * @return The time at which the energy exhausts the exponential, after 
+   *   reaching its minimum along the ray (same as NormalFactor.normalCollisionTime())
+   */
+  public static double collisionTime(double exponential, double xv, double vv)
+  {
+    if (vv == 0.0)
+      // then A v = 0 (A is positive semi-definite), so the energy is constant along the ray
+      return Double.POSITIVE_INFINITY;
+    final double s1 = xv < 0 ? - xv / vv : 0.0;
+    final double c = - exponential - s1 * (xv + vv * s1 / 2.0);
+    return (- xv + Math.sqrt(xv * xv - 2.0 * vv * c)) / vv;
+  }
+}
@@ -0,0 +1,194 @@
+package rejfree.global;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.jblas.DoubleMatrix;
+
+
+
+/**
+ * Writes the events and samples to a binary file, through a fixed size 
+ * buffer.
+ * 
+ * Format (big endian): the dimension (int), followed by records made of a
+ * tag (byte, EVENT or SAMPLE), the time (double), the position or sample 
+ * (dimension doubles) and, for events only, the velocity (dimension 
+ * doubles). Use read() to replay a file into another sink.
+ */
+public class BinaryFileSink implements TrajectorySink, Closeable
+{
+  public static final byte EVENT = 0, SAMPLE = 1;
+  
+  private static final int BUFFER_SIZE = 1 << 20;
+  
+  private final FileChannel channel;
+  private ByteBuffer buffer = null;
+  private int dimension = -1;
+  
+  public BinaryFileSink(File file)
+  {
+    try
+    {
+      channel = FileChannel.open(file.toPath(), 
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  @Override
+  public void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity)
+  {
+    startRecord(EVENT, time, position);
+    put(velocity);
+  }
+  
+  @Override
+  public void processSample(double time, DoubleMatrix sample)
+  {
+    startRecord(SAMPLE, time, sample);
+  }
+  
+  private void startRecord(byte tag, double time, DoubleMatrix point)
+  {
+    if (buffer == null)
+    {
+      dimension = point.length;
+      buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, Integer.BYTES + recordSize(dimension)));
+      buffer.putInt(dimension);
+    }
+    if (point.length != dimension)
+      throw new RuntimeException("Expected dimension " + dimension + ", got " + point.length);
+    if (buffer.remaining() < recordSize(dimension))
+      flush();
+    buffer.put(tag);
+    buffer.putDouble(time);
+    put(point);
+  }
+  
+  private void put(DoubleMatrix point)
+  {
+    for (int i = 0; i < dimension; i++)
+      buffer.putDouble(point.data[i]);
+  }
+  
+  private static int recordSize(int dimension)
+  {
+    return 1 + Double.BYTES * (1 + 2 * dimension);
+  }
+  
+  @Override
+  public void flush()
+  {
+    if (buffer == null)
+      return;
+    buffer.flip();
+    try
+    {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    buffer.clear();
+  }
+  
+  @Override
+  public void close()
+  {
+    flush();
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Send the content of a file written by a BinaryFileSink to the given 
+   * sink (init() is not called).
+   */
+  public static void read(File file, TrajectorySink sink)
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      buffer.flip();
+      if (!fill(channel, buffer, Integer.BYTES))
+        return;
+      final int dimension = buffer.getInt();
+      if (buffer.capacity() < recordSize(dimension))
+      {
+        final ByteBuffer larger = ByteBuffer.allocateDirect(recordSize(dimension));
+        larger.put(buffer);
+        larger.flip();
+        buffer = larger;
+      }
+      while (fill(channel, buffer, 1 + Double.BYTES * (1 + dimension)))
+      {
+        final byte tag = buffer.get();
+        final double time = buffer.getDouble();
+        final DoubleMatrix point = get(buffer, dimension);
+        if (tag == EVENT)
+        {
+          if (!fill(channel, buffer, Double.BYTES * dimension))
+            throw new RuntimeException("Truncated file: " + file);
+          sink.processEvent(time, point, get(buffer, dimension));
+        }
+        else if (tag == SAMPLE)
+          sink.processSample(time, point);
+        else
+          throw new RuntimeException("Invalid record tag " + tag + " in " + file);
+      }
+      sink.flush();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private static DoubleMatrix get(ByteBuffer buffer, int dimension)
+  {
+    final DoubleMatrix result = new DoubleMatrix(dimension);
+    for (int i = 0; i < dimension; i++)
+      result.data[i] = buffer.getDouble();
+    return result;
+  }
+  
+  /**
+   * Read from the channel until the buffer (in read mode) has at least 
+   * nBytes remaining.
+   * 
+   * @return false if the end of the file was reached first (with no byte 
+   *   remaining, otherwise the file is truncated)
+   */
+  private static boolean fill(FileChannel channel, ByteBuffer buffer, int nBytes) throws IOException
+  {
+    if (buffer.remaining() >= nBytes)
+      return true;
+    buffer.compact();
+    while (buffer.position() < nBytes)
+      if (channel.read(buffer) < 0)
+      {
+        buffer.flip();
+        if (buffer.hasRemaining())
+          throw new RuntimeException("Truncated file");
+        return false;
+      }
+    buffer.flip();
+    return true;
+  }
+}
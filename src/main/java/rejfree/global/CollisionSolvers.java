@@ -0,0 +1,26 @@
+package rejfree.global;
+
+import rejfree.global.GlobalRFSampler.CollisionSolver;
+import bayonet.opt.DifferentiableFunction;
+
+
+
+/**
+ * Selection of a CollisionSolver adapted to an energy.
+ */
+public class CollisionSolvers
+{
+  /**
+   * @param energy Assumed to be convex
+   * @return An analytic solver if the energy is a QuadraticEnergy, a 
+   *   NewtonConvexCollisionSolver otherwise
+   */
+  public static CollisionSolver forEnergy(DifferentiableFunction energy)
+  {
+    if (energy instanceof QuadraticEnergy)
+      return new AnalyticQuadraticCollisionSolver();
+    return new NewtonConvexCollisionSolver();
+  }
+  
+  private CollisionSolvers() {}
+}
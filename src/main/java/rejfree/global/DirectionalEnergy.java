@@ -0,0 +1,27 @@
+package rejfree.global;
+
+import bayonet.opt.DifferentiableFunction;
+
+
+
+/**
+ * An energy which can be evaluated along a ray x0 + v t, together with its
+ * directional derivative, without computing the full gradient. The
+ * collision solvers call these repeatedly with the same ray and different
+ * times, so implementations can precompute the quantities depending only
+ * on x0 and v (e.g. P x0 and P v for a normal energy, or the products of
+ * the design matrix with x0 and v for a GLM) and make each call cheap.
+ */
+public interface DirectionalEnergy extends DifferentiableFunction
+{
+  /**
+   * @return The energy at x0 + v t
+   */
+  public double valueAt(double [] x0, double [] v, double t);
+
+  /**
+   * @return The derivative of t -> valueAt(x0, v, t), i.e. the gradient at
+   *   x0 + v t dotted with v
+   */
+  public double directionalDerivative(double [] x0, double [] v, double t);
+}
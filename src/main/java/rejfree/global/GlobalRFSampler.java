@@ -1,18 +1,20 @@
 package rejfree.global;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.jblas.DoubleMatrix;
 
+import rejfree.CheckpointReader;
+import rejfree.CheckpointWriter;
+import rejfree.Checkpointable;
 import rejfree.RFSamplerOptions;
 import rejfree.StaticUtils;
 import rejfree.RFSamplerOptions.RefreshmentMethod;
 
-import com.google.common.collect.Lists;
-
-import bayonet.distributions.Exponential;
 import bayonet.opt.DifferentiableFunction;
 import bayonet.opt.LBFGSMinimizer;
 import static rejfree.StaticUtils.*;
@@ -27,14 +29,29 @@ public class GlobalRFSampler
   /**
    * *Negative* log density of the target distribution.
    */
-  private final DifferentiableFunction energy;
-  private final CollisionSolver solver;
+  private DifferentiableFunction energy;
+  private CollisionSolver solver;
+  
+  /*
+   * If the solver was selected from the energy (it is then selected again 
+   * when the energy changes)
+   */
+  private final boolean selectSolver;
   private final RFSamplerOptions options;
   
-  private List<DoubleMatrix> trajectory = Lists.newArrayList();
-  private List<DoubleMatrix> samples = Lists.newArrayList();
+  private final List<TrajectorySink> sinks = new ArrayList<>();
+  
+  /*
+   * Backs getTrajectory() and getSamples(), null unless options.storeTrajectory
+   */
+  private final InMemorySink inMemorySink;
   
   private DoubleMatrix currentPosition, currentVelocity;
+  
+  /*
+   * Length of the trajectory simulated so far, over all the calls to iterate()
+   */
+  private double trajectoryLength = 0.0;
 
   private SummaryStatistics collisionToRefreshmentRatio = new SummaryStatistics();
   private SummaryStatistics collectedPerEvent = new SummaryStatistics();
@@ -44,19 +61,33 @@ public class GlobalRFSampler
    * @param energy The negative log density of the target, assumed to be convex
    */
   public GlobalRFSampler(DifferentiableFunction energy, DoubleMatrix initialPosition, RFSamplerOptions options, CollisionSolver solver)
+  {
+    this(energy, initialPosition, options, solver, false);
+  }
+  
+  private GlobalRFSampler(DifferentiableFunction energy, DoubleMatrix initialPosition, RFSamplerOptions options, CollisionSolver solver, boolean selectSolver)
   {
     if (options.refreshmentMethod != RefreshmentMethod.GLOBAL && options.refreshmentMethod != RefreshmentMethod.LOCAL)
       throw new RuntimeException();
     this.solver  = solver;
+    this.selectSolver = selectSolver;
     this.energy = energy;
     this.options = options;
     this.currentPosition = initialPosition;
     this.currentVelocity = null; 
+    this.inMemorySink = options.storeTrajectory ? new InMemorySink() : null;
+    if (inMemorySink != null)
+      sinks.add(inMemorySink);
+  }
+  
+  public void addSink(TrajectorySink sink)
+  {
+    sinks.add(sink);
   }
   
   public GlobalRFSampler(DifferentiableFunction energy, DoubleMatrix initialPosition, RFSamplerOptions options)
   {
-    this(energy, initialPosition, options, new PegasusConvexCollisionSolver());
+    this(energy, initialPosition, options, CollisionSolvers.forEnergy(energy), true);
   }
   
   public GlobalRFSampler(DifferentiableFunction energy, DoubleMatrix initialPosition)
@@ -69,6 +100,11 @@ public class GlobalRFSampler
     return new GlobalRFSampler(energy, optimizePosition(energy), options);
   }
   
+  public static GlobalRFSampler initializeRFWithLBFGS(DifferentiableFunction energy, RFSamplerOptions options, CollisionSolver solver)
+  {
+    return new GlobalRFSampler(energy, optimizePosition(energy), options, solver);
+  }
+  
   public static GlobalRFSampler initializeRFWithLBFGS(DifferentiableFunction energy)
   {
     return initializeRFWithLBFGS(energy, new RFSamplerOptions());
@@ -80,18 +116,31 @@ public class GlobalRFSampler
     return new DoubleMatrix(min);
   }
   
-  private DoubleMatrix 
-    mean, 
-    variance;
+  /*
+   * Moments along the trajectory simulated in the last call to iterate()
+   */
+  private MomentSink moments = null;
   
   public DoubleMatrix getMean()
   {
-    return mean;
+    return moments.getMean();
   }
   
+  /**
+   * @return The matrix of second moments, E[x x'] (momentMode FULL only)
+   */
   public DoubleMatrix getVariance()
   {
-    return variance;
+    return moments.getSecondMoment();
+  }
+  
+  /**
+   * @return The second moments of the coordinates, E[x_i^2] (momentMode 
+   *   DIAGONAL or FULL)
+   */
+  public DoubleMatrix getDiagonalSecondMoment()
+  {
+    return moments.getDiagonalSecondMoment();
   }
 
   public void iterate(Random rand, int numberOfIterations)
@@ -99,18 +148,17 @@ public class GlobalRFSampler
     if (currentVelocity == null)
       currentVelocity = uniformOnUnitBall(energy.dimension(), rand);
     
-    trajectory.add(currentPosition);
-    double totalTime = 0.0;
-    mean = new DoubleMatrix(dimensionality());
-    variance = new DoubleMatrix(dimensionality(),dimensionality());
+    for (TrajectorySink sink : sinks)
+      sink.init(this);
+    moments = new MomentSink(options.momentMode);
+    processEvent();
     for (int iter = 0; iter < numberOfIterations; iter++)
     {
       // simulate event
       final double exponential = StaticUtils.generateUnitRateExponential(rand);
       double collisionTime = solver.collisionTime(currentPosition, currentVelocity, energy, exponential);
-      double refreshTime = options.refreshRate == 0 ? Double.POSITIVE_INFINITY : Exponential.generate(rand, options.refreshRate);
+      double refreshTime = options.refreshRate == 0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, options.refreshRate);
       double eventTime = Math.min(collisionTime, refreshTime);
-      totalTime += eventTime;
       collisionToRefreshmentRatio.addValue(collisionTime/refreshTime);
       
       // collect state
@@ -119,16 +167,88 @@ public class GlobalRFSampler
       // update state
       boolean collisionOccurs = collisionTime < refreshTime;
       currentPosition = position(currentPosition, currentVelocity, eventTime);
-      trajectory.add(currentPosition);
+      trajectoryLength += eventTime;
       if (collisionOccurs)
         currentVelocity = StaticUtils.bounce(currentVelocity, gradient(currentPosition));
       else
         currentVelocity = refreshVelocity(currentPosition, currentVelocity, rand); 
+      processEvent();
     }
-    mean.divi(totalTime);
-    variance.divi(totalTime);
+    for (TrajectorySink sink : sinks)
+      sink.flush();
   }
   
+  private void processEvent()
+  {
+    moments.processEvent(trajectoryLength, currentPosition, currentVelocity);
+    for (TrajectorySink sink : sinks)
+      sink.processEvent(trajectoryLength, currentPosition, currentVelocity);
+  }
+  
+  /**
+   * Change the target distribution, keeping the current position and 
+   * velocity, e.g. when the energy depends on auxiliary variables resampled
+   * between calls to iterate(). If no solver was given at construction, 
+   * one is selected again for the new energy.
+   */
+  public void setEnergy(DifferentiableFunction energy)
+  {
+    if (energy.dimension() != this.energy.dimension())
+      throw new RuntimeException("The dimension of the energy should stay " + this.energy.dimension() + ": " + energy.dimension());
+    this.energy = energy;
+    if (selectSolver)
+      this.solver = CollisionSolvers.forEnergy(energy);
+  }
+  
+  /**
+   * Save the state of the simulation between calls to iterate(): the 
+   * position, velocity and trajectory length, the generator the caller 
+   * passes to iterate(), and the state of the sinks implementing 
+   * Checkpointable. The energy is not saved.
+   */
+  public void checkpoint(File file, Random rand)
+  {
+    try (CheckpointWriter out = new CheckpointWriter(file, CHECKPOINT_KIND))
+    {
+      out.putDoubles(currentPosition.data);
+      out.putDoubles(currentVelocity == null ? null : currentVelocity.data);
+      out.putDouble(trajectoryLength);
+      out.putRandom(rand);
+      for (TrajectorySink sink : sinks)
+        if (sink instanceof Checkpointable)
+          ((Checkpointable) sink).writeState(out);
+      out.commit();
+    }
+  }
+  
+  /**
+   * Load a state saved by checkpoint(), in a sampler constructed like the 
+   * one which saved it (same energy, options and sinks, in the same order).
+   * 
+   * @return The generator to pass to the next calls to iterate(), to 
+   *   continue exactly as if the simulation had not been interrupted
+   */
+  public Random restore(File file)
+  {
+    try (CheckpointReader in = new CheckpointReader(file, CHECKPOINT_KIND))
+    {
+      final double [] position = in.getDoubles(null);
+      if (position.length != energy.dimension())
+        throw new RuntimeException("The checkpoint does not match the energy: " + file);
+      currentPosition = new DoubleMatrix(position);
+      final double [] velocity = in.getDoubles(null);
+      currentVelocity = velocity == null ? null : new DoubleMatrix(velocity);
+      trajectoryLength = in.getDouble();
+      final Random result = in.getRandom();
+      for (TrajectorySink sink : sinks)
+        if (sink instanceof Checkpointable)
+          ((Checkpointable) sink).readState(in);
+      return result;
+    }
+  }
+  
+  private static final int CHECKPOINT_KIND = 2;
+  
   public void setVelocity(DoubleMatrix velocity)
   {
     this.currentVelocity = velocity.dup();
@@ -143,22 +263,20 @@ public class GlobalRFSampler
   private void collectSamples(DoubleMatrix initialPosition,
       DoubleMatrix velocity, double eventTime, Random rand)
   {
-    mean.addi(initialPosition.mul(eventTime)
-        .addi(velocity .mul(eventTime*eventTime/2.0)));
-    variance
-        .addi(initialPosition.mmul(initialPosition.transpose()).mul(eventTime))
-        .addi(initialPosition.mmul(velocity.transpose()).mul(eventTime*eventTime))
-        .addi(velocity.mmul(velocity.transpose()).mul(eventTime*eventTime*eventTime/3.0));
-    
     if (options.collectRate == 0.0)
       return;
-    double timeConsumed = Exponential.generate(rand, options.collectRate);
+    double timeConsumed = StaticUtils.generateExponential(rand, options.collectRate);
     int nCollected = 0;
     while (timeConsumed < eventTime)
     {
       nCollected++;
-      samples.add(position(initialPosition, velocity, timeConsumed));
-      timeConsumed += Exponential.generate(rand, options.collectRate);
+      if (!sinks.isEmpty())
+      {
+        final DoubleMatrix sample = position(initialPosition, velocity, timeConsumed);
+        for (TrajectorySink sink : sinks)
+          sink.processSample(trajectoryLength + timeConsumed, sample);
+      }
+      timeConsumed += StaticUtils.generateExponential(rand, options.collectRate);
     }
     collectedPerEvent.addValue(nCollected);
   }
@@ -168,9 +286,21 @@ public class GlobalRFSampler
     return new DoubleMatrix(energy.derivativeAt(position.data));
   }
   
+  /**
+   * @return The positions at the events (only available when 
+   *   options.storeTrajectory is true)
+   */
   public List<DoubleMatrix> getTrajectory()
   {
-    return trajectory;
+    return checkInMemorySink().trajectory;
+  }
+  
+  private InMemorySink checkInMemorySink()
+  {
+    if (inMemorySink == null)
+      throw new RuntimeException("The trajectory is not stored in memory: set storeTrajectory "
+          + "or use a TrajectorySink instead");
+    return inMemorySink;
   }
 
   public SummaryStatistics getCollisionToRefreshmentRatio()
@@ -178,9 +308,13 @@ public class GlobalRFSampler
     return collisionToRefreshmentRatio;
   }
 
+  /**
+   * @return The collected samples (only available when 
+   *   options.storeTrajectory is true)
+   */
   public List<DoubleMatrix> getSamples()
   {
-    return samples;
+    return checkInMemorySink().samples;
   }
 
   public SummaryStatistics getCollectedPerEvent()
@@ -0,0 +1,31 @@
+package rejfree.global;
+
+import java.util.List;
+
+import org.jblas.DoubleMatrix;
+
+import com.google.common.collect.Lists;
+
+
+
+/**
+ * Keeps all the event positions and samples in memory (memory grows 
+ * linearly with the number of events).
+ */
+public class InMemorySink implements TrajectorySink
+{
+  public final List<DoubleMatrix> trajectory = Lists.newArrayList();
+  public final List<DoubleMatrix> samples = Lists.newArrayList();
+  
+  @Override
+  public void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity)
+  {
+    trajectory.add(position);
+  }
+  
+  @Override
+  public void processSample(double time, DoubleMatrix sample)
+  {
+    samples.add(sample);
+  }
+}
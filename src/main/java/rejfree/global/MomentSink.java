@@ -0,0 +1,178 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.SimpleBlas;
+
+import rejfree.CheckpointReader;
+import rejfree.CheckpointWriter;
+import rejfree.Checkpointable;
+import rejfree.RFSamplerOptions.MomentMode;
+
+
+
+/**
+ * Running estimates of the moments, computed from the integrals of x, and
+ * of the entries of x x' (all of them, or only the diagonal, depending on 
+ * the mode) along the trajectory.
+ * 
+ * Along a segment of length t starting at x with velocity v, writing 
+ * m = x + v t/2 for the midpoint:
+ *   int x(s) ds = t m, and
+ *   int x(s) x(s)' ds = t m m' + (t^3/12) v v',
+ * so the accumulators are updated in place with one axpy (means), O(d) 
+ * work (DIAGONAL), or two rank-1 updates (FULL, BLAS dger).
+ */
+public class MomentSink implements TrajectorySink, Checkpointable
+{
+  private final MomentMode mode;
+  
+  /*
+   * Integrals of x, of the squares of its entries (DIAGONAL and FULL), and 
+   * of x x' (FULL)
+   */
+  private DoubleMatrix sum = null, sumSq = null, sumOuter = null;
+  private double totalTime = 0.0;
+  
+  /*
+   * Start of the current segment of the trajectory, and midpoint buffer
+   */
+  private double lastTime;
+  private DoubleMatrix lastPosition = null, lastVelocity = null;
+  private DoubleMatrix midpoint = null;
+  
+  public MomentSink(MomentMode mode)
+  {
+    this.mode = mode;
+  }
+  
+  public MomentSink()
+  {
+    this(MomentMode.DIAGONAL);
+  }
+  
+  @Override
+  public void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity)
+  {
+    if (sum == null)
+    {
+      final int dim = position.length;
+      sum = new DoubleMatrix(dim);
+      midpoint = new DoubleMatrix(dim);
+      if (mode != MomentMode.MEANS)
+        sumSq = new DoubleMatrix(dim);
+      if (mode == MomentMode.FULL)
+        sumOuter = new DoubleMatrix(dim, dim);
+    }
+    else
+      addSegment(lastPosition, lastVelocity, time - lastTime);
+    lastTime = time;
+    lastPosition = position;
+    lastVelocity = velocity;
+  }
+  
+  private void addSegment(DoubleMatrix position, DoubleMatrix velocity, double t)
+  {
+    if (t == 0.0)
+      return;
+    final double [] x = position.data, v = velocity.data, m = midpoint.data;
+    final double [] s = sum.data;
+    final double cubicTerm = t * t * t / 12.0;
+    for (int i = 0; i < m.length; i++)
+    {
+      m[i] = x[i] + v[i] * (t / 2.0);
+      s[i] += t * m[i];
+    }
+    if (sumSq != null)
+    {
+      final double [] s2 = sumSq.data;
+      for (int i = 0; i < m.length; i++)
+        s2[i] += t * m[i] * m[i] + cubicTerm * v[i] * v[i];
+    }
+    if (sumOuter != null)
+    {
+      SimpleBlas.ger(t, midpoint, midpoint, sumOuter);
+      SimpleBlas.ger(cubicTerm, velocity, velocity, sumOuter);
+    }
+    totalTime += t;
+  }
+  
+  @Override
+  public void writeState(CheckpointWriter out)
+  {
+    out.putDouble(totalTime);
+    out.putDouble(lastTime);
+    out.putDoubles(sum == null ? null : sum.data);
+    out.putDoubles(sumSq == null ? null : sumSq.data);
+    out.putDoubles(sumOuter == null ? null : sumOuter.data);
+    out.putDoubles(lastPosition == null ? null : lastPosition.data);
+    out.putDoubles(lastVelocity == null ? null : lastVelocity.data);
+  }
+  
+  @Override
+  public void readState(CheckpointReader in)
+  {
+    totalTime = in.getDouble();
+    lastTime = in.getDouble();
+    sum = matrix(in.getDoubles(null));
+    sumSq = matrix(in.getDoubles(null));
+    final double [] outer = in.getDoubles(null);
+    sumOuter = outer == null ? null : new DoubleMatrix(sum.length, sum.length, outer);
+    lastPosition = matrix(in.getDoubles(null));
+    lastVelocity = matrix(in.getDoubles(null));
+    midpoint = sum == null ? null : new DoubleMatrix(sum.length);
+  }
+  
+  private static DoubleMatrix matrix(double [] data)
+  {
+    return data == null ? null : new DoubleMatrix(data);
+  }
+  
+  public MomentMode getMode()
+  {
+    return mode;
+  }
+  
+  public DoubleMatrix getMean()
+  {
+    return sum.div(totalTime);
+  }
+  
+  /**
+   * @return The marginal variances (DIAGONAL and FULL modes)
+   */
+  public DoubleMatrix getVariance()
+  {
+    final DoubleMatrix result = getDiagonalSecondMoment();
+    final DoubleMatrix mean = getMean();
+    return result.subi(mean.mul(mean));
+  }
+  
+  /**
+   * @return The second moments of the coordinates, E[x_i^2] (DIAGONAL and 
+   *   FULL modes)
+   */
+  public DoubleMatrix getDiagonalSecondMoment()
+  {
+    if (sumSq == null)
+      throw new RuntimeException("Second moments are not computed in mode " + mode);
+    return sumSq.div(totalTime);
+  }
+  
+  /**
+   * @return The matrix of second moments, E[x x'] (FULL mode only)
+   */
+  public DoubleMatrix getSecondMoment()
+  {
+    if (sumOuter == null)
+      throw new RuntimeException("The full second moment matrix is only computed in mode " + MomentMode.FULL);
+    return sumOuter.div(totalTime);
+  }
+  
+  /**
+   * @return Length of the trajectory integrated so far
+   */
+  public double getTotalTime()
+  {
+    return totalTime;
+  }
+}
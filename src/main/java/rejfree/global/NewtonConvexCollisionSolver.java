@@ -0,0 +1,172 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+
+import rejfree.global.GlobalRFSampler.CollisionSolver;
+import bayonet.opt.DifferentiableFunction;
+
+
+
+/**
+ * Collision times for convex energies, using only values and directional 
+ * derivatives along the ray x + v t:
+ * 
+ * 1- if the directional derivative at t = 0 is negative, the minimum along
+ *    the ray is bracketed by doubling t until the derivative becomes 
+ *    non-negative, then found with the Illinois variant of regula falsi on 
+ *    the derivative (safeguarded by bisection);
+ * 2- the time at which the energy exceeds its minimum by the exponential 
+ *    is bracketed (starting from the points evaluated in step 1 when they
+ *    are high enough), then found with Newton's method started from the 
+ *    upper end of the bracket. For a convex function increasing past the 
+ *    minimum, the Newton iterates decrease monotonically to the root; 
+ *    bisection is used whenever an iterate leaves the bracket.
+ * 
+ * The returned time is the upper end of the final bracket. Not thread safe
+ * (the position buffer is reused across calls).
+ */
+public class NewtonConvexCollisionSolver implements CollisionSolver
+{
+  private static final int MAX_ITERATIONS = 100;
+  private static final int MAX_DOUBLINGS = Double.MAX_EXPONENT - 1;
+  private static final double RELATIVE_TOLERANCE = 1e-12;
+  
+  private double [] position = null;
+  
+  /*
+   * Energy and directional derivative at the last point evaluated
+   */
+  private double value, slope;
+  
+  @Override
+  public double collisionTime(DoubleMatrix initialPoint, DoubleMatrix velocity, DifferentiableFunction energy, double exponential)
+  {
+    final double [] x = initialPoint.data, v = velocity.data;
+    
+    // 1- minimum along the ray
+    evaluate(energy, x, v, 0.0);
+    double tMin = 0.0, valueMin = value;
+    // a point past the minimum (NaN if none evaluated)
+    double tAbove = Double.NaN, valueAbove = Double.NaN, slopeAbove = Double.NaN;
+    if (slope < 0.0)
+    {
+      double lo = 0.0, slopeLo = slope;
+      double hi = 1.0;
+      evaluate(energy, x, v, hi);
+      for (int i = 0; slope < 0.0; i++)
+      {
+        // the energy keeps decreasing along the ray: improper in that direction
+        if (i == MAX_DOUBLINGS)
+          return Double.POSITIVE_INFINITY;
+        lo = hi;
+        slopeLo = slope;
+        hi *= 2.0;
+        evaluate(energy, x, v, hi);
+      }
+      double slopeHi = slope;
+      tAbove = hi; valueAbove = value; slopeAbove = slope;
+      tMin = hi; valueMin = value;
+      int side = 0;
+      for (int iter = 0; iter < MAX_ITERATIONS && slopeHi != 0.0; iter++)
+      {
+        double t = lo - slopeLo * (hi - lo) / (slopeHi - slopeLo);
+        if (!(t > lo && t < hi))
+          t = (lo + hi) / 2.0;
+        evaluate(energy, x, v, t);
+        tMin = t;
+        valueMin = value;
+        if (slope < 0.0)
+        {
+          lo = t;
+          slopeLo = slope;
+          if (side == -1)
+            slopeHi /= 2.0;
+          side = -1;
+        }
+        else
+        {
+          hi = t;
+          slopeHi = slope;
+          if (side == 1)
+            slopeLo /= 2.0;
+          side = 1;
+        }
+        if (slope == 0.0 || hi - lo <= RELATIVE_TOLERANCE * hi)
+          break;
+      }
+    }
+    
+    // 2- exhaust the exponential
+    final double target = valueMin + exponential;
+    final double tolerance = RELATIVE_TOLERANCE * (1.0 + Math.abs(target));
+    double lo = tMin, hi, valueHi, slopeHi;
+    if (!Double.isNaN(tAbove) && valueAbove > target)
+    {
+      hi = tAbove;
+      valueHi = valueAbove;
+      slopeHi = slopeAbove;
+    }
+    else
+    {
+      double step = tAbove > tMin ? 2.0 * (tAbove - tMin) : 1.0;
+      hi = tMin + step;
+      evaluate(energy, x, v, hi);
+      for (int i = 0; value <= target; i++)
+      {
+        // the energy never increases enough along the ray
+        if (i == MAX_DOUBLINGS)
+          return Double.POSITIVE_INFINITY;
+        lo = hi;
+        step *= 2.0;
+        hi = tMin + step;
+        evaluate(energy, x, v, hi);
+      }
+      valueHi = value;
+      slopeHi = slope;
+    }
+    for (int iter = 0; iter < MAX_ITERATIONS; iter++)
+    {
+      if (valueHi - target <= tolerance || hi - lo <= RELATIVE_TOLERANCE * hi)
+        break;
+      double t = slopeHi > 0.0 ? hi - (valueHi - target) / slopeHi : Double.NaN;
+      if (!(t > lo && t < hi))
+        t = (lo + hi) / 2.0;
+      evaluate(energy, x, v, t);
+      if (value > target)
+      {
+        hi = t;
+        valueHi = value;
+        slopeHi = slope;
+      }
+      else
+        lo = t;
+    }
+    return hi;
+  }
+  
+  /**
+   * Set value and slope to the energy and its directional derivative at 
+   * x + v t, without computing the gradient when the energy is a 
+   * DirectionalEnergy.
+   */
+  private void evaluate(DifferentiableFunction energy, double [] x, double [] v, double t)
+  {
+    if (energy instanceof DirectionalEnergy)
+    {
+      final DirectionalEnergy directional = (DirectionalEnergy) energy;
+      value = directional.valueAt(x, v, t);
+      slope = directional.directionalDerivative(x, v, t);
+      return;
+    }
+    if (position == null || position.length != x.length)
+      position = new double[x.length];
+    for (int i = 0; i < x.length; i++)
+      position[i] = x[i] + v[i] * t;
+    value = energy.valueAt(position);
+    final double [] gradient = energy.derivativeAt(position);
+    double sum = 0.0;
+    for (int i = 0; i < x.length; i++)
+      sum += gradient[i] * v[i];
+    slope = sum;
+  }
+}
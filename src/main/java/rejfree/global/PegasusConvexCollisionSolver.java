@@ -32,13 +32,17 @@ public class PegasusConvexCollisionSolver implements CollisionSolver
     
     // keep moving until an exponentially distributed amount of energy is exhausted
     
-    final double initialEnergy = energy.valueAt(directionalMin.data);
+    final DirectionalEnergy directional = energy instanceof DirectionalEnergy ? (DirectionalEnergy) energy : null;
+    final double initialEnergy = directional != null ? 
+        directional.valueAt(initialPoint.data, velocity.data, time1) : 
+        energy.valueAt(directionalMin.data);
     final UnivariateFunction lineSolvingFunction = new UnivariateFunction() {
       @Override
       public double value(final double time)
       {
-        final DoubleMatrix candidatePosition = position(directionalMin, velocity, time);
-        final double candidateEnergy = energy.valueAt(candidatePosition.data);
+        final double candidateEnergy = directional != null ? 
+            directional.valueAt(initialPoint.data, velocity.data, time1 + time) : 
+            energy.valueAt(position(directionalMin, velocity, time).data);
         final double delta = candidateEnergy - initialEnergy;
         if (delta < - NumericalUtils.THRESHOLD)
           System.err.println("Did not expect negative delta for convex objective. " +
@@ -63,6 +67,8 @@ public class PegasusConvexCollisionSolver implements CollisionSolver
       public double valueAt(double[] _time)
       {
         double time = _time[0];
+        if (energy instanceof DirectionalEnergy)
+          return ((DirectionalEnergy) energy).valueAt(initialPoint.data, velocity.data, time);
         double [] position = position(initialPoint, velocity, time).data;
         return energy.valueAt(position);
       }
@@ -77,6 +83,8 @@ public class PegasusConvexCollisionSolver implements CollisionSolver
       public double[] derivativeAt(double[] _time)
       {
         double time = _time[0];
+        if (energy instanceof DirectionalEnergy)
+          return new double[]{((DirectionalEnergy) energy).directionalDerivative(initialPoint.data, velocity.data, time)};
         double [] position = position(initialPoint, velocity, time).data;
         DoubleMatrix fullDerivative = new DoubleMatrix(energy.derivativeAt(position));
         double directionalDeriv = fullDerivative.dot(velocity);
@@ -0,0 +1,20 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+
+import bayonet.opt.DifferentiableFunction;
+
+
+
+/**
+ * An energy of the form x' A x / 2 + constant, with A symmetric positive 
+ * semi-definite. Collision times for such energies are available in closed 
+ * form (see AnalyticQuadraticCollisionSolver).
+ */
+public interface QuadraticEnergy extends DifferentiableFunction
+{
+  /**
+   * @return The matrix A (should not be modified)
+   */
+  public DoubleMatrix quadraticForm();
+}
@@ -0,0 +1,77 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+
+
+
+/**
+ * Keeps the states (time, position and velocity) after the last 
+ * capacity events, in preallocated arrays.
+ */
+public class RingBufferSink implements TrajectorySink
+{
+  private final int capacity;
+  private double [] times = null;
+  private double [][] positions = null, velocities = null;
+  
+  /*
+   * Total number of events received, the last one being stored at index 
+   * (nEvents - 1) % capacity
+   */
+  private long nEvents = 0;
+  
+  public RingBufferSink(int capacity)
+  {
+    if (capacity < 1)
+      throw new RuntimeException("The capacity should be positive: " + capacity);
+    this.capacity = capacity;
+  }
+  
+  @Override
+  public void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity)
+  {
+    if (times == null)
+    {
+      times = new double[capacity];
+      positions = new double[capacity][position.length];
+      velocities = new double[capacity][position.length];
+    }
+    final int slot = (int) (nEvents++ % capacity);
+    times[slot] = time;
+    System.arraycopy(position.data, 0, positions[slot], 0, position.length);
+    System.arraycopy(velocity.data, 0, velocities[slot], 0, position.length);
+  }
+  
+  /**
+   * @return Number of states stored
+   */
+  public int size()
+  {
+    return (int) Math.min(nEvents, capacity);
+  }
+  
+  /**
+   * @param i Index between 0 (oldest state stored) and size() - 1 (latest)
+   */
+  public double getTime(int i)
+  {
+    return times[slot(i)];
+  }
+  
+  public DoubleMatrix getPosition(int i)
+  {
+    return new DoubleMatrix(positions[slot(i)].clone());
+  }
+  
+  public DoubleMatrix getVelocity(int i)
+  {
+    return new DoubleMatrix(velocities[slot(i)].clone());
+  }
+  
+  private int slot(int i)
+  {
+    if (i < 0 || i >= size())
+      throw new IndexOutOfBoundsException("" + i);
+    return (int) ((nEvents - size() + i) % capacity);
+  }
+}
@@ -0,0 +1,44 @@
+package rejfree.global;
+
+import org.jblas.DoubleMatrix;
+
+
+
+/**
+ * Receives the output of GlobalRFSampler as it is produced: the position 
+ * and velocity after each event, and the collected samples.
+ * 
+ * The sampler does not modify the matrices passed to the sink afterward, 
+ * so they can be kept without copying them.
+ */
+public interface TrajectorySink
+{
+  /**
+   * A sink discarding everything.
+   */
+  public static final TrajectorySink NO_OP = new TrajectorySink() {};
+  
+  /**
+   * Called at the beginning of each call to GlobalRFSampler.iterate().
+   */
+  public default void init(GlobalRFSampler sampler) {}
+  
+  /**
+   * Process the state just after an event, or at the beginning of iterate().
+   * 
+   * @param time Trajectory length at the event (counted from the first call to iterate())
+   * @param position
+   * @param velocity Velocity until the next event
+   */
+  public default void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity) {}
+  
+  /**
+   * Process a sample collected at the given time.
+   */
+  public default void processSample(double time, DoubleMatrix sample) {}
+  
+  /**
+   * Called at the end of each call to GlobalRFSampler.iterate().
+   */
+  public default void flush() {}
+}
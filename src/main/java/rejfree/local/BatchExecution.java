@@ -0,0 +1,322 @@
+package rejfree.local;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import com.google.common.base.Stopwatch;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.RefreshmentMethod;
+import rejfree.StaticUtils;
+
+
+
+/**
+ * Batch parallel mode of LocalRFSampler.
+ *
+ * The events at the head of the queue are popped as long as the
+ * neighborhoods of their factors (the factors sharing a variable with
+ * them) are pairwise disjoint. Two such events read and write disjoint
+ * parts of the state, so the events of a batch are processed
+ * concurrently, each recording what it changed. The batch is then
+ * committed in time order: after committing an event, if one of the
+ * collision times it rescheduled comes before the next event of the
+ * batch, the sequential sampler would have processed that one first, so
+ * the rest of the batch is undone and put back in the queue.
+ *
+ * Hence the committed events are exactly those of the sequential sampler
+ * (with different random streams, so this has the same law but not the
+ * same trajectories). Refreshments and the collection of points are
+ * processed sequentially, between batches.
+ * 
+ * Only PrimitiveCollisionFactors are supported: the neighborhoods of two 
+ * events of a batch can still share variables, which is only safe when 
+ * the factors read the positions from the workspaces instead of the 
+ * RealVariables.
+ */
+class BatchExecution implements ParallelExecution
+{
+  /*
+   * Largest batch, per thread
+   */
+  private static final int EVENTS_PER_THREAD = 8;
+
+  private final LocalRFSampler sampler;
+  private final FactorGraphIndex graph;
+  private final RFSamplerOptions options;
+  private final IndexedEventQueue queue;
+
+  private final EventWorkspace [] workspaces;
+  private final Random [] randoms;
+  private final EventRecord [] batch;
+  private final IndexSet claimed;
+  private int batchSize = 0;
+
+  private double nextRefreshmentTime, nextCollectTime, currentTime = 0.0;
+
+  BatchExecution(LocalRFSampler sampler, Random rand)
+  {
+    this.sampler = sampler;
+    this.graph = sampler.getFactorGraph();
+    this.options = sampler.rfOptions;
+    // the batches only keep the neighborhoods of the events disjoint, so the variables of neighbor factors
+    // can be shared: boxed factors would then write and read the same RealVariables concurrently
+    for (CollisionFactor factor : graph.getFactors())
+      if (!(factor instanceof PrimitiveCollisionFactor))
+        throw new RuntimeException("The batch parallel mode only supports PrimitiveCollisionFactors: " + factor);
+    this.queue = sampler._collisionQueue;
+    final int nThreads = options.nThreads;
+    this.workspaces = new EventWorkspace[nThreads];
+    this.randoms = new Random[nThreads];
+    for (int w = 0; w < nThreads; w++)
+    {
+      workspaces[w] = new EventWorkspace(sampler.trajectories, graph.maxFactorDegree(), graph.nVariables(), graph.nFactors());
+      workspaces[w].factorRandom = sampler.newFactorRandom();
+      // with per-factor streams, rand is left untouched so that it is used as in the sequential sampler
+      randoms[w] = workspaces[w].factorRandom != null ? workspaces[w].factorRandom : sampler.newRandom(rand.nextLong());
+    }
+    this.batch = new EventRecord[EVENTS_PER_THREAD * nThreads];
+    for (int i = 0; i < batch.length; i++)
+      batch[i] = new EventRecord();
+    this.claimed = new IndexSet(graph.nFactors());
+    this.nextRefreshmentTime = options.refreshRate == 0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, options.refreshRate);
+    this.nextCollectTime = options.collectRate == 0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, options.collectRate);
+  }
+
+  @Override
+  public double run(Random rand, long maxNumberOfEvents, double endTime, long maxTimeMilli)
+  {
+    final Stopwatch watch = maxTimeMilli == Long.MAX_VALUE ? null : Stopwatch.createStarted();
+    long nIterations = 0;
+    while (nIterations < maxNumberOfEvents)
+    {
+      if (watch != null && watch.elapsed(TimeUnit.MILLISECONDS) > maxTimeMilli)
+        break;
+      final double nextCollisionTime = queue.peekTime();
+      final double nextOtherTime = Math.min(nextRefreshmentTime, nextCollectTime);
+      if (Math.min(nextCollisionTime, nextOtherTime) > endTime)
+      {
+        currentTime = endTime;
+        break;
+      }
+      if (nextCollectTime < Math.min(nextCollisionTime, nextRefreshmentTime))
+      {
+        // the sequential sampler draws the collection times afresh after each event, which has the same law
+        sampler.updateAllVariables(nextCollectTime);
+        sampler.processPoint();
+        nextCollectTime += StaticUtils.generateExponential(rand, options.collectRate);
+      }
+      else if (nextRefreshmentTime < nextCollisionTime)
+      {
+        currentTime = nextRefreshmentTime;
+        if (options.refreshmentMethod == RefreshmentMethod.LOCAL)
+          sampler.localVelocityRefreshment(rand, nextRefreshmentTime);
+        else
+          sampler.globalVelocityRefreshment(rand, nextRefreshmentTime, false);
+        nextRefreshmentTime += StaticUtils.generateExponential(rand, options.refreshRate);
+        nIterations++;
+      }
+      else
+      {
+        popBatch(Math.min(nextOtherTime, endTime), maxNumberOfEvents - nIterations);
+        if (batchSize == 1)
+          process(0, 0);
+        else
+          sampler.parallel(() -> IntStream.range(0, workspaces.length).parallel().forEach(w ->
+          {
+            for (int i = w; i < batchSize; i += workspaces.length)
+              process(i, w);
+          }));
+        final int nCommitted = commit();
+        currentTime = batch[nCommitted - 1].time;
+        nIterations += nCommitted;
+      }
+    }
+    return currentTime;
+  }
+
+  /**
+   * Pop the events at the head of the queue, before the given time, as
+   * long as their neighborhoods do not intersect (the first event is
+   * always popped).
+   */
+  private void popBatch(double before, long maxSize)
+  {
+    batchSize = 0;
+    claimed.clear();
+    while (batchSize < batch.length && batchSize < maxSize && !queue.isEmpty() && (batchSize == 0 || queue.peekTime() < before))
+    {
+      final EventRecord record = batch[batchSize];
+      record.factor = queue.peekEvent();
+      record.time = queue.peekTime();
+      record.neighbors.clear();
+      graph.neighborFactors(record.factor, workspaces[0].factors);
+      for (int i = 0; i < workspaces[0].factors.size(); i++)
+      {
+        final int neighbor = workspaces[0].factors.get(i);
+        if (claimed.contains(neighbor))
+          return;
+        record.neighbors.add(neighbor);
+      }
+      for (int i = 0; i < record.neighbors.size; i++)
+        claimed.add(record.neighbors.items[i]);
+      queue.pollEvent();
+      batchSize++;
+    }
+  }
+
+  /**
+   * Process the i-th event of the batch, recording its effect. Only the
+   * state of its neighborhood is read and written.
+   */
+  private void process(int i, int worker)
+  {
+    final EventRecord record = batch[i];
+    final EventWorkspace ws = workspaces[worker];
+    final Random rand = randoms[worker];
+    final int f = record.factor;
+    record.isActualCollision = sampler.isCollision[f];
+    record.nVariables = 0;
+    record.rays.clear();
+
+    if (record.isActualCollision)
+    {
+      // save the rays, to undo the event if needed
+      final TrajectoryStore store = sampler.trajectories;
+      final int degree = graph.factorDegree(f);
+      record.ensureVariableCapacity(degree);
+      for (int d = 0; d < degree; d++)
+      {
+        final int v = graph.factorVariable(f, d);
+        record.variables[d] = v;
+        record.oldT[d] = store.time(v);
+        record.oldPosition[d] = store.startPosition(v);
+        record.oldVelocity[d] = store.velocity(v);
+      }
+      record.nVariables = degree;
+      ws.rays = record.rays;
+      sampler.collideTrajectories(ws, f, record.time);
+    }
+
+    final IntList rescheduled = record.isActualCollision ? record.neighbors : record.self(f);
+    record.ensureFactorCapacity(rescheduled.size);
+    for (int j = 0; j < rescheduled.size; j++)
+    {
+      final int g = rescheduled.items[j];
+      record.oldIsCollision[j] = sampler.isCollision[g];
+      record.newTimes[j] = sampler.candidateCollisionTime(rand, ws, g, record.time);
+    }
+  }
+
+  /**
+   * @return The number of events committed
+   */
+  private int commit()
+  {
+    for (int i = 0; i < batchSize; i++)
+    {
+      final EventRecord record = batch[i];
+      if (i > 0 && queue.peekTime() <= record.time)
+      {
+        for (int j = i; j < batchSize; j++)
+          undo(batch[j]);
+        return i;
+      }
+      final IntList rescheduled = record.isActualCollision ? record.neighbors : record.self(record.factor);
+      for (int j = 0; j < rescheduled.size; j++)
+        queue.update(rescheduled.items[j], record.newTimes[j]);
+      sampler.countCollision(graph.factorDegree(record.factor));
+      RayBuffer.flush(sampler, record.rays);
+    }
+    return batchSize;
+  }
+
+  private void undo(EventRecord record)
+  {
+    final TrajectoryStore store = sampler.trajectories;
+    for (int d = 0; d < record.nVariables; d++)
+      store.set(record.variables[d], record.oldT[d], record.oldPosition[d], record.oldVelocity[d]);
+    final IntList rescheduled = record.isActualCollision ? record.neighbors : record.self(record.factor);
+    for (int j = 0; j < rescheduled.size; j++)
+    {
+      sampler.isCollision[rescheduled.items[j]] = record.oldIsCollision[j];
+      if (sampler.factorEvents != null)
+        sampler.factorEvents[rescheduled.items[j]]--;
+    }
+    queue.update(record.factor, record.time);
+  }
+
+  /**
+   * The information needed to commit or undo one event of a batch.
+   */
+  private static class EventRecord
+  {
+    int factor;
+    double time;
+    boolean isActualCollision;
+
+    /*
+     * The neighbor factors, and for the rescheduled factors, their previous
+     * isCollision flag and their new collision time
+     */
+    final IntList neighbors = new IntList(), selfList = new IntList();
+    boolean [] oldIsCollision = new boolean[0];
+    double [] newTimes = new double[0];
+
+    /*
+     * Rays of the variables of a colliding factor, before the event
+     */
+    int nVariables;
+    int [] variables = new int[0];
+    double [] oldT = new double[0], oldPosition = new double[0], oldVelocity = new double[0];
+
+    final RayBuffer rays = new RayBuffer();
+
+    IntList self(int factor)
+    {
+      selfList.clear();
+      selfList.add(factor);
+      return selfList;
+    }
+
+    void ensureFactorCapacity(int size)
+    {
+      if (newTimes.length < size)
+      {
+        oldIsCollision = new boolean[size];
+        newTimes = new double[size];
+      }
+    }
+
+    void ensureVariableCapacity(int size)
+    {
+      if (variables.length < size)
+      {
+        variables = new int[size];
+        oldT = new double[size];
+        oldPosition = new double[size];
+        oldVelocity = new double[size];
+      }
+    }
+  }
+
+  private static class IntList
+  {
+    int size = 0;
+    int [] items = new int[16];
+
+    void add(int item)
+    {
+      if (size == items.length)
+        items = Arrays.copyOf(items, 2 * size);
+      items[size++] = item;
+    }
+
+    void clear()
+    {
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package rejfree.local;
+
+import rejfree.CounterRandom;
+
+
+
+/**
+ * The mutable buffers used by LocalRFSampler while processing one event.
+ * 
+ * The sequential sampler has a single workspace; in the parallel modes, 
+ * each worker has its own, so that workers processing disjoint parts of 
+ * the factor graph do not share any mutable buffer.
+ */
+class EventWorkspace
+{
+  /*
+   * Where positions and velocities are read and written. When storeIndex 
+   * is non-null, variable v is stored at index storeIndex[v], otherwise 
+   * at index v.
+   */
+  final TrajectoryStore trajectories;
+  int [] storeIndex = null;
+  
+  final PrimitiveCollisionContext context;
+  final double [] gradient;
+  final IndexSet variables, factors;
+  
+  /*
+   * When non-null, closed rays are added to this buffer instead of being 
+   * sent to the RayProcessors right away
+   */
+  RayBuffer rays = null;
+  
+  /*
+   * When non-null, only the rays of the variables v with 
+   * variableOwner[v] == owner are processed or buffered
+   */
+  int [] variableOwner = null;
+  int owner = -1;
+  
+  /*
+   * When frozenMask is non-null, the variables v with frozenMask[v] == frozenValue
+   * are held fixed at their position at time frozenTime: collision 
+   * computations see them with a zero velocity, and bounces do not change 
+   * their velocity.
+   */
+  boolean [] frozenMask = null;
+  boolean frozenValue = true;
+  double frozenTime = Double.NaN;
+  
+  /*
+   * When non-null (RandomStreams.COUNTER), the collision times are drawn 
+   * from the streams of the factors, positioned with this generator
+   */
+  CounterRandom factorRandom = null;
+  
+  /**
+   * @param trajectories
+   * @param maxDegree Largest number of variables connected to a factor
+   * @param nVariables Capacity of the variables set
+   * @param nFactors Capacity of the factors set
+   */
+  EventWorkspace(TrajectoryStore trajectories, int maxDegree, int nVariables, int nFactors)
+  {
+    this.trajectories = trajectories;
+    context = new PrimitiveCollisionContext(maxDegree);
+    gradient = new double[maxDegree];
+    variables = new IndexSet(nVariables);
+    factors = new IndexSet(nFactors);
+  }
+  
+  int slot(int variable)
+  {
+    return storeIndex == null ? variable : storeIndex[variable];
+  }
+  
+  boolean recordsRays(int variable)
+  {
+    return variableOwner == null || variableOwner[variable] == owner;
+  }
+  
+  boolean isFrozen(int variable)
+  {
+    return frozenMask != null && frozenMask[variable] == frozenValue;
+  }
+}
@@ -0,0 +1,432 @@
+package rejfree.local;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import blang.ProbabilityModel;
+import blang.factors.Factor;
+import blang.variables.RealVariable;
+
+
+
+/**
+ * An immutable, array-based view of the factor graph of a ProbabilityModel
+ * where all factors are CollisionFactors.
+ *
+ * Factors are indexed in the order of ProbabilityModel.linearizedFactors(),
+ * and variables in the order of ProbabilityModel.getLatentVariables().
+ * The adjacency is stored in compressed sparse row (CSR) format in both
+ * directions. For each factor, the variables are stored in the order of
+ * the gradient coordinates, i.e. the k-th variable of factor f is the index
+ * of f.getVariable(k).
+ *
+ * Optionally, the neighbor factors and extended neighbor variables of each
+ * factor (the sets needed after a collision) are also precomputed. This
+ * uses memory proportional to the sum over factors of the size of their
+ * extended neighborhoods, so it should be avoided when some variables have a
+ * very large number of neighbor factors.
+ *
+ * Neighborhood queries write into a caller-owned IndexSet, which makes
+ * them allocation-free. Since the index is immutable, it can be shared
+ * across threads as long as each thread uses its own IndexSets.
+ */
+public class FactorGraphIndex
+{
+  private final List<CollisionFactor> factors;
+  private final List<RealVariable> variables;
+
+  private final Map<CollisionFactor,Integer> factorIndices;
+  private final Map<RealVariable,Integer> variableIndices;
+
+  /*
+   * The factors depending on each hyper-parameter (see HyperParameterFactor)
+   */
+  private final Map<Object,int[]> hyperParameterFactors;
+
+  /*
+   * variables of factor f are factorVariables[factorOffsets[f]], ...,
+   * factorVariables[factorOffsets[f+1]-1]
+   */
+  private final int [] factorOffsets, factorVariables;
+
+  /*
+   * factors of variable v are variableFactors[variableOffsets[v]], ...,
+   * variableFactors[variableOffsets[v+1]-1]
+   */
+  private final int [] variableOffsets, variableFactors;
+
+  /*
+   * null if not precomputed
+   */
+  private final int []
+    neighborFactorOffsets, neighborFactors,
+    extendedVariableOffsets, extendedVariables;
+
+  public static FactorGraphIndex compile(ProbabilityModel model)
+  {
+    return compile(model, true);
+  }
+
+  /**
+   * @param model A model where all factors are CollisionFactors
+   * @param precomputeNeighborhoods Whether to store the neighbor factors and
+   *    extended neighbor variables of each factor
+   * @return The compiled index
+   */
+  public static FactorGraphIndex compile(ProbabilityModel model, boolean precomputeNeighborhoods)
+  {
+    List<CollisionFactor> factors = new ArrayList<>();
+    for (Factor f : model.linearizedFactors())
+      factors.add((CollisionFactor) f);
+
+    List<RealVariable> variables = new ArrayList<>();
+    for (Object variable : model.getLatentVariables())
+      variables.add((RealVariable) variable);
+
+    return new FactorGraphIndex(model, factors, variables, precomputeNeighborhoods);
+  }
+
+  private FactorGraphIndex(
+      ProbabilityModel model,
+      List<CollisionFactor> factors,
+      List<RealVariable> variables,
+      boolean precomputeNeighborhoods)
+  {
+    this.factors = Collections.unmodifiableList(factors);
+    this.variables = Collections.unmodifiableList(variables);
+
+    factorIndices = new HashMap<>();
+    for (int f = 0; f < factors.size(); f++)
+      factorIndices.put(factors.get(f), f);
+
+    variableIndices = new HashMap<>();
+    for (int v = 0; v < variables.size(); v++)
+      variableIndices.put(variables.get(v), v);
+
+    hyperParameterFactors = indexHyperParameters(factors);
+
+    // factor -> variables, in gradient coordinate order
+    factorOffsets = new int[factors.size() + 1];
+    for (int f = 0; f < factors.size(); f++)
+      factorOffsets[f + 1] = factorOffsets[f] + factors.get(f).nVariables();
+    factorVariables = new int[factorOffsets[factors.size()]];
+    for (int f = 0; f < factors.size(); f++)
+    {
+      CollisionFactor factor = factors.get(f);
+      checkCoordinatesMatchNeighbors(model, factor);
+      for (int k = 0; k < factor.nVariables(); k++)
+        factorVariables[factorOffsets[f] + k] = variableIndex(factor.getVariable(k));
+    }
+
+    // variable -> factors
+    variableOffsets = new int[variables.size() + 1];
+    for (int v = 0; v < variables.size(); v++)
+      variableOffsets[v + 1] = variableOffsets[v] + model.neighborFactors(variables.get(v)).size();
+    variableFactors = new int[variableOffsets[variables.size()]];
+    for (int v = 0; v < variables.size(); v++)
+    {
+      int i = variableOffsets[v];
+      for (Factor factor : model.neighborFactors(variables.get(v)))
+        variableFactors[i++] = factorIndex(factor);
+    }
+
+    if (precomputeNeighborhoods)
+    {
+      IndexSet
+        factorBuffer = new IndexSet(nFactors()),
+        variableBuffer = new IndexSet(nVariables());
+
+      neighborFactorOffsets = new int[nFactors() + 1];
+      extendedVariableOffsets = new int[nFactors() + 1];
+      List<int[]>
+        neighborFactorLists = new ArrayList<>(),
+        extendedVariableLists = new ArrayList<>();
+      for (int f = 0; f < nFactors(); f++)
+      {
+        computeNeighborFactors(f, factorBuffer);
+        neighborFactorLists.add(toArray(factorBuffer));
+        neighborFactorOffsets[f + 1] = neighborFactorOffsets[f] + factorBuffer.size();
+
+        neighborVariables(factorBuffer, variableBuffer);
+        extendedVariableLists.add(toArray(variableBuffer));
+        extendedVariableOffsets[f + 1] = extendedVariableOffsets[f] + variableBuffer.size();
+      }
+      neighborFactors = concatenate(neighborFactorLists, neighborFactorOffsets);
+      extendedVariables = concatenate(extendedVariableLists, extendedVariableOffsets);
+    }
+    else
+    {
+      neighborFactorOffsets = null;
+      neighborFactors = null;
+      extendedVariableOffsets = null;
+      extendedVariables = null;
+    }
+  }
+
+  /**
+   * The sampler uses the gradient coordinates to update the trajectories
+   * and the model's neighbors to find which factors need to be recomputed,
+   * so both need to refer to the same set of variables.
+   */
+  private void checkCoordinatesMatchNeighbors(ProbabilityModel model, CollisionFactor factor)
+  {
+    Collection<?> neighbors = model.neighborLatentVariables(factor);
+    boolean match = neighbors.size() == factor.nVariables();
+    for (int k = 0; match && k < factor.nVariables(); k++)
+      match = neighbors.contains(factor.getVariable(k));
+    if (!match)
+      throw new RuntimeException("The variables of the gradient coordinates of " + factor +
+          " should be the latent variables connected to it in the model.");
+  }
+
+  private Map<Object,int[]> indexHyperParameters(List<CollisionFactor> factors)
+  {
+    Map<Object,List<Integer>> lists = new HashMap<>();
+    for (int f = 0; f < factors.size(); f++)
+      if (factors.get(f) instanceof HyperParameterFactor)
+        for (Object parameter : ((HyperParameterFactor) factors.get(f)).getHyperParameters())
+        {
+          if (variableIndices.containsKey(parameter))
+            throw new RuntimeException("The hyper-parameters of " + factors.get(f) + " should not be latent variables of the model: " + parameter);
+          List<Integer> list = lists.get(parameter);
+          if (list == null)
+            lists.put(parameter, list = new ArrayList<>());
+          if (list.isEmpty() || list.get(list.size() - 1) != f)
+            list.add(f);
+        }
+    Map<Object,int[]> result = new HashMap<>();
+    for (Map.Entry<Object,List<Integer>> entry : lists.entrySet())
+    {
+      int [] array = new int[entry.getValue().size()];
+      for (int i = 0; i < array.length; i++)
+        array[i] = entry.getValue().get(i);
+      result.put(entry.getKey(), array);
+    }
+    return result;
+  }
+
+  private static int [] toArray(IndexSet set)
+  {
+    int [] result = new int[set.size()];
+    for (int i = 0; i < set.size(); i++)
+      result[i] = set.get(i);
+    return result;
+  }
+
+  private static int [] concatenate(List<int[]> lists, int [] offsets)
+  {
+    int [] result = new int[offsets[lists.size()]];
+    for (int i = 0; i < lists.size(); i++)
+      System.arraycopy(lists.get(i), 0, result, offsets[i], lists.get(i).length);
+    return result;
+  }
+
+  public int nFactors()
+  {
+    return factors.size();
+  }
+
+  public int nVariables()
+  {
+    return variables.size();
+  }
+
+  public CollisionFactor getFactor(int factor)
+  {
+    return factors.get(factor);
+  }
+
+  public RealVariable getVariable(int variable)
+  {
+    return variables.get(variable);
+  }
+
+  /**
+   * @return The factors, in the order of their indices
+   */
+  public List<CollisionFactor> getFactors()
+  {
+    return factors;
+  }
+
+  /**
+   * @return The latent variables, in the order of their indices
+   */
+  public List<RealVariable> getVariables()
+  {
+    return variables;
+  }
+
+  public int factorIndex(Object factor)
+  {
+    Integer result = factorIndices.get(factor);
+    if (result == null)
+      throw new RuntimeException("Factor not in the model: " + factor);
+    return result;
+  }
+
+  public int variableIndex(Object variable)
+  {
+    Integer result = variableIndices.get(variable);
+    if (result == null)
+      throw new RuntimeException("Latent variable not in the model: " + variable);
+    return result;
+  }
+
+  /**
+   * @return The indices of the factors depending on the given 
+   *   hyper-parameter (see HyperParameterFactor)
+   */
+  public int [] hyperParameterFactors(Object hyperParameter)
+  {
+    int [] result = hyperParameterFactors.get(hyperParameter);
+    if (result == null)
+      throw new RuntimeException("No factor depends on the hyper-parameter: " + hyperParameter);
+    return result;
+  }
+
+  /**
+   * @return The largest number of variables connected to a factor
+   */
+  public int maxFactorDegree()
+  {
+    int result = 0;
+    for (int f = 0; f < nFactors(); f++)
+      result = Math.max(result, factorDegree(f));
+    return result;
+  }
+
+  /**
+   * @param factor
+   * @return The number of variables connected to the factor
+   */
+  public int factorDegree(int factor)
+  {
+    return factorOffsets[factor + 1] - factorOffsets[factor];
+  }
+
+  /**
+   * @param factor
+   * @param coordinate
+   * @return The index of the variable corresponding to the given gradient coordinate
+   */
+  public int factorVariable(int factor, int coordinate)
+  {
+    return factorVariables[factorOffsets[factor] + coordinate];
+  }
+
+  /**
+   * @param variable
+   * @return The number of factors connected to the variable
+   */
+  public int variableDegree(int variable)
+  {
+    return variableOffsets[variable + 1] - variableOffsets[variable];
+  }
+
+  public int variableFactor(int variable, int i)
+  {
+    return variableFactors[variableOffsets[variable] + i];
+  }
+
+  public boolean hasPrecomputedNeighborhoods()
+  {
+    return neighborFactors != null;
+  }
+
+  /**
+   * Add the variables connected to the given factor (in gradient coordinate order).
+   *
+   * @param factor
+   * @param result Not cleared before adding
+   */
+  public void addFactorVariables(int factor, IndexSet result)
+  {
+    for (int i = factorOffsets[factor]; i < factorOffsets[factor + 1]; i++)
+      result.add(factorVariables[i]);
+  }
+
+  /**
+   * @param factor
+   * @param result Cleared, then filled with the distinct factors sharing at
+   *   least one variable with the given factor (including itself)
+   */
+  public void neighborFactors(int factor, IndexSet result)
+  {
+    if (neighborFactors == null)
+      computeNeighborFactors(factor, result);
+    else
+      copy(neighborFactors, neighborFactorOffsets, factor, result);
+  }
+
+  /**
+   * @param factor
+   * @param result Cleared, then filled with the distinct variables connected
+   *   to the neighbor factors of the given factor
+   */
+  public void extendedNeighborVariables(int factor, IndexSet result)
+  {
+    if (extendedVariables == null)
+    {
+      result.clear();
+      for (int i = factorOffsets[factor]; i < factorOffsets[factor + 1]; i++)
+      {
+        final int variable = factorVariables[i];
+        for (int j = variableOffsets[variable]; j < variableOffsets[variable + 1]; j++)
+          addFactorVariables(variableFactors[j], result);
+      }
+    }
+    else
+      copy(extendedVariables, extendedVariableOffsets, factor, result);
+  }
+
+  /**
+   * @param variables
+   * @param result Cleared, then filled with the distinct factors connected
+   *   to at least one of the given variables
+   */
+  public void neighborFactors(IndexSet variables, IndexSet result)
+  {
+    result.clear();
+    for (int i = 0; i < variables.size(); i++)
+    {
+      final int variable = variables.get(i);
+      for (int j = variableOffsets[variable]; j < variableOffsets[variable + 1]; j++)
+        result.add(variableFactors[j]);
+    }
+  }
+
+  /**
+   * @param factors
+   * @param result Cleared, then filled with the distinct variables connected
+   *   to at least one of the given factors
+   */
+  public void neighborVariables(IndexSet factors, IndexSet result)
+  {
+    result.clear();
+    for (int i = 0; i < factors.size(); i++)
+      addFactorVariables(factors.get(i), result);
+  }
+
+  private void computeNeighborFactors(int factor, IndexSet result)
+  {
+    result.clear();
+    for (int i = factorOffsets[factor]; i < factorOffsets[factor + 1]; i++)
+    {
+      final int variable = factorVariables[i];
+      for (int j = variableOffsets[variable]; j < variableOffsets[variable + 1]; j++)
+        result.add(variableFactors[j]);
+    }
+  }
+
+  private static void copy(int [] values, int [] offsets, int row, IndexSet result)
+  {
+    result.clear();
+    for (int i = offsets[row]; i < offsets[row + 1]; i++)
+      result.add(values[i]);
+  }
+}
@@ -0,0 +1,187 @@
+package rejfree.local;
+
+import java.util.Arrays;
+
+
+
+/**
+ * A partition of the factor graph into regions, used by the parallel modes
+ * of LocalRFSampler.
+ *
+ * Variables are ordered by a breadth first traversal of the factor graph
+ * and cut into contiguous chunks of (almost) equal size, so that for
+ * chain- and grid-like models most factors fall within one chunk. Each
+ * factor is assigned to the region of its variable coming first in that
+ * order. A variable is on the boundary if its factors belong to more than
+ * one region.
+ *
+ * Region r is responsible for the factors of region r which touch at least
+ * one non-boundary variable; the boundary block is responsible for the
+ * factors which touch at least one boundary variable. Hence all the factors
+ * of a non-boundary variable are in the same region, and all the factors of
+ * a boundary variable are in the boundary block.
+ */
+class GraphPartition
+{
+  final int nRegions;
+
+  /*
+   * The region of each factor (a factor touching boundary variables also
+   * has a region, even if it is not in the list of that region below)
+   */
+  final int [] factorRegion;
+
+  final boolean [] isBoundaryVariable;
+
+  /*
+   * Factors touching at least one boundary variable
+   */
+  final boolean [] touchesBoundary;
+
+  /*
+   * regionFactors[r][i] is the factor with local index i in region r;
+   * regionLocalIndex is the inverse map (-1 for factors in no region)
+   */
+  final int [][] regionFactors;
+  final int [] regionLocalIndex;
+
+  /*
+   * Same, for the boundary block
+   */
+  final int [] boundaryFactors;
+  final int [] boundaryLocalIndex;
+
+  private GraphPartition(int nRegions, int [] factorRegion, boolean [] isBoundaryVariable, boolean [] touchesBoundary,
+      int [][] regionFactors, int [] boundaryFactors, int nFactors)
+  {
+    this.nRegions = nRegions;
+    this.factorRegion = factorRegion;
+    this.isBoundaryVariable = isBoundaryVariable;
+    this.touchesBoundary = touchesBoundary;
+    this.regionFactors = regionFactors;
+    this.boundaryFactors = boundaryFactors;
+    this.regionLocalIndex = new int[nFactors];
+    Arrays.fill(regionLocalIndex, -1);
+    for (int [] factors : regionFactors)
+      for (int i = 0; i < factors.length; i++)
+        regionLocalIndex[factors[i]] = i;
+    this.boundaryLocalIndex = new int[nFactors];
+    Arrays.fill(boundaryLocalIndex, -1);
+    for (int i = 0; i < boundaryFactors.length; i++)
+      boundaryLocalIndex[boundaryFactors[i]] = i;
+  }
+
+  static GraphPartition compile(FactorGraphIndex graph, int nRegions)
+  {
+    if (nRegions < 1)
+      throw new RuntimeException("The number of regions should be positive: " + nRegions);
+
+    final int nVariables = graph.nVariables();
+    final int nFactors = graph.nFactors();
+
+    // 1- breadth first order of the variables (one traversal per connected component)
+    final int [] rank = breadthFirstRanks(graph);
+
+    // 2- region of each factor: the chunk of its first variable in that order
+    final int [] factorRegion = new int[nFactors];
+    for (int f = 0; f < nFactors; f++)
+    {
+      int firstRank = Integer.MAX_VALUE;
+      for (int i = 0; i < graph.factorDegree(f); i++)
+        firstRank = Math.min(firstRank, rank[graph.factorVariable(f, i)]);
+      factorRegion[f] = firstRank == Integer.MAX_VALUE ? 0 : (int) ((long) firstRank * nRegions / nVariables);
+    }
+
+    // 3- boundary variables: connected to factors of several regions
+    final boolean [] isBoundaryVariable = new boolean[nVariables];
+    for (int v = 0; v < nVariables; v++)
+      for (int i = 1; i < graph.variableDegree(v); i++)
+        if (factorRegion[graph.variableFactor(v, i)] != factorRegion[graph.variableFactor(v, 0)])
+          isBoundaryVariable[v] = true;
+
+    // 4- factor lists
+    final boolean [] touchesBoundary = new boolean[nFactors];
+    final boolean [] touchesInterior = new boolean[nFactors];
+    final int [] regionSizes = new int[nRegions];
+    int boundarySize = 0;
+    for (int f = 0; f < nFactors; f++)
+    {
+      for (int i = 0; i < graph.factorDegree(f); i++)
+        if (isBoundaryVariable[graph.factorVariable(f, i)])
+          touchesBoundary[f] = true;
+        else
+          touchesInterior[f] = true;
+      if (touchesInterior[f])
+        regionSizes[factorRegion[f]]++;
+      if (touchesBoundary[f])
+        boundarySize++;
+    }
+    final int [][] regionFactors = new int[nRegions][];
+    for (int r = 0; r < nRegions; r++)
+      regionFactors[r] = new int[regionSizes[r]];
+    final int [] boundaryFactors = new int[boundarySize];
+    Arrays.fill(regionSizes, 0);
+    boundarySize = 0;
+    for (int f = 0; f < nFactors; f++)
+    {
+      if (touchesInterior[f])
+        regionFactors[factorRegion[f]][regionSizes[factorRegion[f]]++] = f;
+      if (touchesBoundary[f])
+        boundaryFactors[boundarySize++] = f;
+    }
+
+    return new GraphPartition(nRegions, factorRegion, isBoundaryVariable, touchesBoundary, regionFactors, boundaryFactors, nFactors);
+  }
+
+  /**
+   * @return rank[v] is the position of variable v in a breadth first
+   *   traversal of the factor graph
+   */
+  private static int [] breadthFirstRanks(FactorGraphIndex graph)
+  {
+    final int nVariables = graph.nVariables();
+    final int [] rank = new int[nVariables];
+    Arrays.fill(rank, -1);
+    final int [] queue = new int[nVariables];
+    final boolean [] visitedFactor = new boolean[graph.nFactors()];
+    int nRanked = 0;
+    for (int root = 0; root < nVariables; root++)
+    {
+      if (rank[root] != -1)
+        continue;
+      int head = nRanked;
+      rank[root] = nRanked;
+      queue[nRanked++] = root;
+      while (head < nRanked)
+      {
+        final int v = queue[head++];
+        for (int i = 0; i < graph.variableDegree(v); i++)
+        {
+          final int f = graph.variableFactor(v, i);
+          if (visitedFactor[f])
+            continue;
+          visitedFactor[f] = true;
+          for (int j = 0; j < graph.factorDegree(f); j++)
+          {
+            final int neighbor = graph.factorVariable(f, j);
+            if (rank[neighbor] == -1)
+            {
+              rank[neighbor] = nRanked;
+              queue[nRanked++] = neighbor;
+            }
+          }
+        }
+      }
+    }
+    return rank;
+  }
+
+  int nBoundaryVariables()
+  {
+    int result = 0;
+    for (boolean b : isBoundaryVariable)
+      if (b)
+        result++;
+    return result;
+  }
+}
@@ -0,0 +1,31 @@
+package rejfree.local;
+
+import java.util.List;
+
+
+
+/**
+ * A CollisionFactor which also depends on variables not simulated by 
+ * LocalRFSampler, e.g. hyper-parameters updated by other MCMC moves 
+ * between calls advancing the sampler. After such an update, 
+ * LocalRFSampler.hyperParametersChanged() recomputes the collision times 
+ * of the dependent factors only, keeping the velocities.
+ * 
+ * The hyper-parameters should not be latent variables of the model given 
+ * to the sampler (i.e. they should not be FactorArguments of the factor).
+ */
+public interface HyperParameterFactor extends CollisionFactor
+{
+  /**
+   * @return The variables, not simulated by the sampler, on which the 
+   *   factor depends
+   */
+  public List<?> getHyperParameters();
+  
+  /**
+   * Called by the sampler after a change of some of the hyper-parameters, 
+   * before the collision time of the factor is recomputed (e.g. to update 
+   * cached quantities).
+   */
+  public default void hyperParametersChanged() {}
+}
@@ -0,0 +1,81 @@
+package rejfree.local;
+
+import java.util.Arrays;
+
+
+
+/**
+ * A set of integers in 0, 1, ..., capacity-1 which remembers insertion order.
+ *
+ * Used as a reusable, allocation-free replacement for LinkedHashSet when
+ * building neighborhoods in the factor graph: clear() is O(1) and
+ * add()/contains() do not hash.
+ */
+public class IndexSet
+{
+  private final int [] items;
+  private final int [] stamps;
+  private int stamp = 1;
+  private int size = 0;
+
+  public IndexSet(int capacity)
+  {
+    this.items = new int[capacity];
+    this.stamps = new int[capacity];
+  }
+
+  public void clear()
+  {
+    size = 0;
+    if (stamp == Integer.MAX_VALUE)
+    {
+      Arrays.fill(stamps, 0);
+      stamp = 0;
+    }
+    stamp++;
+  }
+
+  /**
+   * @param index
+   * @return true if the index was not already in the set
+   */
+  public boolean add(int index)
+  {
+    if (stamps[index] == stamp)
+      return false;
+    stamps[index] = stamp;
+    items[size++] = index;
+    return true;
+  }
+
+  public boolean contains(int index)
+  {
+    return stamps[index] == stamp;
+  }
+
+  /**
+   * @param i
+   * @return The i-th index added since the last call to clear()
+   */
+  public int get(int i)
+  {
+    if (i >= size)
+      throw new ArrayIndexOutOfBoundsException(i);
+    return items[i];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public int capacity()
+  {
+    return items.length;
+  }
+}
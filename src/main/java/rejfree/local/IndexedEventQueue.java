@@ -0,0 +1,244 @@
+package rejfree.local;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+
+
+/**
+ * A priority queue of events keyed by dense integer ids in 0, 1, ..., capacity-1,
+ * where each id has at most one scheduled time.
+ *
+ * Implemented as an index-tracking binary heap over a primitive array of times,
+ * so that scheduling, rescheduling (in either direction) and removal of an
+ * event are O(log n) and allocation-free.
+ *
+ * Contrary to EventQueue, several events can be scheduled at the same time.
+ * Ties are broken by id, so that the order in which events are polled is
+ * deterministic.
+ */
+public class IndexedEventQueue
+{
+  /*
+   * times[id] is the time at which event id is scheduled (only meaningful
+   * when positions[id] != ABSENT)
+   */
+  private final double [] times;
+
+  /*
+   * heap[p] is the id of the event at heap position p, for p < size
+   */
+  private final int [] heap;
+
+  /*
+   * positions[id] is the heap position of event id, or ABSENT
+   */
+  private final int [] positions;
+
+  private int size = 0;
+
+  private static final int ABSENT = -1;
+
+  public IndexedEventQueue(int capacity)
+  {
+    this.times = new double[capacity];
+    this.heap = new int[capacity];
+    this.positions = new int[capacity];
+    Arrays.fill(positions, ABSENT);
+  }
+
+  /**
+   * Schedule event id at the given time, replacing its previous time if it
+   * was already in the queue.
+   *
+   * As in EventQueue, an infinite time means the event never occurs, so
+   * the event is simply removed from the queue in that case.
+   *
+   * @param id
+   * @param time
+   */
+  public void update(int id, double time)
+  {
+    if (Double.isInfinite(time))
+    {
+      remove(id);
+      return;
+    }
+    if (Double.isNaN(time))
+      throw new RuntimeException("Invalid event time (t=" + time + ",event=" + id + ")");
+
+    final int position = positions[id];
+    times[id] = time;
+    if (position == ABSENT)
+    {
+      heap[size] = id;
+      positions[id] = size;
+      siftUp(size++);
+    }
+    else
+    {
+      siftUp(position);
+      siftDown(positions[id]);
+    }
+  }
+
+  /**
+   * Replace the content of the queue: each event id is scheduled at 
+   * newTimes[id] (or absent if that time is infinite).
+   * 
+   * The heap is built bottom-up, in O(n) instead of O(n log n) for n 
+   * calls to update().
+   * 
+   * @param newTimes An array of length capacity()
+   */
+  public void reset(double [] newTimes)
+  {
+    if (newTimes.length != times.length)
+      throw new RuntimeException("Expected " + times.length + " times, got " + newTimes.length);
+    size = 0;
+    for (int id = 0; id < newTimes.length; id++)
+    {
+      final double time = newTimes[id];
+      if (Double.isNaN(time))
+        throw new RuntimeException("Invalid event time (t=" + time + ",event=" + id + ")");
+      if (Double.isInfinite(time))
+      {
+        positions[id] = ABSENT;
+        continue;
+      }
+      times[id] = time;
+      heap[size] = id;
+      positions[id] = size++;
+    }
+    for (int position = size / 2 - 1; position >= 0; position--)
+      siftDown(position);
+  }
+
+  public void remove(int id)
+  {
+    final int position = positions[id];
+    if (position == ABSENT)
+      return;
+    positions[id] = ABSENT;
+    final int last = heap[--size];
+    if (position == size)
+      return;
+    heap[position] = last;
+    positions[last] = position;
+    siftUp(position);
+    siftDown(positions[last]);
+  }
+
+  /**
+   * @return The id of the earliest event, after removing it from the queue
+   */
+  public int pollEvent()
+  {
+    final int result = peekEvent();
+    remove(result);
+    return result;
+  }
+
+  /**
+   * @return The id of the earliest event
+   */
+  public int peekEvent()
+  {
+    if (size == 0)
+      throw new NoSuchElementException();
+    return heap[0];
+  }
+
+  /**
+   * @return The time of the earliest event, or positive infinity if the queue
+   *   is empty
+   */
+  public double peekTime()
+  {
+    if (size == 0)
+      return Double.POSITIVE_INFINITY;
+    return times[heap[0]];
+  }
+
+  public boolean contains(int id)
+  {
+    return positions[id] != ABSENT;
+  }
+
+  /**
+   * @param id
+   * @return The time at which the event is scheduled, or positive infinity if
+   *   it is not in the queue
+   */
+  public double time(int id)
+  {
+    if (positions[id] == ABSENT)
+      return Double.POSITIVE_INFINITY;
+    return times[id];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public int capacity()
+  {
+    return times.length;
+  }
+
+  private boolean before(int id1, int id2)
+  {
+    final double
+      t1 = times[id1],
+      t2 = times[id2];
+    return t1 < t2 || (t1 == t2 && id1 < id2);
+  }
+
+  private void siftUp(int position)
+  {
+    final int id = heap[position];
+    while (position > 0)
+    {
+      final int parentPosition = (position - 1) >>> 1;
+      final int parent = heap[parentPosition];
+      if (!before(id, parent))
+        break;
+      heap[position] = parent;
+      positions[parent] = position;
+      position = parentPosition;
+    }
+    heap[position] = id;
+    positions[id] = position;
+  }
+
+  private void siftDown(int position)
+  {
+    final int id = heap[position];
+    while (true)
+    {
+      int childPosition = 2 * position + 1;
+      if (childPosition >= size)
+        break;
+      int child = heap[childPosition];
+      final int rightPosition = childPosition + 1;
+      if (rightPosition < size && before(heap[rightPosition], child))
+      {
+        childPosition = rightPosition;
+        child = heap[rightPosition];
+      }
+      if (!before(child, id))
+        break;
+      heap[position] = child;
+      positions[child] = position;
+      position = childPosition;
+    }
+    heap[position] = id;
+    positions[id] = position;
+  }
+}
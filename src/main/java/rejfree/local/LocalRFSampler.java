@@ -1,17 +1,14 @@
 package rejfree.local;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.jblas.DoubleMatrix;
@@ -19,13 +16,18 @@ import org.jblas.DoubleMatrix;
 import com.google.common.base.Stopwatch;
 
 import rejfree.RFSamplerOptions;
+import rejfree.CheckpointReader;
+import rejfree.CheckpointWriter;
+import rejfree.Checkpointable;
+import rejfree.CounterRandom;
+import rejfree.RFSamplerOptions.ParallelMode;
+import rejfree.RFSamplerOptions.RandomStreams;
 import rejfree.RFSamplerOptions.RefreshmentMethod;
 import rejfree.StaticUtils;
+import rejfree.XoroshiroRandom;
 import rejfree.processors.RayProcessor;
-import bayonet.distributions.Exponential;
 import blang.ProbabilityModel;
 import blang.MCMCFactory.MCMCOptions;
-import blang.factors.Factor;
 import blang.processing.Processor;
 import blang.processing.ProcessorContext;
 import blang.variables.RealVariable;
@@ -34,13 +36,55 @@ import blang.variables.RealVariable;
 
 public class LocalRFSampler
 {
-  private final EventQueue<CollisionFactor> _collisionQueue = new EventQueue<>();
-  private final Map<CollisionFactor,Boolean> isCollisionMap = new LinkedHashMap<>();
-  private final Map<RealVariable, TrajectoryRay> trajectories = new HashMap<>();
-  private final List<CollisionFactor> allFactors;
+  final IndexedEventQueue _collisionQueue;
+  final boolean [] isCollision;
+  final TrajectoryStore trajectories;
+  private final FactorGraphIndex graph;
+  
+  /*
+   * Reusable buffers for the sequential event loop (neighborhood 
+   * computations, and PrimitiveCollisionFactor contexts)
+   */
+  private final EventWorkspace workspace;
+  
+  /*
+   * Used when recomputing all the collision times at once
+   */
+  private double [] collisionTimesBuffer = null;
+  private static final int RECOMPUTE_CHUNK_SIZE = 1024;
+  
+  /*
+   * Workers for the parallel modes (only non-null during initialize() and 
+   * the advance methods, when nThreads > 1)
+   */
+  private ForkJoinPool pool = null;
+  
+  /*
+   * State of the simulation kept between calls: the generator of the 
+   * sequential event loop and of the refreshments (null until initialize()),
+   * the times of the next refreshment and of the next collected point of 
+   * the sequential loop, and the parallel execution, if nThreads > 1
+   */
+  private Random random = null;
+  private double nextRefreshmentTime, nextCollectTime;
+  private ParallelExecution execution = null;
+  
+  /*
+   * Time up to which the current ray of each variable was passed to the ray
+   * processors by flushRays() (null until its first call)
+   */
+  private double [] flushedTime = null;
+  
+  /*
+   * RandomStreams.COUNTER only: the seed of the streams of the factors, and
+   * the number of collision times computed so far for each factor (which 
+   * positions its stream)
+   */
+  private long factorStreamsSeed;
+  long [] factorEvents = null;
   
   public final ProbabilityModel model;
-  private final RFSamplerOptions rfOptions;
+  final RFSamplerOptions rfOptions;
   public final MCMCOptions mcmcOptions;
   
   public final List<Processor> processors = new ArrayList<Processor>();
@@ -52,23 +96,57 @@ public class LocalRFSampler
   private int nRefreshments = 0;
   private int nRefreshedVariables = 0;
   
+  /*
+   * If the model and the factor graph are shared with other samplers 
+   * running concurrently (see MultiChainRunner): the RealVariables are then
+   * never written, and the factors are asked not to update their caches
+   */
+  private final boolean sharedModel;
+  
   public LocalRFSampler(ProbabilityModel model, RFSamplerOptions options)
   {
+    this(model, FactorGraphIndex.compile(model, options.precomputeNeighborhoods), options, false);
+  }
+  
+  /**
+   * @param graph The compiled factor graph of the model
+   * @param sharedModel See the field of the same name; requires nThreads = 1
+   *   and PrimitiveCollisionFactors only
+   */
+  LocalRFSampler(ProbabilityModel model, FactorGraphIndex graph, RFSamplerOptions options, boolean sharedModel)
+  {
+    if (sharedModel && options.nThreads > 1)
+      throw new RuntimeException("Samplers sharing their model should be sequential (nThreads = 1)");
+    if (sharedModel)
+      for (int factor = 0; factor < graph.nFactors(); factor++)
+        if (!(graph.getFactor(factor) instanceof PrimitiveCollisionFactor))
+          throw new RuntimeException("Samplers sharing their model only support PrimitiveCollisionFactors: " + graph.getFactor(factor).getClass());
     this.model = model;
     this.rfOptions = options;
+    this.sharedModel = sharedModel;
     this.mcmcOptions = new MCMCOptions();
     mcmcOptions.burnIn = 0;
     mcmcOptions.thinningPeriod = 1;
     mcmcOptions.nMCMCSweeps = Integer.MAX_VALUE;
     // mcmcOptions.progressCODA = true;  <-- avoid this, it makes things slow
     
-    allFactors = new ArrayList<>();
-    for (Factor f : model.linearizedFactors())
-      allFactors.add((CollisionFactor) f);
+    this.graph = graph;
+    trajectories = new TrajectoryStore(graph.nVariables());
+    workspace = new EventWorkspace(trajectories, graph.maxFactorDegree(), graph.nVariables(), graph.nFactors());
+    workspace.context.sharedFactors = sharedModel;
+    _collisionQueue = new IndexedEventQueue(graph.nFactors());
+    isCollision = new boolean[graph.nFactors()];
+  }
+  
+  public FactorGraphIndex getFactorGraph()
+  {
+    return graph;
   }
   
   public void addPointProcessor(Processor processor)
   {
+    if (sharedModel)
+      throw new RuntimeException("Point processors read the RealVariables, which are not updated by samplers sharing their model");
     this.processors.add(processor);
   }
   
@@ -77,31 +155,48 @@ public class LocalRFSampler
     this.rayProcessors.add(processor);
   }
   
-  private void processRay(RealVariable var, TrajectoryRay ray, double timeTheRayEnds)
+  void processRay(int variable, double t, double position_t, double velocity_t, double timeTheRayEnds)
   {
+    if (rayProcessors.isEmpty())
+      return;
+    if (flushedTime != null && flushedTime[variable] > t)
+    {
+      // the beginning of the ray was already processed by flushRays()
+      position_t += velocity_t * (flushedTime[variable] - t);
+      t = flushedTime[variable];
+    }
+    final RealVariable var = graph.getVariable(variable);
     for (RayProcessor processor : rayProcessors)
-      processor.processRay(var, ray, timeTheRayEnds, this);
+      processor.processRay(variable, var, t, position_t, velocity_t, timeTheRayEnds, this);
   }
   
   private int pointCollectIter = 0;
-  private void processPoint()
+  void processPoint()
   {
     for (Processor p : processors)
       p.process(new ProcessorContext(pointCollectIter++, model, mcmcOptions));
   }
   
-  private DoubleMatrix currentVelocity(List<Object> variables)
+  private DoubleMatrix currentVelocity()
   {
-    final int dimensionality = variables.size();
-    DoubleMatrix result = new DoubleMatrix(dimensionality);
-    for (int d = 0; d < dimensionality; d++)
-      result.put(d, trajectories.get(variables.get(d)).velocity_t);
-    return result;
+    return new DoubleMatrix(trajectories.velocities());
+  }
+  
+  void globalVelocityRefreshment(Random rand, double refreshmentTime, boolean initializing)
+  {
+    refreshAllVelocities(rand, refreshmentTime, initializing);
+    recomputeAllCollisions(rand, refreshmentTime);
   }
   
-  private void globalVelocityRefreshment(Random rand, double refreshmentTime, boolean initializing)
+  /**
+   * Draw new velocities for all the variables, without recomputing the 
+   * collision times of the main queue (the partitioned and optimistic 
+   * executions keep their own queues, recomputed after a global 
+   * refreshment).
+   */
+  void refreshAllVelocities(Random rand, double refreshmentTime, boolean initializing)
   {
-    final List<Object> variables = model.getLatentVariables();
+    final List<RealVariable> variables = graph.getVariables();
     final int dimensionality = variables.size();
     DoubleMatrix newVelocity = null;
     
@@ -115,7 +210,7 @@ public class LocalRFSampler
     else
     {
       if      (rfOptions.refreshmentMethod == RefreshmentMethod.GLOBAL || 
-          rfOptions.refreshmentMethod == RefreshmentMethod.LOCAL) // this happens at the end of iterate() to force processing everything
+          rfOptions.refreshmentMethod == RefreshmentMethod.LOCAL) // this happens in the parallel modes, between windows or batches
         newVelocity = StaticUtils.standardMultivariateNormal(variables.size(), rand);
       else if (rfOptions.refreshmentMethod == RefreshmentMethod.RESTRICTED)
         newVelocity = StaticUtils.uniformOnUnitBall(variables.size(), rand);
@@ -124,81 +219,128 @@ public class LocalRFSampler
         if (initializing)
           newVelocity = StaticUtils.uniformOnUnitBall(variables.size(), rand);
         else
-          newVelocity = StaticUtils.partialRefreshmentBetaAngle(currentVelocity(variables), rfOptions.alpha, rfOptions.beta, rand);
+          newVelocity = StaticUtils.partialRefreshmentBetaAngle(currentVelocity(), rfOptions.alpha, rfOptions.beta, rand);
       }
       else
         throw new RuntimeException();
     }
     
-    nRefreshments++;
-    nRefreshedVariables += variables.size();
+    countRefreshment(variables.size());
     
-    for (int i = 0; i < dimensionality; i++)
+    for (int variable = 0; variable < dimensionality; variable++)
     {
-      RealVariable variable = (RealVariable) variables.get(i);
-      double currentVelocity = newVelocity.get(i);
+      double currentVelocity = newVelocity.get(variable);
       if (initializing)
-      {
         initTrajectory(refreshmentTime, variable, currentVelocity);
-        updateVariable(variable, refreshmentTime);
-      }
       else
-      {
-        updateVariable(variable, refreshmentTime);
         updateTrajectory(refreshmentTime, variable, currentVelocity);
-      }
     }
-    
-    for (Factor factor : model.linearizedFactors())
-      updateCandidateCollision(rand, (CollisionFactor) factor, refreshmentTime);
   }
   
-  private void localVelocityRefreshment(Random rand, double refreshmentTime)
+  /**
+   * Recompute the candidate collision times of all the factors, and load
+   * them in the queue at once.
+   * 
+   * When nThreads > 1, the factors are processed in parallel, in chunks of
+   * fixed size each having its own random stream (derived from one draw of 
+   * rand), so that the result does not depend on the number of threads.
+   */
+  private void recomputeAllCollisions(Random rand, double time)
+  {
+    final int nFactors = graph.nFactors();
+    if (collisionTimesBuffer == null)
+      collisionTimesBuffer = new double[nFactors];
+    final double [] times = collisionTimesBuffer;
+    if (pool == null)
+      for (int factor = 0; factor < nFactors; factor++)
+        times[factor] = candidateCollisionTime(rand, workspace, factor, time);
+    else
+    {
+      // the streams of the factors, when used, do not depend on the chunks
+      final long seed = workspace.factorRandom == null ? rand.nextLong() : 0L;
+      final int maxDegree = graph.maxFactorDegree();
+      final int nChunks = (nFactors + RECOMPUTE_CHUNK_SIZE - 1) / RECOMPUTE_CHUNK_SIZE;
+      parallel(() -> IntStream.range(0, nChunks).parallel().forEach(chunk -> 
+      {
+        final Random chunkRandom = StaticUtils.substream(seed, chunk);
+        final EventWorkspace chunkWorkspace = new EventWorkspace(trajectories, maxDegree, 0, 0);
+        chunkWorkspace.factorRandom = newFactorRandom();
+        final int end = Math.min(nFactors, (chunk + 1) * RECOMPUTE_CHUNK_SIZE);
+        for (int factor = chunk * RECOMPUTE_CHUNK_SIZE; factor < end; factor++)
+          times[factor] = candidateCollisionTime(chunkRandom, chunkWorkspace, factor, time);
+      }));
+    }
+    _collisionQueue.reset(times);
+  }
+  
+  /**
+   * Run the task in the pool of the parallel modes, and wait for its 
+   * completion.
+   */
+  void parallel(Runnable task)
+  {
+    try
+    {
+      pool.submit(task).get();
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @return A generator of the kind given by the randomStreams option
+   */
+  Random newRandom(long seed)
+  {
+    return rfOptions.randomStreams == RandomStreams.SHARED ? new Random(seed) : new XoroshiroRandom(seed);
+  }
+  
+  /**
+   * @return A generator for the streams of the factors, or null if they are 
+   *   not used
+   */
+  CounterRandom newFactorRandom()
+  {
+    return factorEvents == null ? null : new CounterRandom(factorStreamsSeed);
+  }
+  
+  void localVelocityRefreshment(Random rand, double refreshmentTime)
   {
     // sample a factor
-    CollisionFactor f = allFactors.get(rand.nextInt(allFactors.size()));
-    Collection<?> immediateNeighborVariables = model.neighborLatentVariables(f);
+    final int f = rand.nextInt(graph.nFactors());
+    final IndexSet immediateNeighborVariables = workspace.variables;
+    final IndexSet neighborFactors = workspace.factors;
+    immediateNeighborVariables.clear();
+    graph.addFactorVariables(f, immediateNeighborVariables);
     
     if (immediateNeighborVariables.size() == 1)
     {
       // ensure irreducibility for cases where some factor is connected to only one factor
-      Set<Object> increasedNeighborhood = new HashSet<>();
-      increasedNeighborhood.addAll(immediateNeighborVariables);
-      
-      CollisionFactor f2 = allFactors.get(rand.nextInt(allFactors.size()));
-      Collection<?> immediateNeighborVariables2 = model.neighborLatentVariables(f2);
-      increasedNeighborhood.addAll(immediateNeighborVariables2);
-      
-      immediateNeighborVariables = increasedNeighborhood;
+      final int f2 = rand.nextInt(graph.nFactors());
+      graph.addFactorVariables(f2, immediateNeighborVariables);
     }
     
-    Collection<CollisionFactor> neighborFactors = neighborFactors(immediateNeighborVariables);
-    Collection<?> extendedNeighborVariables = neighborVariables(neighborFactors);
+    graph.neighborFactors(immediateNeighborVariables, neighborFactors);
     
-    nRefreshments++;
-    nRefreshedVariables += immediateNeighborVariables.size();
+    countRefreshment(immediateNeighborVariables.size());
     
     // sample new velocity vector
     final DoubleMatrix newVelocity = StaticUtils.standardMultivariateNormal(immediateNeighborVariables.size(), rand);
     
-    for (Object variable : extendedNeighborVariables)
-      updateVariable(variable, refreshmentTime);
-    
     // 2- update rays for variables in immediate neighborhood (and process)
-    int d = 0;
-    for (Object variable : immediateNeighborVariables)
-      updateTrajectory(refreshmentTime, (RealVariable) variable, newVelocity.get(d++));
+    for (int d = 0; d < immediateNeighborVariables.size(); d++)
+      updateTrajectory(refreshmentTime, immediateNeighborVariables.get(d), newVelocity.get(d));
     
     // 3- recompute the collisions for the other factors touching the variables (including the one we just popped)
-    for (CollisionFactor factor : neighborFactors)
-      updateCandidateCollision(rand, factor, refreshmentTime);
+    for (int i = 0; i < neighborFactors.size(); i++)
+      updateCandidateCollision(rand, neighborFactors.get(i), refreshmentTime);
   }
 
-  private void initTrajectory(double refreshmentTime, RealVariable variable, double currentVelocity)
+  private void initTrajectory(double refreshmentTime, int variable, double currentVelocity)
   {
-    if (trajectories.containsKey(variable))
-      throw new RuntimeException();
-    trajectories.put(variable, new TrajectoryRay(refreshmentTime, variable.getValue(), currentVelocity));
+    trajectories.init(variable, refreshmentTime, graph.getVariable(variable).getValue(), currentVelocity);
   }
   
   public void iterate(Random rand, int maxNumberOfIterations)
@@ -212,32 +354,329 @@ public class LocalRFSampler
   }
 
   private double currentTime = 0.0;
+  
+  /**
+   * Simulate until one of the limits is reached, then make the 
+   * RealVariables and the ray processors up to date.
+   * 
+   * The first call initializes the sampler with rand (see initialize()). 
+   * Later calls continue from the state where the previous one stopped, 
+   * with the random streams set up by the first call (rand is then 
+   * ignored), the limits applying to each call separately.
+   * 
+   * @param maxTrajectoryLen Maximum length of the trajectory simulated by 
+   *   this call
+   */
   public void iterate(Random rand, int maxNumberOfIterations, double maxTrajectoryLen, long maxTimeMilli)
   {
-    if (currentTime > 0.0)
-      throw new RuntimeException("LocalRFSampler.iterate() currently does not support being called several "
-          + "times on the same instance. Create another object.");
-
-    Stopwatch watch = maxTimeMilli == Long.MAX_VALUE ? null : Stopwatch.createStarted();
-
-    globalVelocityRefreshment(rand, 0.0, true);
-    for (RayProcessor rayProc : rayProcessors)
-      rayProc.init(this);
-
-    double nextRefreshmentTime = rfOptions.refreshRate == 0 ? Double.POSITIVE_INFINITY : Exponential.generate(rand, rfOptions.refreshRate);
-    mainLoop : for (int iter = 0; iter < maxNumberOfIterations; iter++)
+    if (random == null)
+      initialize(rand);
+    advance(maxNumberOfIterations, currentTime + maxTrajectoryLen, maxTimeMilli);
+    flushRays();
+  }
+  
+  /**
+   * Set up the random streams, draw the initial velocities and compute all
+   * the collision times. This is done once per sampler, before any of the
+   * advance methods (iterate() calls it if needed).
+   * 
+   * @param rand With RandomStreams.SHARED, used for the whole simulation; 
+   *   otherwise, only to seed the sampler's own streams
+   */
+  public void initialize(Random rand)
+  {
+    if (random != null)
+      throw new RuntimeException("The sampler is already initialized");
+    if (rfOptions.randomStreams != RandomStreams.SHARED)
+      rand = newRandom(rand.nextLong());
+    if (rfOptions.randomStreams == RandomStreams.COUNTER)
+    {
+      factorStreamsSeed = rand.nextLong();
+      factorEvents = new long[graph.nFactors()];
+    }
+    workspace.factorRandom = newFactorRandom();
+    final Random initRandom = random = rand;
+    withWorkers(() -> 
+    {
+      if (rfOptions.nThreads > 1 && rfOptions.parallelMode != ParallelMode.BATCH)
+        // the execution computes the collision times in its own queues
+        refreshAllVelocities(initRandom, 0.0, true);
+      else
+        globalVelocityRefreshment(initRandom, 0.0, true);
+      for (RayProcessor rayProc : rayProcessors)
+        rayProc.init(this);
+      if (rfOptions.nThreads > 1)
+      {
+        if (rfOptions.parallelMode == ParallelMode.OPTIMISTIC)
+          execution = new OptimisticExecution(this, initRandom);
+        else if (rfOptions.parallelMode == ParallelMode.BATCH)
+          execution = new BatchExecution(this, initRandom);
+        else
+          execution = new PartitionedExecution(this, initRandom);
+      }
+      else
+      {
+        nextRefreshmentTime = rfOptions.refreshRate == 0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(initRandom, rfOptions.refreshRate);
+        nextCollectTime = rfOptions.collectRate == 0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(initRandom, rfOptions.collectRate);
+      }
+    });
+  }
+  
+  /**
+   * Continue the simulation up to the given time (see advance()).
+   */
+  public void advanceTo(double time)
+  {
+    if (time < currentTime)
+      throw new RuntimeException("Cannot go back in time: " + time + " < " + currentTime);
+    advance(Long.MAX_VALUE, time, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Continue the simulation for the given trajectory length (see advance()).
+   */
+  public void advanceFor(double duration)
+  {
+    advanceTo(currentTime + duration);
+  }
+  
+  /**
+   * Continue the simulation for the given number of events (see advance()).
+   */
+  public void advanceEvents(long nEvents)
+  {
+    advance(nEvents, Double.POSITIVE_INFINITY, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Continue the simulation from the current state (initialize() should 
+   * have been called), until one of the limits is reached. The 
+   * RealVariables are then set to their position at the time the 
+   * simulation stopped, but the open rays are not passed to the ray 
+   * processors (see flushRays()). 
+   * 
+   * In the sequential mode, simulating in several steps gives the same 
+   * trajectory as simulating at once. In the parallel modes, the windows 
+   * and batches are cut at the end of each step, so the trajectories 
+   * differ but have the same law.
+   * 
+   * @param maxNumberOfEvents Maximum number of collisions and refreshments
+   * @param endTime Time at which to stop (absolute, not relative to the 
+   *   current time)
+   * @param maxTimeMilli Wall clock limit
+   */
+  public void advance(long maxNumberOfEvents, double endTime, long maxTimeMilli)
+  {
+    if (random == null)
+      throw new RuntimeException("The sampler should be initialized first");
+    final Stopwatch watch = maxTimeMilli == Long.MAX_VALUE ? null : Stopwatch.createStarted();
+    withWorkers(() -> 
+    {
+      if (execution != null)
+        currentTime = execution.run(random, maxNumberOfEvents, endTime, maxTimeMilli);
+      else
+        simulate(random, maxNumberOfEvents, endTime, maxTimeMilli, watch);
+    });
+    if (!sharedModel)
+      updateAllVariables(currentTime);
+  }
+  
+  /**
+   * To be called after changing hyper-parameters on which some factors 
+   * depend (see HyperParameterFactor), between calls advancing the 
+   * simulation. The collision times of the dependent factors are 
+   * recomputed from the current time; the trajectories, and hence the 
+   * velocities, are kept.
+   */
+  public void hyperParametersChanged(Object ... hyperParameters)
+  {
+    if (random == null)
+      throw new RuntimeException("The sampler should be initialized first");
+    final IndexSet changed = workspace.factors;
+    changed.clear();
+    for (Object parameter : hyperParameters)
+      for (int factor : graph.hyperParameterFactors(parameter))
+        changed.add(factor);
+    for (int i = 0; i < changed.size(); i++)
+      ((HyperParameterFactor) graph.getFactor(changed.get(i))).hyperParametersChanged();
+    for (int i = 0; i < changed.size(); i++)
+      updateCandidateCollision(random, changed.get(i), currentTime);
+    if (execution != null)
+      execution.collisionTimesChanged();
+  }
+  
+  /**
+   * Pass the open rays, from their start (or from the previous call) to 
+   * the current time, to the ray processors. The trajectories and the 
+   * queue are not modified: when a ray closes later, the processors only 
+   * receive its remaining part.
+   */
+  public void flushRays()
+  {
+    final int nVariables = graph.nVariables();
+    if (flushedTime == null)
+    {
+      flushedTime = new double[nVariables];
+      Arrays.fill(flushedTime, Double.NEGATIVE_INFINITY);
+    }
+    for (int variable = 0; variable < nVariables; variable++)
+    {
+      final double t = trajectories.time(variable);
+      if (Math.max(t, flushedTime[variable]) < currentTime)
+        processRay(variable, t, trajectories.startPosition(variable), trajectories.velocity(variable), currentTime);
+      flushedTime[variable] = currentTime;
+    }
+  }
+  
+  /**
+   * Save the state of the simulation, so that restore() can continue it 
+   * exactly as if it had not been interrupted: the trajectories, the 
+   * collision queue, the generators, the counters, and the state of the 
+   * factors and ray processors implementing Checkpointable.
+   * 
+   * Only supported in the sequential mode (nThreads = 1), between calls 
+   * advancing the simulation. The model itself (in particular the values 
+   * of hyper-parameters) and the point processors are not saved.
+   */
+  public void checkpoint(File file)
+  {
+    if (random == null)
+      throw new RuntimeException("The sampler should be initialized first");
+    if (execution != null)
+      throw new RuntimeException("Checkpoints are only supported in the sequential mode");
+    try (CheckpointWriter out = new CheckpointWriter(file, CHECKPOINT_KIND))
+    {
+      final int nVariables = graph.nVariables(), nFactors = graph.nFactors();
+      out.putInt(nVariables);
+      out.putInt(nFactors);
+      out.putDouble(currentTime);
+      out.putDouble(nextRefreshmentTime);
+      out.putDouble(nextCollectTime);
+      out.putInt(nCollisions);
+      out.putInt(nCollidedVariables);
+      out.putInt(nRefreshments);
+      out.putInt(nRefreshedVariables);
+      out.putInt(pointCollectIter);
+      out.putRandom(random);
+      out.putLong(factorStreamsSeed);
+      out.putLongs(factorEvents);
+      for (int variable = 0; variable < nVariables; variable++)
+      {
+        out.putDouble(trajectories.time(variable));
+        out.putDouble(trajectories.startPosition(variable));
+        out.putDouble(trajectories.velocity(variable));
+      }
+      for (int factor = 0; factor < nFactors; factor++)
+      {
+        out.putDouble(_collisionQueue.time(factor));
+        out.putBoolean(isCollision[factor]);
+      }
+      out.putDoubles(flushedTime);
+      for (int factor = 0; factor < nFactors; factor++)
+        if (graph.getFactor(factor) instanceof Checkpointable)
+          ((Checkpointable) graph.getFactor(factor)).writeState(out);
+      for (RayProcessor rayProc : rayProcessors)
+        if (rayProc instanceof Checkpointable)
+          ((Checkpointable) rayProc).writeState(out);
+      out.commit();
+    }
+  }
+  
+  /**
+   * Load a state saved by checkpoint(), in place of initialize(). The 
+   * sampler should be constructed like the one which saved it (same model, 
+   * options, and ray processors, in the same order). The RealVariables are
+   * set to their positions at the time of the checkpoint, then the ray 
+   * processors are attached with RayProcessor.resume() (instead of init()), 
+   * and read their state if they are Checkpointable. The others only 
+   * record what happens after the checkpoint.
+   */
+  public void restore(File file)
+  {
+    if (random != null)
+      throw new RuntimeException("The sampler is already initialized");
+    if (rfOptions.nThreads > 1)
+      throw new RuntimeException("Checkpoints are only supported in the sequential mode");
+    try (CheckpointReader in = new CheckpointReader(file, CHECKPOINT_KIND))
+    {
+      final int nVariables = graph.nVariables(), nFactors = graph.nFactors();
+      if (in.getInt() != nVariables || in.getInt() != nFactors)
+        throw new RuntimeException("The checkpoint does not match the model: " + file);
+      currentTime = in.getDouble();
+      nextRefreshmentTime = in.getDouble();
+      nextCollectTime = in.getDouble();
+      nCollisions = in.getInt();
+      nCollidedVariables = in.getInt();
+      nRefreshments = in.getInt();
+      nRefreshedVariables = in.getInt();
+      pointCollectIter = in.getInt();
+      final Random restored = in.getRandom();
+      factorStreamsSeed = in.getLong();
+      factorEvents = in.getLongs(null);
+      for (int variable = 0; variable < nVariables; variable++)
+        trajectories.set(variable, in.getDouble(), in.getDouble(), in.getDouble());
+      if (collisionTimesBuffer == null)
+        collisionTimesBuffer = new double[nFactors];
+      for (int factor = 0; factor < nFactors; factor++)
+      {
+        collisionTimesBuffer[factor] = in.getDouble();
+        isCollision[factor] = in.getBoolean();
+      }
+      _collisionQueue.reset(collisionTimesBuffer);
+      flushedTime = in.getDoubles(null);
+      for (int factor = 0; factor < nFactors; factor++)
+        if (graph.getFactor(factor) instanceof Checkpointable)
+          ((Checkpointable) graph.getFactor(factor)).readState(in);
+      workspace.factorRandom = newFactorRandom();
+      random = restored;
+      if (!sharedModel)
+        updateAllVariables(currentTime);
+      for (RayProcessor rayProc : rayProcessors)
+      {
+        rayProc.resume(this);
+        if (rayProc instanceof Checkpointable)
+          ((Checkpointable) rayProc).readState(in);
+      }
+    }
+  }
+  
+  private static final int CHECKPOINT_KIND = 1;
+  
+  /**
+   * Run the task with the pool of the parallel modes, if nThreads > 1.
+   */
+  private void withWorkers(Runnable task)
+  {
+    if (rfOptions.nThreads > 1)
+      pool = new ForkJoinPool(rfOptions.nThreads);
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+      pool = null;
+    }
+  }
+  
+  private void simulate(Random rand, long maxNumberOfEvents, double endTime, long maxTimeMilli, Stopwatch watch)
+  {
+    mainLoop : for (long iter = 0; iter < maxNumberOfEvents; iter++)
     {
       if (watch != null && watch.elapsed(TimeUnit.MILLISECONDS) > maxTimeMilli)
         break mainLoop;
       
       double nextCollisionTime = _collisionQueue.peekTime(); 
       double nextEventTime = Math.min(nextCollisionTime, nextRefreshmentTime);
-      if (nextEventTime > maxTrajectoryLen)
+      if (nextEventTime > endTime)
       {
-        currentTime = maxTrajectoryLen;
+        collectSamples(endTime, rand);
+        currentTime = endTime;
         break mainLoop;
       }
-      collectSamples(currentTime, nextEventTime, rand);
+      collectSamples(nextEventTime, rand);
       if (nextCollisionTime < nextRefreshmentTime)
       {
         doCollision(rand);
@@ -250,26 +689,26 @@ public class LocalRFSampler
           localVelocityRefreshment(rand, nextRefreshmentTime);
         else
           globalVelocityRefreshment(rand, nextRefreshmentTime, false);
-        nextRefreshmentTime += Exponential.generate(rand, rfOptions.refreshRate);
+        nextRefreshmentTime += StaticUtils.generateExponential(rand, rfOptions.refreshRate);
       }
     }
-    // Ensure that the state is globally consistent at the end
-    updateAllVariables(currentTime);
-    
-    // Ensure that the remaining rays are processed 
-    globalVelocityRefreshment(rand, currentTime, false); 
   }
   
-  private void collectSamples(double currentTime, double nextEventTime, Random rand)
+  /**
+   * Collect the points before the given time. The time of the next point 
+   * is kept between calls, so that stopping the simulation at some time 
+   * does not change the random draws.
+   */
+  private void collectSamples(double nextEventTime, Random rand)
   {
-    if (rfOptions.collectRate == 0.0)
-      return;
-    double timeConsumed = currentTime + Exponential.generate(rand, rfOptions.collectRate);
-    while (timeConsumed < nextEventTime)
+    while (nextCollectTime < nextEventTime)
     {
-      updateAllVariables(timeConsumed);
-      processPoint();
-      timeConsumed += Exponential.generate(rand, rfOptions.collectRate);
+      if (!sharedModel)
+      {
+        updateAllVariables(nextCollectTime);
+        processPoint();
+      }
+      nextCollectTime += StaticUtils.generateExponential(rand, rfOptions.collectRate);
     }
   }
   
@@ -277,154 +716,276 @@ public class LocalRFSampler
    * Perform one collision and the associated updates to the queue
    * @param rand
    */
-  private <CollisionType> void doCollision(Random rand)
+  private void doCollision(Random rand)
   {
     // 0 - pop a collision factor
-    final Entry<Double,CollisionFactor> collision = _collisionQueue.pollEvent();
+    final double collisionTime = _collisionQueue.peekTime();
+    final int collisionFactorIndex = _collisionQueue.pollEvent();
     
-    final double collisionTime = collision.getKey();
-    final CollisionFactor collisionFactor = collision.getValue();
-    final boolean isActualCollision = isCollisionMap.get(collisionFactor);
+    final boolean isActualCollision = isCollision[collisionFactorIndex];
     
-    // TODO: if isActualCollision is false, it might be possible to update only a subset
-    // of the nodes below
-    Collection<?> immediateNeighborVariables = model.neighborLatentVariables(collisionFactor);
-    Collection<CollisionFactor> neighborFactors = neighborFactors(immediateNeighborVariables);
-    Collection<?> extendedNeighborVariables = neighborVariables(neighborFactors);
+    countCollision(graph.factorDegree(collisionFactorIndex));
     
-    nCollisions++;
-    nCollidedVariables += immediateNeighborVariables.size();
-    
-    // 1- update RealVariables in extended neighborhood
-    for (Object variable : extendedNeighborVariables)
-      updateVariable(variable, collisionTime);
-    
-    // 2- update rays for variables in immediate neighborhood (and process)
-    if (isActualCollision)
-      collideTrajectories(collisionFactor, collisionTime);
-    
-    if (isActualCollision)
-    {
-      // 3- recompute the collisions for the other factors touching the variables (including the one we just popped)
-      for (CollisionFactor factor : neighborFactors)
-        updateCandidateCollision(rand, factor, collisionTime);
-    }
-    else
+    if (!isActualCollision)
     {
-      // 3b- the collision is actually just a trigger to recompute the next collision time
-      updateCandidateCollision(rand, collisionFactor, collisionTime);
+      // the collision is actually just a trigger to recompute the next collision time:
+      // no velocity changes, so the neighbors' collision times are still valid
+      updateCandidateCollision(rand, collisionFactorIndex, collisionTime);
+      return;
     }
-  }
-  
-  private void updateCandidateCollision(Random rand, CollisionFactor factor, double currentTime)
-  {
-    _collisionQueue.remove(factor);
     
-    CollisionContext context = new CollisionContext(rand, getVelocityMatrix(factor));
-    Pair<Double, Boolean> collisionInfo = factor.getLowerBoundForCollisionDeltaTime(context);
+    final IndexSet neighborFactors = workspace.factors;
+    graph.neighborFactors(collisionFactorIndex, neighborFactors);
     
-    double candidateCollisionTime = currentTime + collisionInfo.getLeft();
-    isCollisionMap.put(factor, collisionInfo.getRight());
-    
-    if (_collisionQueue.containsTime(candidateCollisionTime))
-    {
-      System.err.println("The sampler has hit an event of probability zero: two collisions scheduled exactly at the same time.");
-      System.err.println("Because of numerical precision, this could possibly happen, but very rarely.");
-      
-      System.err.println("For internal implementation reasons, one of the collisions at time " + candidateCollisionTime + " was moved to " + (candidateCollisionTime + epsilon));
-      candidateCollisionTime += epsilon;
-    }
+    // 1- update rays for variables in immediate neighborhood (and process)
+    collideTrajectories(workspace, collisionFactorIndex, collisionTime);
     
-    _collisionQueue.add(factor, candidateCollisionTime);
+    // 2- recompute the collisions for the other factors touching the variables (including the one we just popped)
+    for (int i = 0; i < neighborFactors.size(); i++)
+      updateCandidateCollision(rand, neighborFactors.get(i), collisionTime);
   }
   
-  private static final double epsilon = 1;
-  
+  private void updateCandidateCollision(Random rand, int factorIndex, double currentTime)
+  {
+    // Note: ties are supported by the queue, and an infinite time removes the factor from it
+    _collisionQueue.update(factorIndex, candidateCollisionTime(rand, workspace, factorIndex, currentTime));
+  }
+
   /**
-   * @param neighborFactors
-   * @return Distinct neighbors variables of the provided factors
+   * Ask the factor for its next candidate collision time, and record in
+   * isCollision whether it is an actual collision or only a bound.
+   *
+   * Variables frozen in the workspace are seen at their frozen position,
+   * with a zero velocity. If the workspace has a factorRandom, rand is 
+   * ignored and the next event of the factor's stream is used instead.
+   *
+   * @return The absolute time of the next candidate collision
    */
-  private Collection<?> neighborVariables(
-      Collection<CollisionFactor> neighborFactors)
+  double candidateCollisionTime(Random rand, EventWorkspace ws, int factorIndex, double currentTime)
   {
-    HashSet<Object> result = new LinkedHashSet<>();
-    for (CollisionFactor factor : neighborFactors)
-      for (Object variable : model.neighborLatentVariables(factor))
-        result.add(variable);
-    return result;
+    if (ws.factorRandom != null)
+    {
+      ws.factorRandom.seek(factorIndex, factorEvents[factorIndex]++);
+      rand = ws.factorRandom;
+    }
+    final CollisionFactor factor = graph.getFactor(factorIndex);
+    final double deltaTime;
+
+    if (factor instanceof PrimitiveCollisionFactor)
+    {
+      final PrimitiveCollisionContext primitiveContext = ws.context;
+      fillPrimitiveContext(ws, factorIndex, currentTime);
+      primitiveContext.random = rand;
+      primitiveContext.isExactCollision = true;
+      deltaTime = ((PrimitiveCollisionFactor) factor).getLowerBoundForCollisionDeltaTime(primitiveContext);
+      isCollision[factorIndex] = primitiveContext.isExactCollision;
+    }
+    else
+    {
+      updateFactorVariables(ws, factorIndex, currentTime);
+      CollisionContext context = new CollisionContext(rand, getVelocityMatrix(ws, factorIndex));
+      Pair<Double, Boolean> collisionInfo = factor.getLowerBoundForCollisionDeltaTime(context);
+      deltaTime = collisionInfo.getLeft();
+      isCollision[factorIndex] = collisionInfo.getRight();
+    }
+
+    return currentTime + deltaTime;
   }
 
   /**
-   * @param immediateNeighborVariables
-   * @return Distinct neighbor factors of the provided variables
+   * Write the position at the given time and the velocity of the variables
+   * connected to the factor in the workspace's primitive context.
    */
-  private Collection<CollisionFactor> neighborFactors(
-      Collection<?> immediateNeighborVariables)
+  private void fillPrimitiveContext(EventWorkspace ws, int factor, double time)
   {
-    HashSet<CollisionFactor> result = new LinkedHashSet<>();
-    for (Object variable : immediateNeighborVariables)
-      for (Factor factor : model.neighborFactors(variable))
-        result.add((CollisionFactor) factor);
-    return result;
+    final PrimitiveCollisionContext primitiveContext = ws.context;
+    final int length = graph.factorDegree(factor);
+    for (int i = 0; i < length; i++)
+    {
+      final int variable = graph.factorVariable(factor, i);
+      if (ws.isFrozen(variable))
+      {
+        primitiveContext.position[i] = ws.trajectories.position(ws.slot(variable), ws.frozenTime);
+        primitiveContext.velocity[i] = 0.0;
+      }
+      else
+      {
+        final int slot = ws.slot(variable);
+        primitiveContext.position[i] = ws.trajectories.position(slot, time);
+        primitiveContext.velocity[i] = ws.trajectories.velocity(slot);
+      }
+    }
   }
 
   /**
    * Update all trajectories affected by one collision (i.e. those connected to the
-   * colliding factor)
+   * colliding factor, except the ones frozen in the workspace)
+   * @param ws
    * @param collisionFactor
    * @param collisionTime
    */
-  private void collideTrajectories(CollisionFactor collisionFactor, double collisionTime)
+  void collideTrajectories(EventWorkspace ws, int collisionFactor, double collisionTime)
   {
-    DoubleMatrix gradient = collisionFactor.gradient();
-    DoubleMatrix oldVelocity = getVelocityMatrix(collisionFactor);
+    final CollisionFactor factor = graph.getFactor(collisionFactor);
+    final int length = graph.factorDegree(collisionFactor);
+    if (factor instanceof PrimitiveCollisionFactor)
+    {
+      final PrimitiveCollisionContext primitiveContext = ws.context;
+      final double [] gradientBuffer = ws.gradient;
+      fillPrimitiveContext(ws, collisionFactor, collisionTime);
+      ((PrimitiveCollisionFactor) factor).gradient(primitiveContext.position, gradientBuffer);
+      for (int i = 0; i < length; i++)
+        if (ws.isFrozen(graph.factorVariable(collisionFactor, i)))
+          gradientBuffer[i] = 0.0;
+      StaticUtils.bounceInPlace(primitiveContext.velocity, gradientBuffer, length);
+      for (int i = 0; i < length; i++)
+      {
+        final int variable = graph.factorVariable(collisionFactor, i);
+        if (!ws.isFrozen(variable))
+          updateTrajectory(ws, collisionTime, variable, primitiveContext.velocity[i]);
+      }
+      return;
+    }
+
+    updateFactorVariables(ws, collisionFactor, collisionTime);
+    DoubleMatrix gradient = factor.gradient();
+    for (int i = 0; i < length; i++)
+      if (ws.isFrozen(graph.factorVariable(collisionFactor, i)))
+        gradient.put(i, 0.0);
+    DoubleMatrix oldVelocity = getVelocityMatrix(ws, collisionFactor);
     DoubleMatrix newVelocity = StaticUtils.bounce(oldVelocity, gradient);
-    
-    final int length = newVelocity.length;
+
     for (int i = 0; i < length; i++)
     {
-      RealVariable variable = collisionFactor.getVariable(i);
+      int variable = graph.factorVariable(collisionFactor, i);
+      if (ws.isFrozen(variable))
+        continue;
       double newVelocityCoordinate = newVelocity.get(i);
-      updateTrajectory(collisionTime, variable, newVelocityCoordinate);
+      updateTrajectory(ws, collisionTime, variable, newVelocityCoordinate);
     }
   }
 
+  private void updateTrajectory(double time, int variable, double newVelocity)
+  {
+    updateTrajectory(workspace, time, variable, newVelocity);
+  }
+
   /**
-   * Update one trajectory coordinate (a single real variable)
+   * Update one trajectory coordinate (a single real variable) in the 
+   * workspace's TrajectoryStore. The ray closed by the update is added to 
+   * the workspace's ray buffer if it has one, and processed right away 
+   * otherwise (unless the workspace does not record rays for that variable).
+   * @param ws
    * @param time
    * @param variable
    * @param newVelocity
    */
-  private void updateTrajectory(double time, RealVariable variable,
+  void updateTrajectory(EventWorkspace ws, double time, int variable,
       double newVelocity)
   {
-    TrajectoryRay oldRay = trajectories.get(variable);
-    double newPosition = oldRay.position(time);
-    TrajectoryRay newRay = new TrajectoryRay(time, newPosition, newVelocity);
-    trajectories.put(variable, newRay);
-    processRay(variable, oldRay, time);
+    final TrajectoryStore store = ws.trajectories;
+    final int slot = ws.slot(variable);
+    final double
+      oldT = store.time(slot),
+      oldPosition = store.startPosition(slot),
+      oldVelocity = store.velocity(slot);
+    store.update(slot, time, newVelocity);
+    if (!ws.recordsRays(variable))
+      return;
+    if (ws.rays == null)
+      processRay(variable, oldT, oldPosition, oldVelocity, time);
+    else if (!rayProcessors.isEmpty())
+      ws.rays.add(variable, oldT, oldPosition, oldVelocity, time);
   }
 
-  private DoubleMatrix getVelocityMatrix(CollisionFactor factor)
+  private DoubleMatrix getVelocityMatrix(EventWorkspace ws, int factor)
   {
-    final int length = factor.nVariables();
+    final int length = graph.factorDegree(factor);
     DoubleMatrix result = new DoubleMatrix(length);
     for (int i = 0; i < length; i++)
-      result.put(i, trajectories.get(factor.getVariable(i)).velocity_t);
+    {
+      final int variable = graph.factorVariable(factor, i);
+      result.data[i] = ws.isFrozen(variable) ? 0.0 : ws.trajectories.velocity(ws.slot(variable));
+    }
     return result;
   }
 
+  /**
+   * Factors which are not PrimitiveCollisionFactors read their positions
+   * from the RealVariables, so these are synchronized with the trajectories
+   * right before calling them.
+   */
+  private void updateFactorVariables(EventWorkspace ws, int factor, double currentTime)
+  {
+    for (int i = 0; i < graph.factorDegree(factor); i++)
+    {
+      final int variable = graph.factorVariable(factor, i);
+      final double time = ws.isFrozen(variable) ? ws.frozenTime : currentTime;
+      graph.getVariable(variable).setValue(ws.trajectories.position(ws.slot(variable), time));
+    }
+  }
+
+  void countCollision(int nVariables)
+  {
+    nCollisions++;
+    nCollidedVariables += nVariables;
+  }
+
+  void countRefreshment(int nVariables)
+  {
+    nRefreshments++;
+    nRefreshedVariables += nVariables;
+  }
+
+  void countEvents(int nCollisions, int nCollidedVariables, int nRefreshments, int nRefreshedVariables)
+  {
+    this.nCollisions += nCollisions;
+    this.nCollidedVariables += nCollidedVariables;
+    this.nRefreshments += nRefreshments;
+    this.nRefreshedVariables += nRefreshedVariables;
+  }
+
   public void updateVariable(Object _variable, double currentTime)
   {
-    RealVariable variable = (RealVariable) _variable;
-    TrajectoryRay ray = trajectories.get(variable);
-    variable.setValue(ray.position(currentTime));
+    updateVariable(graph.variableIndex(_variable), currentTime);
   }
   
+  private void updateVariable(int variable, double currentTime)
+  {
+    graph.getVariable(variable).setValue(trajectories.position(variable, currentTime));
+  }
+  
+  /**
+   * During iterate(), the RealVariables are not kept in sync with the 
+   * trajectories; they are only updated before calling point processors
+   * and at the end of iterate(). Ray processors needing the values should 
+   * call this method (or updateVariable()) first.
+   * 
+   * @param currentTime
+   */
   public void updateAllVariables(double currentTime)
   {
-    for (Object var : model.getLatentVariables())
-      updateVariable(var, currentTime);
+    for (int variable = 0; variable < graph.nVariables(); variable++)
+      updateVariable(variable, currentTime);
+  }
+  
+  /**
+   * @param variable
+   * @return A copy of the current ray of the given variable
+   */
+  public TrajectoryRay getRay(RealVariable variable)
+  {
+    return trajectories.getRay(graph.variableIndex(variable));
+  }
+  
+  /**
+   * @return The position of the variable at the time where the simulation 
+   *   stopped (the RealVariable holds the same value, unless the model is 
+   *   shared by several samplers)
+   */
+  public double getPosition(RealVariable variable)
+  {
+    return trajectories.position(graph.variableIndex(variable), currentTime);
   }
   
   public double getTrajectoryLength()
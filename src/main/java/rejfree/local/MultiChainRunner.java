@@ -0,0 +1,255 @@
+package rejfree.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import com.google.common.base.Stopwatch;
+
+import rejfree.StaticUtils;
+import rejfree.processors.BatchMeansRayProcessor;
+import rejfree.processors.MomentRayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+import briefj.OutputManager;
+import briefj.opt.OptionSet;
+import briefj.run.Results;
+
+
+
+/**
+ * Runs independent chains of the local sampler on one model, e.g. to 
+ * compute R-hat.
+ * 
+ * The model is built and its factor graph compiled once, and shared by all
+ * the chains: each chain only owns its state (trajectories, collision 
+ * queue, generators, and processors), so the memory and construction time
+ * of the model are not multiplied by the number of chains. The chains 
+ * never write the RealVariables of the model (see 
+ * LocalRFSampler.getPosition()), and require PrimitiveCollisionFactors.
+ * 
+ * Each chain simulates a trajectory of the same length, sequentially, 
+ * starting from the values of the RealVariables, the chains running in 
+ * parallel on a pool of threads; chain k uses the substream k of the 
+ * seed, so the result does not depend on the number of threads.
+ */
+public class MultiChainRunner
+{
+  @OptionSet(name = "runnerOptions")
+  public final MultiChainRunnerOptions options;
+  
+  public MultiChainRunner(MultiChainRunnerOptions options)
+  {
+    this.options = options;
+  }
+  
+  public MultiChainRunner()
+  {
+    this.options = new MultiChainRunnerOptions();
+  }
+  
+  public ProbabilityModel model;
+  private FactorGraphIndex graph;
+  
+  public final List<LocalRFSampler> chains = new ArrayList<>();
+  public final List<MomentRayProcessor> moments = new ArrayList<>();
+  public final List<BatchMeansRayProcessor> batchMeans = new ArrayList<>();
+  
+  public OutputManager output = Results.getGlobalOutputManager();
+  
+  public void init(Object modelSpec)
+  {
+    if (model != null)
+      throw new RuntimeException("Model already initialized.");
+    if (options.nChains < 2)
+      throw new RuntimeException("At least two chains are needed: " + options.nChains);
+    model = new ProbabilityModel(modelSpec);
+    graph = FactorGraphIndex.compile(model, options.rfOptions.precomputeNeighborhoods);
+    for (int chain = 0; chain < options.nChains; chain++)
+    {
+      final LocalRFSampler sampler = new LocalRFSampler(model, graph, options.rfOptions, true);
+      final MomentRayProcessor moment = new MomentRayProcessor();
+      final BatchMeansRayProcessor batches = new BatchMeansRayProcessor(options.trajectoryLength / options.nBatches, options.nBatches);
+      sampler.addRayProcessor(moment);
+      sampler.addRayProcessor(batches);
+      chains.add(sampler);
+      moments.add(moment);
+      batchMeans.add(batches);
+    }
+  }
+  
+  private void checkInit()
+  {
+    if (model == null)
+      throw new RuntimeException("Model should first be initialized.");
+  }
+  
+  public Stopwatch watch = null;
+  public void run()
+  {
+    checkInit();
+    
+    watch = Stopwatch.createStarted();
+    final ForkJoinPool pool = new ForkJoinPool(options.nThreads);
+    try
+    {
+      pool.submit(() -> IntStream.range(0, options.nChains).parallel().forEach(this::runChain)).get();
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    watch.stop();
+    
+    if (!options.silent)
+    {
+      long nCollisions = 0, nRefreshments = 0;
+      for (LocalRFSampler chain : chains)
+      {
+        nCollisions += chain.getNCollisions();
+        nRefreshments += chain.getNRefreshments();
+      }
+      output.printWrite("general-sampler-diagnostic", 
+          "wallClockTimeMilli", watch.elapsed(TimeUnit.MILLISECONDS), 
+          "nChains", options.nChains,
+          "trajectoryLength", options.trajectoryLength,
+          "nCollisions", nCollisions,
+          "nRefreshments", nRefreshments);
+      final List<RealVariable> variables = graph.getVariables();
+      for (int i = 0; i < variables.size(); i++)
+      {
+        final RealVariable variable = variables.get(i);
+        output.printWrite("multi-chain-diagnostic",
+            "variable", i,
+            "mean", getMean(variable),
+            "variance", getVariance(variable),
+            "rHat", getRHat(variable),
+            "ess", getESS(variable));
+      }
+    }
+    output.flush();
+  }
+  
+  private void runChain(int chain)
+  {
+    final LocalRFSampler sampler = chains.get(chain);
+    sampler.initialize(StaticUtils.substream(options.seed, chain));
+    sampler.advanceTo(options.trajectoryLength);
+    sampler.flushRays();
+  }
+  
+  public List<RealVariable> getVariables()
+  {
+    checkInit();
+    return Collections.unmodifiableList(graph.getVariables());
+  }
+  
+  /**
+   * @return The mean of the variable over all the chains
+   */
+  public double getMean(RealVariable variable)
+  {
+    double sum = 0.0;
+    for (MomentRayProcessor moment : moments)
+      sum += moment.getMeanEstimate(variable);
+    return sum / options.nChains;
+  }
+  
+  /**
+   * @return The variance of the variable over all the chains pooled
+   */
+  public double getVariance(RealVariable variable)
+  {
+    double sumSq = 0.0;
+    for (MomentRayProcessor moment : moments)
+      sumSq += moment.getSquaredVariableEstimate(variable);
+    final double mean = getMean(variable);
+    return sumSq / options.nChains - mean * mean;
+  }
+  
+  /**
+   * Potential scale reduction factor, sqrt((W + B) / W), where W is the 
+   * mean of the variances within the chains and B the sample variance of 
+   * the means of the chains (the form taken by Gelman and Rubin's 
+   * estimate when the number of samples per chain goes to infinity, as 
+   * for a continuous trajectory).
+   */
+  public double getRHat(RealVariable variable)
+  {
+    final double mean = getMean(variable);
+    double within = 0.0, between = 0.0;
+    for (MomentRayProcessor moment : moments)
+    {
+      within += moment.getVarianceEstimate(variable);
+      final double delta = moment.getMeanEstimate(variable) - mean;
+      between += delta * delta;
+    }
+    within /= options.nChains;
+    between /= options.nChains - 1;
+    return Math.sqrt((within + between) / within);
+  }
+  
+  /**
+   * @return The standard error of the mean over all the chains, estimated 
+   *   from their batch means (see getESS())
+   */
+  public double getMeanStandardError(RealVariable variable)
+  {
+    return Math.sqrt(getVariance(variable) / getESS(variable));
+  }
+  
+  /**
+   * @return The standard error of the pooled variance, from the batch 
+   *   means of x^2 - 2 mu x around their mean over all the chains, where mu
+   *   is the pooled mean (delta method)
+   */
+  public double getVarianceStandardError(RealVariable variable)
+  {
+    final double mean = getMean(variable);
+    final int nBatches = options.nBatches, total = options.nChains * nBatches;
+    final double [] linearized = new double[total];
+    double linearizedMean = 0.0;
+    for (int chain = 0; chain < options.nChains; chain++)
+      for (int batch = 0; batch < nBatches; batch++)
+      {
+        final BatchMeansRayProcessor batches = batchMeans.get(chain);
+        final double value = batches.getBatchMeanSq(variable, batch) - 2.0 * mean * batches.getBatchMean(variable, batch);
+        linearized[chain * nBatches + batch] = value;
+        linearizedMean += value / total;
+      }
+    double sumSq = 0.0;
+    for (double value : linearized)
+      sumSq += (value - linearizedMean) * (value - linearizedMean);
+    return Math.sqrt(sumSq / (total - 1) / total);
+  }
+  
+  /**
+   * Effective sample size of the mean over all the chains, from their 
+   * batch means: the pooled variance divided by the variance of the mean, 
+   * the latter estimated as the variance of the batch means (around the 
+   * mean of all the chains) divided by the total number of batches. 
+   */
+  public double getESS(RealVariable variable)
+  {
+    final double mean = getMean(variable);
+    final int nBatches = options.nBatches;
+    double sumSq = 0.0;
+    for (BatchMeansRayProcessor batches : batchMeans)
+      for (int batch = 0; batch < nBatches; batch++)
+      {
+        final double delta = batches.getBatchMean(variable, batch) - mean;
+        sumSq += delta * delta;
+      }
+    final int total = options.nChains * nBatches;
+    final double batchVariance = sumSq / (total - 1);
+    return total * getVariance(variable) / batchVariance;
+  }
+}
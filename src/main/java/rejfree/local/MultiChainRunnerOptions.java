@@ -0,0 +1,31 @@
+package rejfree.local;
+
+import rejfree.RFSamplerOptions;
+import briefj.opt.Option;
+import briefj.opt.OptionSet;
+
+
+
+public class MultiChainRunnerOptions
+{
+  @Option
+  public int nChains = 4;
+  
+  @Option(gloss = "Number of threads running the chains (each chain is sequential)")
+  public int nThreads = 4;
+  
+  @Option(gloss = "Length of the trajectory of each chain")
+  public double trajectoryLength = 1000.0;
+  
+  @Option(gloss = "Number of batches per chain used to estimate the effective sample size")
+  public int nBatches = 50;
+  
+  @Option(gloss = "Chain k uses the substream k of this seed")
+  public long seed = 1;
+  
+  @OptionSet(name = "rfOptions")
+  public RFSamplerOptions rfOptions = new RFSamplerOptions();
+
+  @Option
+  public boolean silent = false;
+}
@@ -0,0 +1,480 @@
+package rejfree.local;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.jblas.DoubleMatrix;
+
+import com.google.common.base.Stopwatch;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.RefreshmentMethod;
+import rejfree.StaticUtils;
+
+
+
+/**
+ * Optimistic (Time Warp style) parallel mode of LocalRFSampler.
+ *
+ * Each factor is owned by one region of a GraphPartition, and each region
+ * keeps a private copy of the trajectories of the variables its factors
+ * touch. Time is cut in windows [t0, t1); the state at t0 (the global
+ * TrajectoryStore) plays the role of the global virtual time checkpoint.
+ * Within a window:
+ * <ol>
+ * <li>each region speculatively processes the events of its factors, in
+ *   parallel, assuming that the other regions do not change the shared
+ *   (boundary) variables; the changes it makes to the shared variables are
+ *   logged as messages;</li>
+ * <li>each region whose incoming messages differ from the ones assumed
+ *   in its last run is rolled back to t0 and re-executed with the new
+ *   messages. The random stream of a region is re-seeded identically at
+ *   each re-execution, so a re-execution reproduces the previous run up to
+ *   the first changed message;</li>
+ * <li>when no region needs to roll back, the runs are mutually consistent
+ *   and are committed: the trajectories are written back, and the rays are
+ *   handed to the RayProcessors in time order.</li>
+ * </ol>
+ * Step 2 terminates since the time of the earliest inconsistent message
+ * increases strictly at each round (messages are compared up to round-off).
+ *
+ * The committed process has the law of the sequential sampler (the random
+ * streams differ, so not the same trajectories), with one exception: when
+ * a local refreshment picks a factor connected to a single variable, the
+ * second factor is picked within the same region. Points are collected at
+ * the end of each window.
+ *
+ * Only PrimitiveCollisionFactors are supported, since other factors read
+ * their positions from shared RealVariables.
+ */
+class OptimisticExecution implements ParallelExecution
+{
+  private final LocalRFSampler sampler;
+  private final FactorGraphIndex graph;
+  private final GraphPartition partition;
+  private final RFSamplerOptions options;
+
+  /*
+   * The region responsible for the rays of each variable, -1 for
+   * variables not connected to any factor
+   */
+  private final int [] variableOwner;
+
+  /*
+   * Index of each factor among the factors of its region
+   */
+  private final int [] localFactorIndex;
+
+  private final Region [] regions;
+  private final RayBuffer [] regionRays;
+
+  private double nextRefreshmentTime, windowStart = 0.0;
+
+  OptimisticExecution(LocalRFSampler sampler, Random rand)
+  {
+    this.sampler = sampler;
+    this.graph = sampler.getFactorGraph();
+    this.options = sampler.rfOptions;
+    for (CollisionFactor factor : graph.getFactors())
+      if (!(factor instanceof PrimitiveCollisionFactor))
+        throw new RuntimeException("The optimistic parallel mode only supports PrimitiveCollisionFactors: " + factor);
+    this.partition = GraphPartition.compile(graph, options.nThreads);
+
+    this.variableOwner = new int[graph.nVariables()];
+    for (int v = 0; v < graph.nVariables(); v++)
+      variableOwner[v] = graph.variableDegree(v) == 0 ? -1 : partition.factorRegion[graph.variableFactor(v, 0)];
+
+    final int nRegions = partition.nRegions;
+    final int [] regionSizes = new int[nRegions];
+    this.localFactorIndex = new int[graph.nFactors()];
+    for (int f = 0; f < graph.nFactors(); f++)
+      localFactorIndex[f] = regionSizes[partition.factorRegion[f]]++;
+    this.regions = new Region[nRegions];
+    this.regionRays = new RayBuffer[nRegions];
+    for (int r = 0; r < nRegions; r++)
+      regions[r] = new Region(r, regionSizes[r], sampler.newRandom(rand.nextLong()));
+    for (int f = 0; f < graph.nFactors(); f++)
+      regions[partition.factorRegion[f]].factors[localFactorIndex[f]] = f;
+    for (int r = 0; r < nRegions; r++)
+    {
+      regions[r].indexVariables();
+      regionRays[r] = regions[r].workspace.rays;
+    }
+    final boolean globalRefresh = options.refreshmentMethod != RefreshmentMethod.LOCAL;
+    this.nextRefreshmentTime = !globalRefresh || options.refreshRate == 0 ?
+        Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, options.refreshRate);
+  }
+
+  @Override
+  public double run(Random rand, long maxNumberOfEvents, double endTime, long maxTimeMilli)
+  {
+    final Stopwatch watch = maxTimeMilli == Long.MAX_VALUE ? null : Stopwatch.createStarted();
+    final boolean [] rollback = new boolean[regions.length];
+    long nIterations = 0;
+    while (windowStart < endTime && nIterations < maxNumberOfEvents)
+    {
+      if (watch != null && watch.elapsed(TimeUnit.MILLISECONDS) > maxTimeMilli)
+        break;
+      final double
+        t0 = windowStart,
+        t1 = Math.min(Math.min(windowStart + options.windowLength, endTime), nextRefreshmentTime);
+
+      for (Region region : regions)
+      {
+        region.startWindow();
+        region.input.clear();
+      }
+      Arrays.fill(rollback, true);
+      boolean consistent = false;
+      while (!consistent)
+      {
+        sampler.parallel(() -> IntStream.range(0, regions.length).parallel().filter(r -> rollback[r]).forEach(r -> regions[r].simulate(t0, t1)));
+        consistent = true;
+        for (Region region : regions)
+        {
+          region.collectInput();
+          rollback[region.id] = !region.input.matches(region.nextInput);
+          if (rollback[region.id])
+          {
+            region.swapInputs();
+            consistent = false;
+          }
+        }
+      }
+
+      // commit
+      for (Region region : regions)
+      {
+        region.commit();
+        nIterations += region.collectCounts();
+      }
+      RayBuffer.flush(sampler, regionRays);
+
+      if (nextRefreshmentTime == t1)
+      {
+        sampler.refreshAllVelocities(rand, t1, false);
+        nextRefreshmentTime += StaticUtils.generateExponential(rand, options.refreshRate);
+      }
+
+      if (options.collectRate > 0.0)
+      {
+        sampler.updateAllVariables(t1);
+        sampler.processPoint();
+      }
+      windowStart = t1;
+    }
+    return windowStart;
+  }
+
+  /**
+   * Changes of velocity of shared variables, sorted by time.
+   */
+  private static class MessageLog
+  {
+    private static final double TOLERANCE = 1e-10;
+
+    private int size = 0;
+    private double [] times = new double[16];
+    private int [] variables = new int[16];
+    private double [] velocities = new double[16];
+
+    void add(double time, int variable, double velocity)
+    {
+      if (size == times.length)
+      {
+        times = Arrays.copyOf(times, 2 * size);
+        variables = Arrays.copyOf(variables, 2 * size);
+        velocities = Arrays.copyOf(velocities, 2 * size);
+      }
+      times[size] = time;
+      variables[size] = variable;
+      velocities[size] = velocity;
+      size++;
+    }
+
+    void clear()
+    {
+      size = 0;
+    }
+
+    /**
+     * Equality up to round-off: factors may cache intermediate results
+     * (e.g. NormalFactor), so a re-execution only reproduces the previous
+     * run up to round-off.
+     */
+    boolean matches(MessageLog other)
+    {
+      if (size != other.size)
+        return false;
+      for (int i = 0; i < size; i++)
+        if (variables[i] != other.variables[i] ||
+            !close(times[i], other.times[i]) ||
+            !close(velocities[i], other.velocities[i]))
+          return false;
+      return true;
+    }
+
+    private static boolean close(double a, double b)
+    {
+      return Math.abs(a - b) <= TOLERANCE * Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+    }
+  }
+
+  /**
+   * A worker owning a set of factors.
+   */
+  private class Region
+  {
+    final int id;
+    final int [] factors;
+    final Random master;
+    final double refreshRate;
+
+    /*
+     * The variables touched by the factors of the region (filled by
+     * indexVariables()), and their index in the private store
+     */
+    int [] variables;
+    final int [] storeIndex;
+    TrajectoryStore store;
+    EventWorkspace workspace;
+    final IndexedEventQueue queue;
+
+    /*
+     * Messages received from the other regions, as assumed in the last run,
+     * and as computed from the outputs of the last runs
+     */
+    MessageLog input = new MessageLog(), nextInput = new MessageLog();
+    final MessageLog output = new MessageLog();
+
+    long windowSeed;
+    int nCollisions, nCollidedVariables, nRefreshments, nRefreshedVariables;
+
+    Region(int id, int nFactors, Random master)
+    {
+      this.id = id;
+      this.factors = new int[nFactors];
+      this.master = master;
+      this.queue = new IndexedEventQueue(nFactors);
+      this.storeIndex = new int[graph.nVariables()];
+      this.refreshRate = options.refreshmentMethod == RefreshmentMethod.LOCAL ?
+          options.refreshRate * nFactors / graph.nFactors() : 0.0;
+    }
+
+    void indexVariables()
+    {
+      Arrays.fill(storeIndex, -1);
+      int nVariables = 0;
+      for (int f : factors)
+        for (int i = 0; i < graph.factorDegree(f); i++)
+        {
+          final int v = graph.factorVariable(f, i);
+          if (storeIndex[v] == -1)
+            storeIndex[v] = nVariables++;
+        }
+      variables = new int[nVariables];
+      for (int v = 0; v < graph.nVariables(); v++)
+        if (storeIndex[v] != -1)
+          variables[storeIndex[v]] = v;
+      store = new TrajectoryStore(nVariables);
+      workspace = new EventWorkspace(store, graph.maxFactorDegree(), nVariables, factors.length);
+      workspace.storeIndex = storeIndex;
+      workspace.rays = new RayBuffer();
+      workspace.variableOwner = variableOwner;
+      workspace.owner = id;
+    }
+
+    void startWindow()
+    {
+      windowSeed = master.nextLong();
+    }
+
+    /**
+     * Restore the state at t0, and process the events of the region
+     * and the input messages in [t0, t1).
+     */
+    void simulate(double t0, double t1)
+    {
+      final TrajectoryStore checkpoint = sampler.trajectories;
+      for (int i = 0; i < variables.length; i++)
+      {
+        final int v = variables[i];
+        store.set(i, checkpoint.time(v), checkpoint.startPosition(v), checkpoint.velocity(v));
+      }
+      workspace.rays.clear();
+      output.clear();
+      nCollisions = nCollidedVariables = nRefreshments = nRefreshedVariables = 0;
+
+      final Random rand = sampler.newRandom(windowSeed);
+      for (int i = 0; i < factors.length; i++)
+        queue.update(i, sampler.candidateCollisionTime(rand, workspace, factors[i], t0));
+      double nextRefreshmentTime = refreshRate == 0.0 ? Double.POSITIVE_INFINITY : t0 + StaticUtils.generateExponential(rand, refreshRate);
+      int nextMessage = 0;
+
+      while (true)
+      {
+        final double
+          nextCollisionTime = queue.isEmpty() ? Double.POSITIVE_INFINITY : queue.peekTime(),
+          nextMessageTime = nextMessage < input.size ? input.times[nextMessage] : Double.POSITIVE_INFINITY;
+        if (Math.min(Math.min(nextCollisionTime, nextRefreshmentTime), nextMessageTime) >= t1)
+          return;
+        if (nextMessageTime <= nextCollisionTime && nextMessageTime <= nextRefreshmentTime)
+        {
+          final int v = input.variables[nextMessage];
+          sampler.updateTrajectory(workspace, nextMessageTime, v, input.velocities[nextMessage]);
+          nextMessage++;
+          workspace.factors.clear();
+          addOwnFactors(v);
+          reschedule(rand, nextMessageTime);
+        }
+        else if (nextCollisionTime < nextRefreshmentTime)
+          doCollision(rand, nextCollisionTime);
+        else
+        {
+          localVelocityRefreshment(rand, nextRefreshmentTime);
+          nextRefreshmentTime += StaticUtils.generateExponential(rand, refreshRate);
+        }
+      }
+    }
+
+    private void doCollision(Random rand, double collisionTime)
+    {
+      final int local = queue.pollEvent();
+      final int f = factors[local];
+      nCollisions++;
+      nCollidedVariables += graph.factorDegree(f);
+
+      if (!sampler.isCollision[f])
+      {
+        queue.update(local, sampler.candidateCollisionTime(rand, workspace, f, collisionTime));
+        return;
+      }
+
+      sampler.collideTrajectories(workspace, f, collisionTime);
+      workspace.factors.clear();
+      for (int i = 0; i < graph.factorDegree(f); i++)
+      {
+        final int v = graph.factorVariable(f, i);
+        addOwnFactors(v);
+        if (partition.isBoundaryVariable[v])
+          output.add(collisionTime, v, store.velocity(storeIndex[v]));
+      }
+      reschedule(rand, collisionTime);
+    }
+
+    private void localVelocityRefreshment(Random rand, double refreshmentTime)
+    {
+      // the workspace's variable set holds indices in the private store
+      final IndexSet slots = workspace.variables;
+      slots.clear();
+      addVariables(factors[rand.nextInt(factors.length)]);
+      if (slots.size() == 1)
+        // ensure irreducibility for cases where some factor is connected to only one factor
+        addVariables(factors[rand.nextInt(factors.length)]);
+
+      nRefreshments++;
+      nRefreshedVariables += slots.size();
+
+      final DoubleMatrix newVelocity = StaticUtils.standardMultivariateNormal(slots.size(), rand);
+      workspace.factors.clear();
+      for (int d = 0; d < slots.size(); d++)
+      {
+        final int v = variables[slots.get(d)];
+        sampler.updateTrajectory(workspace, refreshmentTime, v, newVelocity.get(d));
+        addOwnFactors(v);
+        if (partition.isBoundaryVariable[v])
+          output.add(refreshmentTime, v, newVelocity.get(d));
+      }
+      reschedule(rand, refreshmentTime);
+    }
+
+    private void addVariables(int factor)
+    {
+      for (int i = 0; i < graph.factorDegree(factor); i++)
+        workspace.variables.add(storeIndex[graph.factorVariable(factor, i)]);
+    }
+
+    private void addOwnFactors(int variable)
+    {
+      for (int j = 0; j < graph.variableDegree(variable); j++)
+      {
+        final int g = graph.variableFactor(variable, j);
+        if (partition.factorRegion[g] == id)
+          workspace.factors.add(localFactorIndex[g]);
+      }
+    }
+
+    private void reschedule(Random rand, double time)
+    {
+      for (int i = 0; i < workspace.factors.size(); i++)
+      {
+        final int local = workspace.factors.get(i);
+        queue.update(local, sampler.candidateCollisionTime(rand, workspace, factors[local], time));
+      }
+    }
+
+    /**
+     * Merge, in time order, the outputs of the other regions touching our
+     * variables into nextInput.
+     */
+    void collectInput()
+    {
+      nextInput.clear();
+      final IndexedEventQueue heads = new IndexedEventQueue(regions.length);
+      final int [] next = new int[regions.length];
+      for (Region other : regions)
+        if (other != this)
+          advance(other, next, heads);
+      while (!heads.isEmpty())
+      {
+        final Region other = regions[heads.pollEvent()];
+        final int i = next[other.id]++;
+        nextInput.add(other.output.times[i], other.output.variables[i], other.output.velocities[i]);
+        advance(other, next, heads);
+      }
+    }
+
+    private void advance(Region other, int [] next, IndexedEventQueue heads)
+    {
+      final MessageLog log = other.output;
+      while (next[other.id] < log.size && storeIndex[log.variables[next[other.id]]] == -1)
+        next[other.id]++;
+      if (next[other.id] < log.size)
+        heads.update(other.id, log.times[next[other.id]]);
+    }
+
+    void swapInputs()
+    {
+      final MessageLog temp = input;
+      input = nextInput;
+      nextInput = temp;
+    }
+
+    /**
+     * Write the trajectories of the variables owned by the region back in
+     * the sampler's store.
+     */
+    void commit()
+    {
+      final TrajectoryStore target = sampler.trajectories;
+      for (int i = 0; i < variables.length; i++)
+      {
+        final int v = variables[i];
+        if (variableOwner[v] == id)
+          target.set(v, store.time(i), store.startPosition(i), store.velocity(i));
+      }
+    }
+
+    /**
+     * Add the counts of the last run to the sampler's.
+     * @return The number of events processed in the last run
+     */
+    int collectCounts()
+    {
+      sampler.countEvents(nCollisions, nCollidedVariables, nRefreshments, nRefreshedVariables);
+      return nCollisions + nRefreshments;
+    }
+  }
+}
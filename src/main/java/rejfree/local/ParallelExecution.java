@@ -0,0 +1,28 @@
+package rejfree.local;
+
+import java.util.Random;
+
+
+
+/**
+ * A parallel mode of LocalRFSampler. It is created once the state of the 
+ * sampler is initialized, and keeps its own state (timers, per worker 
+ * queues and random streams) between the calls advancing the simulation.
+ */
+interface ParallelExecution
+{
+  /**
+   * Continue the simulation until the number of events, the end time or the
+   * wall clock limit is reached.
+   *
+   * @return The time at which the simulation stopped
+   */
+  double run(Random rand, long maxNumberOfEvents, double endTime, long maxTimeMilli);
+
+  /**
+   * Called when the collision times of some factors were recomputed in the
+   * sampler's queue (after a change of hyper-parameters), for executions 
+   * keeping their own queues.
+   */
+  default void collisionTimesChanged() {}
+}
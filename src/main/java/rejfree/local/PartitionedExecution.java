@@ -0,0 +1,275 @@
+package rejfree.local;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.jblas.DoubleMatrix;
+
+import com.google.common.base.Stopwatch;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.RefreshmentMethod;
+import rejfree.StaticUtils;
+
+
+
+/**
+ * Partitioned parallel mode of LocalRFSampler (used when nThreads > 1).
+ *
+ * Time is cut in windows [t0, t1) of length windowLength. In each window:
+ * <ol>
+ * <li>the regions of a GraphPartition are simulated in parallel, each with
+ *   its own event queue and random stream, while the boundary variables
+ *   are held fixed at their position at t0 (zero velocity);</li>
+ * <li>the boundary variables are then simulated over the same window,
+ *   using the factors touching them, while all the other variables are
+ *   held fixed at their position at t1.</li>
+ * </ol>
+ * Each step is a local BPS for a conditional of the target, so the
+ * combination is a blocked (Gibbs-like) scheme which leaves the target
+ * invariant. Note however that it does not produce the same trajectories
+ * as the sequential sampler: exact conservative synchronization of
+ * regions would need a positive lookahead, while consecutive collision
+ * times of neighboring factors can be arbitrarily close.
+ *
+ * Rays are buffered by the workers, and handed to the RayProcessors (from
+ * the calling thread, sorted by end time within each phase) at the end of
+ * each phase.
+ */
+class PartitionedExecution implements ParallelExecution
+{
+  private final LocalRFSampler sampler;
+  private final FactorGraphIndex graph;
+  private final GraphPartition partition;
+  private final RFSamplerOptions options;
+
+  private final Block [] regions;
+  private final Block boundary;
+  private final RayBuffer [] regionRays;
+
+  private double nextRefreshmentTime, windowStart = 0.0;
+  private boolean recomputeAll = true;
+
+  PartitionedExecution(LocalRFSampler sampler, Random rand)
+  {
+    this.sampler = sampler;
+    this.graph = sampler.getFactorGraph();
+    this.options = sampler.rfOptions;
+    this.partition = GraphPartition.compile(graph, options.nThreads);
+    this.regions = new Block[partition.nRegions];
+    this.regionRays = new RayBuffer[partition.nRegions];
+    for (int r = 0; r < partition.nRegions; r++)
+    {
+      regions[r] = new Block(partition.regionFactors[r], partition.regionLocalIndex, true, sampler.newRandom(rand.nextLong()));
+      regionRays[r] = regions[r].workspace.rays;
+    }
+    this.boundary = new Block(partition.boundaryFactors, partition.boundaryLocalIndex, false, sampler.newRandom(rand.nextLong()));
+    final boolean globalRefresh = options.refreshmentMethod != RefreshmentMethod.LOCAL;
+    this.nextRefreshmentTime = !globalRefresh || options.refreshRate == 0 ?
+        Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, options.refreshRate);
+  }
+
+  @Override
+  public double run(Random rand, long maxNumberOfEvents, double endTime, long maxTimeMilli)
+  {
+    final Stopwatch watch = maxTimeMilli == Long.MAX_VALUE ? null : Stopwatch.createStarted();
+    long nIterations = 0;
+    while (windowStart < endTime && nIterations < maxNumberOfEvents)
+    {
+      if (watch != null && watch.elapsed(TimeUnit.MILLISECONDS) > maxTimeMilli)
+        break;
+      final double
+        t0 = windowStart,
+        t1 = Math.min(windowStart + options.windowLength, endTime);
+      final boolean recomputeRegions = recomputeAll;
+
+      // 1- regions, in parallel
+      sampler.parallel(() -> IntStream.range(0, regions.length).parallel().forEach(r -> regions[r].simulate(t0, t1, recomputeRegions)));
+      RayBuffer.flush(sampler, regionRays);
+
+      // 2- boundary
+      boundary.simulate(t0, t1, true);
+      RayBuffer.flush(sampler, boundary.workspace.rays);
+
+      for (Block block : regions)
+        nIterations += block.collectCounts();
+      nIterations += boundary.collectCounts();
+
+      recomputeAll = false;
+      if (nextRefreshmentTime < t1)
+      {
+        sampler.updateAllVariables(t1);
+        sampler.refreshAllVelocities(rand, t1, false);
+        while (nextRefreshmentTime < t1)
+          nextRefreshmentTime += StaticUtils.generateExponential(rand, options.refreshRate);
+        recomputeAll = true;
+      }
+
+      if (options.collectRate > 0.0)
+      {
+        sampler.updateAllVariables(t1);
+        sampler.processPoint();
+      }
+      windowStart = t1;
+    }
+    return windowStart;
+  }
+
+  @Override
+  public void collisionTimesChanged()
+  {
+    recomputeAll = true;
+  }
+
+  /**
+   * A set of factors simulated by one worker, with the other variables
+   * frozen. The event queue and the workspace's factor set use indices
+   * local to the block.
+   */
+  private class Block
+  {
+    final int [] factors;
+    final int [] localIndex;
+    final IndexedEventQueue queue;
+    final EventWorkspace workspace;
+    final Random rand;
+    final boolean isRegion;
+    final double refreshRate;
+    double nextRefreshmentTime;
+
+    int nCollisions = 0, nCollidedVariables = 0, nRefreshments = 0, nRefreshedVariables = 0;
+
+    Block(int [] factors, int [] localIndex, boolean isRegion, Random rand)
+    {
+      this.factors = factors;
+      this.localIndex = localIndex;
+      this.isRegion = isRegion;
+      this.rand = rand;
+      this.queue = new IndexedEventQueue(factors.length);
+      this.workspace = new EventWorkspace(sampler.trajectories, graph.maxFactorDegree(), graph.nVariables(), factors.length);
+      workspace.rays = new RayBuffer();
+      workspace.frozenMask = partition.isBoundaryVariable;
+      workspace.frozenValue = isRegion;
+      this.refreshRate = options.refreshmentMethod == RefreshmentMethod.LOCAL ?
+          options.refreshRate * factors.length / graph.nFactors() : 0.0;
+      this.nextRefreshmentTime = refreshRate == 0.0 ? Double.POSITIVE_INFINITY : StaticUtils.generateExponential(rand, refreshRate);
+    }
+
+    /**
+     * Simulate the factors of the block over [t0, t1).
+     *
+     * @param recomputeAll If false, only the collision times of the
+     *   factors touching variables moved since the last call are recomputed
+     */
+    void simulate(double t0, double t1, boolean recomputeAll)
+    {
+      // regions see the boundary at its position at the start of the window,
+      // the boundary sees the regions at the end of the window
+      workspace.frozenTime = isRegion ? t0 : t1;
+
+      for (int i = 0; i < factors.length; i++)
+        if (recomputeAll || partition.touchesBoundary[factors[i]])
+          queue.update(i, sampler.candidateCollisionTime(rand, workspace, factors[i], t0));
+
+      while (true)
+      {
+        final double nextCollisionTime = queue.isEmpty() ? Double.POSITIVE_INFINITY : queue.peekTime();
+        if (Math.min(nextCollisionTime, nextRefreshmentTime) >= t1)
+          return;
+        if (nextCollisionTime < nextRefreshmentTime)
+          doCollision(nextCollisionTime);
+        else
+        {
+          localVelocityRefreshment(nextRefreshmentTime);
+          nextRefreshmentTime += StaticUtils.generateExponential(rand, refreshRate);
+        }
+      }
+    }
+
+    private void doCollision(double collisionTime)
+    {
+      final int local = queue.pollEvent();
+      final int f = factors[local];
+      nCollisions++;
+      nCollidedVariables += graph.factorDegree(f);
+
+      if (!sampler.isCollision[f])
+      {
+        queue.update(local, sampler.candidateCollisionTime(rand, workspace, f, collisionTime));
+        return;
+      }
+
+      workspace.factors.clear();
+      for (int i = 0; i < graph.factorDegree(f); i++)
+        addMovingFactors(graph.factorVariable(f, i));
+
+      sampler.collideTrajectories(workspace, f, collisionTime);
+      reschedule(collisionTime);
+    }
+
+    private void localVelocityRefreshment(double refreshmentTime)
+    {
+      final IndexSet variables = workspace.variables;
+      variables.clear();
+      addMovingVariables(factors[rand.nextInt(factors.length)]);
+      if (variables.size() == 1)
+        // ensure irreducibility for cases where some factor is connected to only one moving variable
+        addMovingVariables(factors[rand.nextInt(factors.length)]);
+
+      nRefreshments++;
+      nRefreshedVariables += variables.size();
+
+      final DoubleMatrix newVelocity = StaticUtils.standardMultivariateNormal(variables.size(), rand);
+      workspace.factors.clear();
+      for (int d = 0; d < variables.size(); d++)
+      {
+        sampler.updateTrajectory(workspace, refreshmentTime, variables.get(d), newVelocity.get(d));
+        addMovingFactors(variables.get(d));
+      }
+      reschedule(refreshmentTime);
+    }
+
+    private void addMovingVariables(int factor)
+    {
+      for (int i = 0; i < graph.factorDegree(factor); i++)
+      {
+        final int variable = graph.factorVariable(factor, i);
+        if (!workspace.isFrozen(variable))
+          workspace.variables.add(variable);
+      }
+    }
+
+    /*
+     * The factors of a variable which is not frozen are all in the block
+     */
+    private void addMovingFactors(int variable)
+    {
+      if (workspace.isFrozen(variable))
+        return;
+      for (int j = 0; j < graph.variableDegree(variable); j++)
+        workspace.factors.add(localIndex[graph.variableFactor(variable, j)]);
+    }
+
+    private void reschedule(double time)
+    {
+      for (int i = 0; i < workspace.factors.size(); i++)
+      {
+        final int local = workspace.factors.get(i);
+        queue.update(local, sampler.candidateCollisionTime(rand, workspace, factors[local], time));
+      }
+    }
+
+    /**
+     * Add the counts of this block to the sampler's, and reset them.
+     * @return The number of events processed since the last call
+     */
+    int collectCounts()
+    {
+      sampler.countEvents(nCollisions, nCollidedVariables, nRefreshments, nRefreshedVariables);
+      final int result = nCollisions + nRefreshments;
+      nCollisions = nCollidedVariables = nRefreshments = nRefreshedVariables = 0;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package rejfree.local;
+
+import java.util.Random;
+
+
+
+/**
+ * Reusable, caller-owned buffers passed to PrimitiveCollisionFactor.
+ * 
+ * The arrays can be longer than the number of variables of the factor; 
+ * entry k corresponds to gradient coordinate k (i.e. to getVariable(k)).
+ */
+public class PrimitiveCollisionContext
+{
+  public Random random;
+  
+  /**
+   * Position and velocity of the variables at the time of the computation.
+   */
+  public final double [] position, velocity;
+  
+  /**
+   * Set to true by the caller before each computation. A factor returning a
+   * strict lower bound for the collision time (instead of the collision 
+   * time itself) should set it to false.
+   */
+  public boolean isExactCollision = true;
+  
+  /**
+   * True when the factor is shared by several samplers running 
+   * concurrently (see MultiChainRunner): it should then not update any 
+   * state kept between calls, such as a cache.
+   */
+  public boolean sharedFactors = false;
+  
+  public PrimitiveCollisionContext(Random random, double [] position, double [] velocity)
+  {
+    this.random = random;
+    this.position = position;
+    this.velocity = velocity;
+  }
+  
+  public PrimitiveCollisionContext(int capacity)
+  {
+    this(null, new double[capacity], new double[capacity]);
+  }
+}
@@ -0,0 +1,65 @@
+package rejfree.local;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.jblas.DoubleMatrix;
+
+
+
+/**
+ * A CollisionFactor which can perform its computations on caller-owned 
+ * primitive buffers, without boxing or allocating.
+ * 
+ * Positions are provided by the caller instead of being read from the 
+ * RealVariables. The methods of CollisionFactor are implemented from the
+ * primitive ones, reading the positions from the RealVariables.
+ */
+public interface PrimitiveCollisionFactor extends CollisionFactor
+{
+  /**
+   * Compute a lower bound for the next collision time.
+   * 
+   * @param context The current position and velocity, and the random 
+   *    number generator to use
+   * @return A time, which could be either the collision time (in which
+   *    case context.isExactCollision should be left to true) or a strict 
+   *    lower bound for the collision time (in which case 
+   *    context.isExactCollision should be set to false).
+   */
+  public double getLowerBoundForCollisionDeltaTime(PrimitiveCollisionContext context);
+  
+  /**
+   * Compute the gradient of the log-likelihood (NOT the energy, to be
+   * in agreement with the inherited Factor).
+   * 
+   * @param position Position of the variables, in gradient coordinate order
+   * @param result Caller-owned array where the gradient is written
+   */
+  public void gradient(double [] position, double [] result);
+  
+  @Override
+  public default Pair<Double,Boolean> getLowerBoundForCollisionDeltaTime(CollisionContext context)
+  {
+    PrimitiveCollisionContext primitiveContext = new PrimitiveCollisionContext(context.random, currentPosition(), context.velocity.data);
+    final double time = getLowerBoundForCollisionDeltaTime(primitiveContext);
+    return Pair.of(time, primitiveContext.isExactCollision);
+  }
+  
+  @Override
+  public default DoubleMatrix gradient()
+  {
+    double [] result = new double[nVariables()];
+    gradient(currentPosition(), result);
+    return new DoubleMatrix(result);
+  }
+  
+  /**
+   * @return The values of the variables, in gradient coordinate order
+   */
+  public default double [] currentPosition()
+  {
+    double [] result = new double[nVariables()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = getVariable(i).getValue();
+    return result;
+  }
+}
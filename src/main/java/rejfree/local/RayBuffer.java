@@ -0,0 +1,105 @@
+package rejfree.local;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Closed rays waiting to be handed to the RayProcessors, stored as 
+ * growable primitive arrays.
+ * 
+ * Used by the parallel modes of LocalRFSampler, where rays are produced by 
+ * several worker threads but RayProcessors are only called from one 
+ * thread, in increasing order of the time at which the rays closed.
+ */
+public class RayBuffer
+{
+  private int size = 0;
+  private int [] variables;
+  private double [] t, position, velocity, end;
+  
+  public RayBuffer()
+  {
+    this(16);
+  }
+  
+  public RayBuffer(int initialCapacity)
+  {
+    variables = new int[initialCapacity];
+    t = new double[initialCapacity];
+    position = new double[initialCapacity];
+    velocity = new double[initialCapacity];
+    end = new double[initialCapacity];
+  }
+  
+  public void add(int variable, double t_, double position_t, double velocity_t, double timeTheRayEnds)
+  {
+    if (size == variables.length)
+    {
+      final int newCapacity = 2 * size;
+      variables = Arrays.copyOf(variables, newCapacity);
+      t = Arrays.copyOf(t, newCapacity);
+      position = Arrays.copyOf(position, newCapacity);
+      velocity = Arrays.copyOf(velocity, newCapacity);
+      end = Arrays.copyOf(end, newCapacity);
+    }
+    variables[size] = variable;
+    t[size] = t_;
+    position[size] = position_t;
+    velocity[size] = velocity_t;
+    end[size] = timeTheRayEnds;
+    size++;
+  }
+  
+  public int size()
+  {
+    return size;
+  }
+  
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+  
+  public void clear()
+  {
+    size = 0;
+  }
+  
+  /**
+   * Send the rays of all the buffers to the sampler's RayProcessors, sorted 
+   * by the time at which they closed (ties are broken by buffer), and clear 
+   * the buffers. 
+   * 
+   * Each buffer should already be sorted (which is the case when it is 
+   * filled by a single worker processing its events in time order), so 
+   * that the buffers can be merged with a small heap.
+   * 
+   * @param sampler
+   * @param buffers
+   */
+  public static void flush(LocalRFSampler sampler, RayBuffer ... buffers)
+  {
+    final IndexedEventQueue heads = new IndexedEventQueue(buffers.length);
+    final int [] next = new int[buffers.length];
+    for (int b = 0; b < buffers.length; b++)
+      if (!buffers[b].isEmpty())
+        heads.update(b, buffers[b].end[0]);
+    
+    while (!heads.isEmpty())
+    {
+      final int b = heads.pollEvent();
+      final RayBuffer buffer = buffers[b];
+      final int i = next[b]++;
+      sampler.processRay(buffer.variables[i], buffer.t[i], buffer.position[i], buffer.velocity[i], buffer.end[i]);
+      if (next[b] < buffer.size)
+      {
+        if (buffer.end[next[b]] < buffer.end[i])
+          throw new RuntimeException("Rays in a buffer should be added in order of their end times");
+        heads.update(b, buffer.end[next[b]]);
+      }
+    }
+    for (RayBuffer buffer : buffers)
+      buffer.clear();
+  }
+}
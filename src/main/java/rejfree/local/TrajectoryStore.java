@@ -0,0 +1,127 @@
+package rejfree.local;
+
+import java.util.Arrays;
+
+
+
+/**
+ * The current ray of each variable, stored as three primitive arrays
+ * indexed by the variable index of the FactorGraphIndex.
+ *
+ * For variable i, the ray starts at time t(i), at which point the position
+ * is startPosition(i), and moves at constant velocity velocity(i) (the
+ * velocity just after the last event affecting that coordinate).
+ *
+ * This replaces one immutable TrajectoryRay per variable and per event;
+ * TrajectoryRay objects are only created on demand via getRay().
+ */
+public class TrajectoryStore
+{
+  private final double [] t, position, velocity;
+
+  public TrajectoryStore(int nVariables)
+  {
+    this.t = new double[nVariables];
+    this.position = new double[nVariables];
+    this.velocity = new double[nVariables];
+    Arrays.fill(t, Double.NaN);
+  }
+
+  public int size()
+  {
+    return t.length;
+  }
+
+  public boolean isInitialized(int variable)
+  {
+    return !Double.isNaN(t[variable]);
+  }
+
+  public void init(int variable, double time, double position_t, double velocity_t)
+  {
+    if (isInitialized(variable))
+      throw new RuntimeException();
+    t[variable] = time;
+    position[variable] = position_t;
+    velocity[variable] = velocity_t;
+  }
+
+  /**
+   * Overwrite the current ray (e.g. when restoring a copy).
+   */
+  public void set(int variable, double time, double position_t, double velocity_t)
+  {
+    t[variable] = time;
+    position[variable] = position_t;
+    velocity[variable] = velocity_t;
+  }
+
+  /**
+   * Start a new ray at the given time, from the position reached by the
+   * current ray at that time.
+   *
+   * @param variable
+   * @param time
+   * @param newVelocity
+   */
+  public void update(int variable, double time, double newVelocity)
+  {
+    position[variable] = position(variable, time);
+    t[variable] = time;
+    velocity[variable] = newVelocity;
+  }
+
+  /**
+   * @param variable
+   * @param time
+   * @return Position at some time larger or equal to the last collision time, assuming
+   *         no collision affecting that coordinate until that time.
+   */
+  public double position(int variable, double time)
+  {
+    final double t_ = t[variable];
+    if (time < t_)
+      throw new RuntimeException("Current time cannot be smaller than start t (time=" + time + ",t=" + t_ + ")");
+    return position[variable] + (time - t_) * velocity[variable];
+  }
+
+  /**
+   * @param variable
+   * @return Start time of the current ray
+   */
+  public double time(int variable)
+  {
+    return t[variable];
+  }
+
+  /**
+   * @param variable
+   * @return Position at the start of the current ray
+   */
+  public double startPosition(int variable)
+  {
+    return position[variable];
+  }
+
+  public double velocity(int variable)
+  {
+    return velocity[variable];
+  }
+
+  /**
+   * @return A copy of all the current velocities
+   */
+  public double [] velocities()
+  {
+    return velocity.clone();
+  }
+
+  /**
+   * @param variable
+   * @return A new TrajectoryRay holding a copy of the current ray
+   */
+  public TrajectoryRay getRay(int variable)
+  {
+    return new TrajectoryRay(t[variable], position[variable], velocity[variable]);
+  }
+}
@@ -2,21 +2,18 @@ package rejfree.models.expfam;
 
 import java.util.Random;
 
-import org.apache.commons.lang3.tuple.Pair;
-import org.jblas.DoubleMatrix;
-
 import bayonet.distributions.Poisson;
 import blang.annotations.FactorArgument;
 import blang.factors.GenerativeFactor;
 import blang.variables.IntegerVariable;
 import blang.variables.RealVariable;
 import rejfree.StaticUtils;
-import rejfree.local.CollisionContext;
-import rejfree.local.CollisionFactor;
+import rejfree.local.PrimitiveCollisionContext;
+import rejfree.local.PrimitiveCollisionFactor;
 
 
 
-public class PoissonFactor implements CollisionFactor, GenerativeFactor
+public class PoissonFactor implements PrimitiveCollisionFactor, GenerativeFactor
 {
   @FactorArgument
   public final RealVariable naturalParameter;
@@ -49,11 +46,11 @@ public class PoissonFactor implements CollisionFactor, GenerativeFactor
   }
 
   @Override
-  public Pair<Double, Boolean> getLowerBoundForCollisionDeltaTime(
-      CollisionContext context)
+  public double getLowerBoundForCollisionDeltaTime(
+      PrimitiveCollisionContext context)
   {
-    final double v = context.velocity.get(0);
-    final double theta0 = naturalParameter.getValue();
+    final double v = context.velocity[0];
+    final double theta0 = context.position[0];
     final int x = getRealization();
     
     double t1 = - StaticUtils.generateUnitRateExponential(context.random) / v / x;
@@ -70,15 +67,13 @@ public class PoissonFactor implements CollisionFactor, GenerativeFactor
     t1 = t1 >= 0 ? t1 : Double.POSITIVE_INFINITY;
     t2 = t2 >= 0 ? t2 : Double.POSITIVE_INFINITY;
     
-    return Pair.of(Math.min(t1, t2), true);
+    return Math.min(t1, t2);
   }
 
   @Override
-  public DoubleMatrix gradient()
+  public void gradient(double [] position, double [] result)
   {
-    DoubleMatrix result = new DoubleMatrix(1);
-    result.put(0, ((double) getRealization()) - Math.exp(naturalParameter.getValue()));
-    return result;
+    result[0] = ((double) getRealization()) - Math.exp(position[0]);
   }
 
   @Override
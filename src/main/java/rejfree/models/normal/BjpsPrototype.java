@@ -162,31 +162,28 @@ public class BjpsPrototype implements Runnable
   {
     Estimates result = new Estimates();
     
-    double sum = 0.0;
-    double sumSqrs = 0.0;
-    double T = 0.0;
-    
     RealVariable monitored = model.brownianBridge.variables.get(monitoredVariable());
     
+    // a single sampler, resumed after each update of the top-level parameter
+    LocalRFRunner bps = model.bpsOnBrownianBridge();
+    bps.addMomentRayProcessor();
+    
     while (moreIterationsNeeded())
     {
       // sample the Gaussian field
-      LocalRFRunner bps = model.bpsOnBrownianBridge();
-      bps.addMomentRayProcessor();
       bps.run();
       
       // sample top-level parameter
       model.sliceSamplerOnGlobalVariance().execute(mainRandom);
+      bps.sampler.hyperParametersChanged(model.brownianBridge.globalVariance);
       
-      // collect
-      sum     += bps.momentRayProcessor.sum.getCount(monitored);
-      sumSqrs += bps.momentRayProcessor.sumSq.getCount(monitored);
-      T       += bps.momentRayProcessor.currentTime;
       result.processParam(curIter);
     }
     
-    result.mean = sum / T;
-    result.variance = sumSqrs / T - (result.mean * result.mean);
+    // collect
+    final double T = bps.momentRayProcessor.currentTime;
+    result.mean = bps.momentRayProcessor.getSum(monitored) / T;
+    result.variance = bps.momentRayProcessor.getSumSq(monitored) / T - (result.mean * result.mean);
     
     return result;
   }
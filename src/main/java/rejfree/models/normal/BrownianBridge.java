@@ -1,6 +1,7 @@
 package rejfree.models.normal;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.jblas.DoubleMatrix;
@@ -177,24 +178,18 @@ public class BrownianBridge
   }
 
   /**
-   * Limitation: will become invalid if globalParam is updated.
-   * 
-   * For sampling globalParam, use fullFactor() instead.
+   * The factors depend on globalVariance as a hyper-parameter: after 
+   * updating it (e.g. with fullFactor()), call 
+   * LocalRFSampler.hyperParametersChanged(globalVariance) before resuming
+   * the simulation.
    */
   public ArrayList<CollisionFactor> localCollisionFactors()
   {
     /*
-     * Note 1: ideally may want to:
-     * 
-     *  1. construct a new NormalFactor where the precision is held in 
-     *     a RealVariable instead AND
-     *  2. modify LocalRFSampler to allow resuming iteration 
-     *     with a recompute of collision times but no initial refreshment
-     *  
-     * But if it turns out that the rate at which we alternate between 
-     * jump dynamics and collision dynamics is similar to the refresh rate,
-     * might as well to a full re-initialization of collision time and 
-     * velocity during the switch.
+     * Note 1: if the rate at which we alternate between jump dynamics and 
+     * collision dynamics is similar to the refresh rate, might as well do a
+     * full re-initialization of collision time and velocity during the 
+     * switch.
      */
     
     ArrayList<CollisionFactor> result = new ArrayList<>();
@@ -214,11 +209,13 @@ public class BrownianBridge
       if (delta <= 0.0)
         throw new RuntimeException("Variables should be sorted and "
             + "have strictly increasing time indices.");
-      final double precision = precision(delta);
+      final double precision = 1.0 / delta; // for a globalVariance of 1
       
       /*
        *  Note 2: not a true precisionMatrix (determinant = 0), but intermediate
-       *        factors in L-BPS not required to be probability distributions 
+       *        factors in L-BPS not required to be probability distributions;
+       *        it has rank 1, so the factor contributes (1/2) log(1/globalVariance)
+       *        to the log density
        */
       DoubleMatrix pseudoPrecisionMatrix = new DoubleMatrix(2, 2,
           new double[]{
@@ -229,13 +226,29 @@ public class BrownianBridge
       result.add(new NormalFactor(
           pseudoPrecisionMatrix, 
           pairOfVariables, 
-          0.0  // see Note 2 above
-          ));
+          0.0, // see Note 2 above
+          globalVariance,
+          1));
     }
 
     return result;
   }
   
+  /**
+   * Limitation: the precision is computed for the current value of 
+   * globalVariance, which is not declared as a hyper-parameter of the 
+   * factor (LocalRFSampler.hyperParametersChanged() does not apply to it), 
+   * so the factor should be rebuilt after globalVariance is updated.
+   * 
+   * @return A single factor over all the variables, with a sparse (tridiagonal)
+   *   precision
+   */
+  public SparseNormalFactor globalCollisionFactor()
+  {
+    return new SparseNormalFactor(precisionMatrix(), variables, 
+        0.5 * logAbsDetPrecision() - ((double) variables.size())/2.0 * Math.log(2.0 * Math.PI));
+  }
+  
   private double lastDelta()
   {
     return ts.get(ts.size() - 1) - ts.get(ts.size() - 2);
@@ -243,7 +256,7 @@ public class BrownianBridge
 
   private CollisionFactor buildUnary(double delta, RealVariable var)
   {
-    return NormalFactor.newUnaryFactor(new DoubleMatrix(new double[]{precision(delta)}), var);
+    return new NormalFactor(new DoubleMatrix(new double[]{1.0 / delta}), Collections.singletonList(var), globalVariance);
   }
   
   private double precision(double delta)
@@ -267,4 +280,15 @@ public class BrownianBridge
     @DefineFactor
     public final List<CollisionFactor> factors = localCollisionFactors();
   }
+  
+  public GlobalFactorModelSpec globalFactorModelSpec()
+  {
+    return new GlobalFactorModelSpec();
+  }
+  
+  public class GlobalFactorModelSpec
+  {
+    @DefineFactor
+    public final SparseNormalFactor factor = globalCollisionFactor();
+  }
 }
@@ -3,12 +3,11 @@ package rejfree.models.normal;
 import java.util.List;
 import java.util.Random;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.jblas.DoubleMatrix;
 
 import rejfree.StaticUtils;
-import rejfree.local.CollisionContext;
-import rejfree.local.CollisionFactor;
+import rejfree.local.PrimitiveCollisionContext;
+import rejfree.local.PrimitiveCollisionFactor;
 import blang.annotations.FactorComponent;
 import blang.factors.FactorList;
 import blang.factors.GenerativeFactor;
@@ -20,7 +19,7 @@ import blang.variables.RealVariable;
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class IsotropicNormal implements CollisionFactor, GenerativeFactor
+public class IsotropicNormal implements PrimitiveCollisionFactor, GenerativeFactor
 {
   @FactorComponent
   public final FactorList<RealVariable> variables;
@@ -45,6 +44,14 @@ public class IsotropicNormal implements CollisionFactor, GenerativeFactor
     return x1.dot(x2);
   }
   
+  private double dotProd(final double [] x1, final double [] x2)
+  {
+    double result = 0.0;
+    for (int i = 0; i < dim; i++)
+      result += x1[i] * x2[i];
+    return result;
+  }
+  
   public int dim()
   {
     return dim;
@@ -58,26 +65,27 @@ public class IsotropicNormal implements CollisionFactor, GenerativeFactor
     return result;
   }
   
-  public Pair<Double, Boolean> getLowerBoundForCollisionDeltaTime(
-      CollisionContext context)
+  @Override
+  public double getLowerBoundForCollisionDeltaTime(
+      PrimitiveCollisionContext context)
   {
-    final DoubleMatrix x = getPosition();
-    final DoubleMatrix v = context.velocity;
+    final double [] x = context.position;
+    final double [] v = context.velocity;
     
     final double xv = dotProd(x, v);
     final double vv = dotProd(v, v);
     final double e = StaticUtils.generateUnitRateExponential(context.random);
     
-    return Pair.of(NormalFactor.normalCollisionTime(e, xv, vv),true); 
+    return NormalFactor.normalCollisionTime(e, xv, vv); 
   }
   
 
 
   @Override
-  public DoubleMatrix gradient()
+  public void gradient(double [] x, double [] result)
   {
-    final DoubleMatrix x = getPosition();
-    return x.mul(-1.0);
+    for (int i = 0; i < dim; i++)
+      result[i] = - x[i];
   }
 
   @Override
@@ -6,6 +6,7 @@ import java.util.List;
 import org.apache.commons.math3.distribution.MultivariateNormalDistribution;
 import org.jblas.DoubleMatrix;
 
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import rejfree.StanUtils.StanExecution;
 import rejfree.StanUtils.StanOptions;
 import rejfree.local.CollisionFactor;
@@ -59,6 +60,8 @@ public class NormalChain
       }
       
       CollisionFactor f = 
+          options.useSparse ?
+          SparseNormalFactor.withPrecision(sparsePrecisionMatrix(), variables) :
           options.useAnalytic ? 
           new NormalFactor(fullPrecision, variables) :   
           NumericNormalFactor.withPrecision(variables, fullPrecision);
@@ -102,6 +105,27 @@ public class NormalChain
     return new DoubleMatrix(normal.sample());
   }
   
+  /**
+   * Note: the constructor still builds the dense precision and its inverse
+   * (used by exactSample()), so useSparse only reduces the cost per event.
+   * 
+   * @return The (tridiagonal) precision of the chain, built directly in 
+   *   sparse format from the pair precisions
+   */
+  public SparseDoubleMatrix2D sparsePrecisionMatrix()
+  {
+    final int dim = dim();
+    SparseDoubleMatrix2D result = new SparseDoubleMatrix2D(dim, dim, dim * 3, 0.2, 0.5);
+    for (int i = 0; i < options.nPairs; i++)
+    {
+      DoubleMatrix cur = pairPrecisions.get(i);
+      for (int r = 0; r < 2; r++)
+        for (int c = 0; c < 2; c++)
+          result.set(r+i, c+i, cur.get(r, c) + result.get(r+i, c+i));
+    }
+    return result;
+  }
+  
   private void buildPrecisionMatrices()
   {
     fullPrecision = new DoubleMatrix(options.nPairs+1, options.nPairs+1);
@@ -25,4 +25,7 @@ public class NormalChainOptions
   
   @Option(gloss = "Use the local structure to create several sparse normal precision factors")
   public boolean useLocal = true;
+  
+  @Option(gloss = "When useLocal is false, store the precision of the global factor in sparse format (uses analytic collision times)")
+  public boolean useSparse = false;
 }
\ No newline at end of file
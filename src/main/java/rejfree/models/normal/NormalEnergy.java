@@ -1,20 +1,32 @@
 package rejfree.models.normal;
 
+import java.util.Arrays;
+
 import org.jblas.Decompose;
 import org.jblas.DoubleMatrix;
 
+import rejfree.global.DirectionalEnergy;
+import rejfree.global.QuadraticEnergy;
 import bayonet.math.JBlasUtils;
-import bayonet.opt.DifferentiableFunction;
 
 
 /**
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class NormalEnergy implements DifferentiableFunction
+public class NormalEnergy implements QuadraticEnergy, DirectionalEnergy
 {
   private final DoubleMatrix precisionMatrix;
   
+  /*
+   * The last ray evaluated by the directional methods, with x0' P x0, 
+   * x0' P v and v' P v, so that each evaluation along it takes O(1) after an 
+   * O(dim) check of the ray. Note that this makes these methods not thread
+   * safe.
+   */
+  private double [] rayPosition = null, rayVelocity = null;
+  private double xPx, xPv, vPv;
+  
   /**
    * log((2pi)^{-k/2} + log(|sigma|^{-1/2}) 
    */
@@ -64,4 +76,47 @@ public class NormalEnergy implements DifferentiableFunction
     return precisionMatrix.mmul(point).data;
   }
   
+  @Override
+  public double valueAt(double [] x0, double [] v, double t)
+  {
+    updateRay(x0, v);
+    return 0.5 * xPx + t * (xPv + 0.5 * t * vPv) - logConstant;
+  }
+  
+  @Override
+  public double directionalDerivative(double [] x0, double [] v, double t)
+  {
+    updateRay(x0, v);
+    return xPv + t * vPv;
+  }
+  
+  private void updateRay(double [] x0, double [] v)
+  {
+    if (Arrays.equals(x0, rayPosition) && Arrays.equals(v, rayVelocity))
+      return;
+    rayPosition = x0.clone();
+    rayVelocity = v.clone();
+    final int dim = dimension();
+    final double [] p = precisionMatrix.data; // column-major
+    xPx = 0.0; xPv = 0.0; vPv = 0.0;
+    for (int c = 0; c < dim; c++)
+    {
+      double px = 0.0, pv = 0.0;
+      for (int r = 0; r < dim; r++)
+      {
+        px += p[r + c * dim] * x0[r];
+        pv += p[r + c * dim] * v[r];
+      }
+      xPx += x0[c] * px;
+      xPv += x0[c] * pv;
+      vPv += v[c] * pv;
+    }
+  }
+  
+  @Override
+  public DoubleMatrix quadraticForm()
+  {
+    return precisionMatrix;
+  }
+  
 }
\ No newline at end of file
@@ -1,17 +1,21 @@
 package rejfree.models.normal;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.distribution.MultivariateNormalDistribution;
 import org.jblas.Decompose;
 import org.jblas.DoubleMatrix;
 
+import rejfree.CheckpointReader;
+import rejfree.CheckpointWriter;
+import rejfree.Checkpointable;
 import rejfree.StaticUtils;
-import rejfree.local.CollisionContext;
-import rejfree.local.CollisionFactor;
+import rejfree.local.HyperParameterFactor;
+import rejfree.local.PrimitiveCollisionContext;
+import rejfree.local.PrimitiveCollisionFactor;
 import bayonet.math.JBlasUtils;
 import bayonet.math.NumericalUtils;
 import blang.annotations.FactorComponent;
@@ -24,10 +28,14 @@ import blang.variables.RealVariable;
  * NOTE: this is used in the local sampler, so we do NOT assume velocity for 
  *   the variables of interest to be of unit norm
  * 
+ * Optionally, the covariance is scaled by a variance hyper-parameter, held
+ * in a RealVariable which is not simulated by the local sampler (the 
+ * precision given to the constructors is then the one for a variance of 1).
+ * 
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class NormalFactor implements CollisionFactor, GenerativeFactor
+public class NormalFactor implements PrimitiveCollisionFactor, HyperParameterFactor, GenerativeFactor, Checkpointable
 {
   @FactorComponent
   public final FactorList<RealVariable> variables;
@@ -35,9 +43,34 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
   // Note: this implementation would not currently support making precision random
   private final DoubleMatrix precision;
   
+  /*
+   * The variance hyper-parameter (null if none), and the inverse of its 
+   * value, which scales the precision
+   */
+  private final RealVariable variance;
+  private double scale = 1.0;
+  
+  /*
+   * Rank of the precision, i.e. the number of directions scaled by the 
+   * variance hyper-parameter in the normalization
+   */
+  private final int rank;
+  
   private final boolean isBin;
   private final double p0, p1, d;
   
+  /*
+   * Non-binary case: the velocity used in the last collision computation, 
+   * P v and v' P v. When only a few coordinates of the velocity change 
+   * (e.g. after a collision in a neighbor factor), P v is updated one 
+   * column at a time instead of being recomputed. Note that this makes the
+   * collision computation not thread safe (the cache is bypassed when the
+   * context says the factor is shared).
+   */
+  private double [] cachedVelocity = null, cachedPv = null;
+  private double cachedVPv;
+  private int nIncrementalUpdates;
+  
   /**
    * log((2pi)^{-k/2} + log(|sigma|^{-1/2}) 
    */
@@ -70,9 +103,36 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
   
   public NormalFactor(DoubleMatrix precision, List<RealVariable> variables, double logConstant)
   {
+    this(precision, variables, logConstant, null);
+  }
+  
+  /**
+   * @param precision The precision for a variance of 1, assumed to be of full rank
+   * @param logConstant The log normalization for a variance of 1
+   * @param variance Variance hyper-parameter, scaling the covariance
+   */
+  public NormalFactor(DoubleMatrix precision, List<RealVariable> variables, double logConstant, RealVariable variance)
+  {
+    this(precision, variables, logConstant, variance, precision.getRows());
+  }
+  
+  /**
+   * @param precision The precision (or pseudo-precision) for a variance of 1
+   * @param logConstant The log normalization for a variance of 1
+   * @param variance Variance hyper-parameter, scaling the covariance
+   * @param rank The rank of the precision, so that scaling the variance 
+   *   by s adds - (rank/2) log(s) to the log normalization
+   */
+  public NormalFactor(DoubleMatrix precision, List<RealVariable> variables, double logConstant, RealVariable variance, int rank)
+  {
+    if (rank < 0 || rank > precision.getRows())
+      throw new RuntimeException("Invalid rank: " + rank);
     this.variables = FactorList.ofArguments(variables, true);
     this.precision = precision.dup();
-    this.logConstant = logConstant;;
+    this.logConstant = logConstant;
+    this.variance = variance;
+    this.rank = rank;
+    hyperParametersChanged();
     isBin = (variables.size() == 2);
     p0 = isBin ? precision.get(0,0) : Double.NaN;
     p1 = isBin ? precision.get(1,1) : Double.NaN;
@@ -82,26 +142,49 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
   }
   
   public NormalFactor(DoubleMatrix precision, List<RealVariable> variables)
+  {
+    this(precision, variables, (RealVariable) null);
+  }
+  
+  public NormalFactor(DoubleMatrix precision, List<RealVariable> variables, RealVariable variance)
   {
     this(precision, variables, 
         - (((double)precision.getRows()) / 2.0) * Math.log(2.0 * Math.PI) + 
-        0.5 * Math.log(Math.abs(Decompose.lu(precision).u.diag().prod())));
+        0.5 * Math.log(Math.abs(Decompose.lu(precision).u.diag().prod())),
+        variance);
+  }
+  
+  @Override
+  public List<RealVariable> getHyperParameters()
+  {
+    return variance == null ? Collections.<RealVariable>emptyList() : Collections.singletonList(variance);
+  }
+  
+  @Override
+  public void hyperParametersChanged()
+  {
+    scale = variance == null ? 1.0 : 1.0 / variance.getValue();
   }
 
   @Override
   public double logDensity()
   {
     DoubleMatrix point = getPosition();
-    return - 0.5 * dotProd(point, point) + logConstant; 
+    return - 0.5 * scale * dotProd(point, point) + logConstant + 0.5 * rank * Math.log(scale); 
   }
   
   private double dotProd(final DoubleMatrix x1, final DoubleMatrix x2)
+  {
+    return dotProd(x1.data, x2.data);
+  }
+  
+  /**
+   * @return x1' P x2, using the first dim() entries of the arrays
+   */
+  private double dotProd(final double [] array0, final double [] array1)
   {
     if (isBin)
     { // optimization of computational inner-loop bottleneck
-      final double [] 
-        array0 = x1.data,
-        array1 = x2.data;
       return 
           array0[0] * (array1[0] * p0 + array1[1] * d) + 
           array0[1] * (array1[0] * d  + array1[1] * p1);
@@ -115,7 +198,19 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
 //      return v2;
     }
     else
-      return x1.transpose().mmuli(precision).dot(x2);
+    {
+      final int dim = dim();
+      final double [] p = precision.data; // column-major
+      double result = 0.0;
+      for (int c = 0; c < dim; c++)
+      {
+        double column = 0.0;
+        for (int r = 0; r < dim; r++)
+          column += array0[r] * p[r + c * dim];
+        result += column * array1[c];
+      }
+      return result;
+    }
   }
   
   public int dim()
@@ -131,21 +226,140 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
     return result;
   }
   
-  public Pair<Double, Boolean> getLowerBoundForCollisionDeltaTime(
-      CollisionContext context)
+  @Override
+  public double getLowerBoundForCollisionDeltaTime(
+      PrimitiveCollisionContext context)
   {
-    final DoubleMatrix x = getPosition();
-    final DoubleMatrix v = context.velocity;
+    final double [] x = context.position;
+    final double [] v = context.velocity;
     
-    final double xv = dotProd(x, v);
-    final double vv = dotProd(v, v);
+    final double xv, vv;
+    if (isBin)
+    {
+      xv = dotProd(x, v);
+      vv = dotProd(v, v);
+    }
+    else if (context.sharedFactors)
+    {
+      final double [] p = precision.data; // column-major
+      final int dim = dim();
+      double xPv = 0.0, vPv = 0.0;
+      for (int r = 0; r < dim; r++)
+      {
+        double pv_r = 0.0;
+        for (int c = 0; c < dim; c++)
+          pv_r += p[r + c * dim] * v[c];
+        xPv += x[r] * pv_r;
+        vPv += v[r] * pv_r;
+      }
+      xv = xPv;
+      vv = vPv;
+    }
+    else
+    {
+      updateVelocityCache(v);
+      double sum = 0.0;
+      for (int i = 0; i < cachedPv.length; i++)
+        sum += x[i] * cachedPv[i];
+      xv = sum;
+      vv = cachedVPv;
+    }
     final double e = StaticUtils.generateUnitRateExponential(context.random);
     
-    return Pair.of(normalCollisionTime(e, xv, vv),true); 
+    return normalCollisionTime(e, scale * xv, scale * vv); 
+  }
+  
+  /**
+   * Bring P v and v' P v up to date with the given velocity, in O(dim) time
+   * per changed coordinate. To avoid accumulating round-off error, 
+   * everything is recomputed after dim() incremental updates or when more 
+   * than half of the coordinates changed, which keeps the amortized cost
+   * in O(dim) per changed coordinate.
+   */
+  private void updateVelocityCache(final double [] v)
+  {
+    final int dim = dim();
+    if (cachedVelocity == null)
+    {
+      cachedVelocity = new double[dim];
+      cachedPv = new double[dim];
+      recomputeVelocityCache(v);
+      return;
+    }
+    
+    int nChanged = 0;
+    for (int c = 0; c < dim; c++)
+      if (v[c] != cachedVelocity[c])
+        nChanged++;
+    if (nChanged == 0)
+      return;
+    if (2 * nChanged > dim || nIncrementalUpdates + nChanged > dim)
+    {
+      recomputeVelocityCache(v);
+      return;
+    }
+    
+    final double [] p = precision.data; // column-major
+    for (int c = 0; c < dim; c++)
+    {
+      final double delta = v[c] - cachedVelocity[c];
+      if (delta == 0.0)
+        continue;
+      for (int r = 0; r < dim; r++)
+        cachedPv[r] += p[r + c * dim] * delta;
+      cachedVelocity[c] = v[c];
+    }
+    nIncrementalUpdates += nChanged;
+    cachedVPv = 0.0;
+    for (int r = 0; r < dim; r++)
+      cachedVPv += v[r] * cachedPv[r];
+  }
+  
+  private void recomputeVelocityCache(final double [] v)
+  {
+    final int dim = dim();
+    final double [] p = precision.data; // column-major
+    for (int r = 0; r < dim; r++)
+      cachedPv[r] = 0.0;
+    for (int c = 0; c < dim; c++)
+    {
+      final double v_c = v[c];
+      cachedVelocity[c] = v_c;
+      for (int r = 0; r < dim; r++)
+        cachedPv[r] += p[r + c * dim] * v_c;
+    }
+    cachedVPv = 0.0;
+    for (int r = 0; r < dim; r++)
+      cachedVPv += v[r] * cachedPv[r];
+    nIncrementalUpdates = 0;
+  }
+  
+  /**
+   * Saves the velocity cache, whose round-off affects the collision times.
+   */
+  @Override
+  public void writeState(CheckpointWriter out)
+  {
+    out.putDoubles(cachedVelocity);
+    out.putDoubles(cachedPv);
+    out.putDouble(cachedVPv);
+    out.putInt(nIncrementalUpdates);
+  }
+  
+  @Override
+  public void readState(CheckpointReader in)
+  {
+    cachedVelocity = in.getDoubles(null);
+    cachedPv = in.getDoubles(null);
+    cachedVPv = in.getDouble();
+    nIncrementalUpdates = in.getInt();
   }
   
   public static double normalCollisionTime(double exponential, double xv, double vv)
   {
+    if (vv == 0.0)
+      // then P v = 0 (P is positive semi-definite), so the energy is constant along the ray
+      return Double.POSITIVE_INFINITY;
     final double s1 = xv < 0 ? - xv / vv : 0.0;
     final double C = - exponential - s1 * (xv + vv * s1 / 2.0);
     final double result = (- xv + Math.sqrt(xv * xv - 2.0 * vv * C)) / vv;
@@ -153,10 +367,21 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
   }
 
   @Override
-  public DoubleMatrix gradient()
+  public void gradient(double [] x, double [] result)
   {
-    final DoubleMatrix x = getPosition();
-    return precision.mmul(x).mul(-1.0);
+    final int dim = dim();
+    final double [] p = precision.data; // column-major
+    for (int r = 0; r < dim; r++)
+      result[r] = 0.0;
+    for (int c = 0; c < dim; c++)
+    {
+      final double x_c = x[c];
+      for (int r = 0; r < dim; r++)
+        result[r] -= p[r + c * dim] * x_c;
+    }
+    if (scale != 1.0)
+      for (int r = 0; r < dim; r++)
+        result[r] *= scale;
   }
 
   @Override
@@ -174,7 +399,7 @@ public class NormalFactor implements CollisionFactor, GenerativeFactor
   @Override
   public void generate(Random random)
   {
-    DoubleMatrix covarMatrix = JBlasUtils.inversePositiveMatrix(precision);  
+    DoubleMatrix covarMatrix = JBlasUtils.inversePositiveMatrix(precision).muli(1.0 / scale);  
     MultivariateNormalDistribution normal = new MultivariateNormalDistribution(new DoubleMatrix(dim()).data, JBlasUtils.asDoubleArray(covarMatrix));
     normal.reseedRandomGenerator(random.nextLong());
     double[] sample = normal.sample();
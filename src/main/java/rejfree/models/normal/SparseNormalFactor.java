@@ -0,0 +1,166 @@
+package rejfree.models.normal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseRCDoubleMatrix2D;
+import rejfree.StaticUtils;
+import rejfree.local.PrimitiveCollisionContext;
+import rejfree.local.PrimitiveCollisionFactor;
+import blang.annotations.FactorComponent;
+import blang.factors.FactorList;
+import blang.variables.RealVariable;
+
+
+
+/**
+ * A mean zero normal factor where the precision matrix is stored in
+ * compressed sparse row (CSR) format. The collision time, gradient and
+ * log density are computed in time proportional to the number of non-zero
+ * entries of the precision, so that a single factor over a large number of
+ * variables is feasible as long as the precision is sparse (e.g. banded,
+ * or a grid).
+ *
+ * The precision matrix is assumed to be symmetric.
+ *
+ * NOTE: this is used in the local sampler, so we do NOT assume velocity for
+ *   the variables of interest to be of unit norm
+ */
+public class SparseNormalFactor implements PrimitiveCollisionFactor
+{
+  @FactorComponent
+  public final FactorList<RealVariable> variables;
+
+  /*
+   * entries of row r are values[rowOffsets[r]], ..., values[rowOffsets[r+1]-1],
+   * in the columns columns[rowOffsets[r]], ..., columns[rowOffsets[r+1]-1]
+   */
+  private final int [] rowOffsets, columns;
+  private final double [] values;
+
+  /**
+   * log((2pi)^{-k/2} + log(|sigma|^{-1/2})
+   */
+  private final double logConstant;
+
+  /**
+   * Computes the normalization using a sparse Cholesky decomposition of
+   * the precision (in the natural order).
+   */
+  public static SparseNormalFactor withPrecision(SparseDoubleMatrix2D precision, List<RealVariable> variables)
+  {
+    return new SparseNormalFactor(precision, variables,
+        - (((double) precision.rows()) / 2.0) * Math.log(2.0 * Math.PI) +
+        0.5 * logAbsDet(precision));
+  }
+
+  public SparseNormalFactor(SparseDoubleMatrix2D precision, List<RealVariable> variables, double logConstant)
+  {
+    if (precision.rows() != variables.size() || precision.columns() != variables.size())
+      throw new RuntimeException("The precision should be a " + variables.size() + " by " + variables.size() + " matrix");
+    this.variables = FactorList.ofArguments(variables, true);
+    this.logConstant = logConstant;
+
+    SparseRCDoubleMatrix2D compressed = precision.getRowCompressed(false);
+    final int dim = variables.size();
+    this.rowOffsets = Arrays.copyOf(compressed.getRowPointers(), dim + 1);
+    final int nNonZeros = rowOffsets[dim];
+    this.columns = Arrays.copyOf(compressed.getColumnIndexes(), nNonZeros);
+    this.values = Arrays.copyOf(compressed.getValues(), nNonZeros);
+  }
+
+  private static double logAbsDet(SparseDoubleMatrix2D precision)
+  {
+    SparseDoubleCholeskyDecomposition chol =
+        new SparseDoubleCholeskyDecomposition(
+            precision.getColumnCompressed(false),
+            0); // use natural order
+    DoubleMatrix2D L = chol.getL();
+
+    double sum = 0.0;
+    for (int i = 0; i < precision.rows(); i++)
+      sum += Math.log(Math.abs(L.get(i, i)));
+
+    // *2 because det(precision) = det(L) * det(L^T)
+    return 2*sum;
+  }
+
+  public int dim()
+  {
+    return variables.list.size();
+  }
+
+  /**
+   * @return The number of non-zero entries stored for the precision
+   */
+  public int nNonZeros()
+  {
+    return values.length;
+  }
+
+  @Override
+  public double logDensity()
+  {
+    final double [] x = currentPosition();
+    double xx = 0.0;
+    for (int r = 0; r < x.length; r++)
+    {
+      double row = 0.0;
+      for (int i = rowOffsets[r]; i < rowOffsets[r + 1]; i++)
+        row += values[i] * x[columns[i]];
+      xx += x[r] * row;
+    }
+    return - 0.5 * xx + logConstant;
+  }
+
+  @Override
+  public double getLowerBoundForCollisionDeltaTime(
+      PrimitiveCollisionContext context)
+  {
+    final double [] x = context.position;
+    final double [] v = context.velocity;
+
+    // compute x' P v and v' P v in one pass over the rows of P v
+    double xv = 0.0, vv = 0.0;
+    final int dim = dim();
+    for (int r = 0; r < dim; r++)
+    {
+      double row = 0.0;
+      for (int i = rowOffsets[r]; i < rowOffsets[r + 1]; i++)
+        row += values[i] * v[columns[i]];
+      xv += x[r] * row;
+      vv += v[r] * row;
+    }
+    final double e = StaticUtils.generateUnitRateExponential(context.random);
+
+    return NormalFactor.normalCollisionTime(e, xv, vv);
+  }
+
+  @Override
+  public void gradient(double [] x, double [] result)
+  {
+    final int dim = dim();
+    for (int r = 0; r < dim; r++)
+    {
+      double row = 0.0;
+      for (int i = rowOffsets[r]; i < rowOffsets[r + 1]; i++)
+        row += values[i] * x[columns[i]];
+      result[r] = - row;
+    }
+  }
+
+  @Override
+  public RealVariable getVariable(int gradientCoordinate)
+  {
+    return variables.list.get(gradientCoordinate);
+  }
+
+  @Override
+  public int nVariables()
+  {
+    return dim();
+  }
+}
@@ -1,12 +1,9 @@
 package rejfree.models.normal;
 
 
-import org.apache.commons.lang3.tuple.Pair;
-import org.jblas.DoubleMatrix;
-
 import rejfree.StaticUtils;
-import rejfree.local.CollisionContext;
-import rejfree.local.CollisionFactor;
+import rejfree.local.PrimitiveCollisionContext;
+import rejfree.local.PrimitiveCollisionFactor;
 import blang.annotations.FactorArgument;
 import blang.variables.RealVariable;
 
@@ -18,7 +15,7 @@ import blang.variables.RealVariable;
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
  */
-public class UnivariateNormalFactor implements CollisionFactor
+public class UnivariateNormalFactor implements PrimitiveCollisionFactor
 {
   @FactorArgument(makeStochastic = true)
   public final RealVariable variable;
@@ -38,17 +35,18 @@ public class UnivariateNormalFactor implements CollisionFactor
     return - 0.5 * x * x / variance; 
   }
   
-  public Pair<Double, Boolean> getLowerBoundForCollisionDeltaTime(
-      CollisionContext context)
+  @Override
+  public double getLowerBoundForCollisionDeltaTime(
+      PrimitiveCollisionContext context)
   {
-    final double x = variable.getValue();
-    final double v = context.velocity.get(0);
+    final double x = context.position[0];
+    final double v = context.velocity[0];
     
     final double xv = x * v / variance;
     final double vv = v * v / variance;
     final double e = StaticUtils.generateUnitRateExponential(context.random);
     
-    return Pair.of(normalCollisionTime(e, xv, vv),true); 
+    return normalCollisionTime(e, xv, vv); 
   }
   
   public static double normalCollisionTime(double exponential, double xv, double vv)
@@ -60,13 +58,9 @@ public class UnivariateNormalFactor implements CollisionFactor
   }
 
   @Override
-  public DoubleMatrix gradient()
+  public void gradient(double [] x, double [] result)
   {
-    final DoubleMatrix x = new DoubleMatrix(1);
-    
-    x.put(0, -variable.getValue() / variance);
-    
-    return x;
+    result[0] = -x[0] / variance;
   }
 
   @Override
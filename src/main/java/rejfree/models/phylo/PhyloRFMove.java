@@ -7,7 +7,9 @@ import java.util.Random;
 import org.jblas.DoubleMatrix;
 
 import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.MomentMode;
 import rejfree.global.GlobalRFSampler;
+import rejfree.global.PegasusConvexCollisionSolver;
 import bayonet.distributions.Normal.MeanVarianceParameterization;
 import blang.factors.IIDRealVectorGenerativeFactor;
 import blang.mcmc.ConnectedFactor;
@@ -48,20 +50,21 @@ public class PhyloRFMove extends NodeMove
     ExpectedStatistics<CTMCState> convertedStat = PhyloHMCMove.convert(pathStatistics, parameters, likelihood); 
     CTMCExpFam<CTMCState>.ExpectedCompleteReversibleObjective objective = parameters.globalExponentialFamily.getExpectedCompleteReversibleObjective(1.0/variance, convertedStat);
     
-    double [] initialPoint = parameters.getVector();
-    
-    
-    GlobalRFSampler sampler;
-    
-    if (initialized)
+    if (sampler == null)
     {
-      sampler = new GlobalRFSampler(objective, new DoubleMatrix(initialPoint), options);
+      System.out.println("Initializing RF sampler");
+      // only the final position of each call is used (the options may be shared, so they are copied)
+      final RFSamplerOptions samplerOptions = options.copy();
+      samplerOptions.storeTrajectory = false;
+      samplerOptions.momentMode = MomentMode.MEANS;
+      sampler = GlobalRFSampler.initializeRFWithLBFGS(objective, samplerOptions, new PegasusConvexCollisionSolver());
     }
     else
     {
-      System.out.println("Initializing RF sampler");
-      sampler = GlobalRFSampler.initializeRFWithLBFGS(objective, options);
-      initialized = true;
+      // the velocity is kept from the previous sweep; the position is read 
+      // again in case another move changed the parameters
+      sampler.setEnergy(objective);
+      sampler.setCurrentPosition(new DoubleMatrix(parameters.getVector()));
     }
     sampler.iterate(rand, nItersPerPathAuxVar );
     double [] newPoint = sampler.getCurrentPosition().data;
@@ -69,5 +72,9 @@ public class PhyloRFMove extends NodeMove
     parameters.setVector(newPoint);
   }
 
-  private boolean initialized = false;
+  /*
+   * Kept across sweeps, with only the energy changing as the paths are 
+   * resampled
+   */
+  private GlobalRFSampler sampler = null;
 }
@@ -0,0 +1,170 @@
+package rejfree.processors;
+
+import rejfree.local.FactorGraphIndex;
+import rejfree.local.LocalRFSampler;
+import rejfree.local.TrajectoryRay;
+import blang.variables.RealVariable;
+
+
+
+/**
+ * Means of each variable and of its square over consecutive batches of 
+ * the trajectory, [s, s + L), [s + L, s + 2L), ..., for a fixed start 
+ * time s (0 by default) and batch length L. The trajectory outside of the
+ * batches is ignored.
+ * 
+ * The batch means of a long trajectory are nearly independent, which 
+ * gives the Monte Carlo error of the estimates over the whole trajectory,
+ * and the effective sample size (see MultiChainRunner).
+ */
+public class BatchMeansRayProcessor implements RayProcessor
+{
+  private final double startTime, batchLength;
+  private final int nBatches;
+  
+  private FactorGraphIndex graph = null;
+  
+  /*
+   * integrals of x and x^2, at [variable * nBatches + batch]
+   */
+  private double [] integrals, integralsSq;
+  
+  public BatchMeansRayProcessor(double startTime, double batchLength, int nBatches)
+  {
+    if (!(batchLength > 0.0) || nBatches < 2)
+      throw new RuntimeException("Invalid batches: " + nBatches + " of length " + batchLength);
+    this.startTime = startTime;
+    this.batchLength = batchLength;
+    this.nBatches = nBatches;
+  }
+  
+  public BatchMeansRayProcessor(double batchLength, int nBatches)
+  {
+    this(0.0, batchLength, nBatches);
+  }
+  
+  public int getNBatches()
+  {
+    return nBatches;
+  }
+  
+  /**
+   * @return The mean of the variable over the given batch
+   */
+  public double getBatchMean(RealVariable variable, int batch)
+  {
+    if (graph == null)
+      throw new RuntimeException("BatchMeansRayProcessor.init() should be called first.");
+    return integrals[graph.variableIndex(variable) * nBatches + batch] / batchLength;
+  }
+  
+  /**
+   * @return The mean of the square of the variable over the given batch
+   */
+  public double getBatchMeanSq(RealVariable variable, int batch)
+  {
+    if (graph == null)
+      throw new RuntimeException("BatchMeansRayProcessor.init() should be called first.");
+    return integralsSq[graph.variableIndex(variable) * nBatches + batch] / batchLength;
+  }
+  
+  /**
+   * @return The mean of the variable over all the batches
+   */
+  public double getMeanEstimate(RealVariable variable)
+  {
+    double sum = 0.0;
+    for (int batch = 0; batch < nBatches; batch++)
+      sum += getBatchMean(variable, batch);
+    return sum / nBatches;
+  }
+  
+  /**
+   * @return The variance of the variable over all the batches
+   */
+  public double getVarianceEstimate(RealVariable variable)
+  {
+    double sumSq = 0.0;
+    for (int batch = 0; batch < nBatches; batch++)
+      sumSq += getBatchMeanSq(variable, batch);
+    final double mean = getMeanEstimate(variable);
+    return sumSq / nBatches - mean * mean;
+  }
+  
+  /**
+   * @return The standard error of the mean of the variable over all the 
+   *   batches
+   */
+  public double getMeanStandardError(RealVariable variable)
+  {
+    final double mean = getMeanEstimate(variable);
+    double sumSq = 0.0;
+    for (int batch = 0; batch < nBatches; batch++)
+    {
+      final double delta = getBatchMean(variable, batch) - mean;
+      sumSq += delta * delta;
+    }
+    return Math.sqrt(sumSq / (nBatches - 1) / nBatches);
+  }
+  
+  /**
+   * @return The standard error of the variance of the variable over all 
+   *   the batches, E[x^2] - E[x]^2, by the delta method: its fluctuations 
+   *   are those of the mean of x^2 - 2 mu x, where mu is the mean of x
+   */
+  public double getVarianceStandardError(RealVariable variable)
+  {
+    final double mean = getMeanEstimate(variable);
+    final double [] linearized = new double[nBatches];
+    double linearizedMean = 0.0;
+    for (int batch = 0; batch < nBatches; batch++)
+    {
+      linearized[batch] = getBatchMeanSq(variable, batch) - 2.0 * mean * getBatchMean(variable, batch);
+      linearizedMean += linearized[batch] / nBatches;
+    }
+    double sumSq = 0.0;
+    for (int batch = 0; batch < nBatches; batch++)
+    {
+      final double delta = linearized[batch] - linearizedMean;
+      sumSq += delta * delta;
+    }
+    return Math.sqrt(sumSq / (nBatches - 1) / nBatches);
+  }
+  
+  @Override
+  public void init(LocalRFSampler sampler)
+  {
+    graph = sampler.getFactorGraph();
+    integrals = new double[graph.nVariables() * nBatches];
+    integralsSq = new double[graph.nVariables() * nBatches];
+  }
+  
+  @Override
+  public void processRay(RealVariable var, TrajectoryRay ray, double time,
+      LocalRFSampler sampler)
+  {
+    processRay(graph.variableIndex(var), var, ray.t, ray.position_t, ray.velocity_t, time, sampler);
+  }
+  
+  @Override
+  public void processRay(int variableIndex, RealVariable var, double t, double position_t, 
+      double velocity_t, double time, LocalRFSampler sampler)
+  {
+    final double end = Math.min(time, startTime + nBatches * batchLength);
+    double start = Math.max(t, startTime);
+    int batch = (int) ((start - startTime) / batchLength);
+    while (start < end)
+    {
+      double boundary = startTime + (batch + 1) * batchLength;
+      if (boundary <= start) // round-off
+        boundary = startTime + (++batch + 1) * batchLength;
+      final double segmentEnd = Math.min(end, boundary);
+      final int index = variableIndex * nBatches + Math.min(batch, nBatches - 1);
+      final double position = position_t + velocity_t * (start - t);
+      integrals[index] += MomentRayProcessor.indefIntegralForMean(position, velocity_t, segmentEnd - start);
+      integralsSq[index] += MomentRayProcessor.indefIntegralForVar(position, velocity_t, segmentEnd - start);
+      start = segmentEnd;
+      batch++;
+    }
+  }
+}
@@ -37,6 +37,13 @@ public class LocAtCollisionsProcessor implements RayProcessor
     this.sampler = sampler;
     update(0.0);
   }
+  
+  @Override
+  public void resume(LocalRFSampler sampler)
+  {
+    this.sampler = sampler;
+    prevTime = sampler.getTrajectoryLength();
+  }
 
   @Override
   public void processRay(RealVariable var, TrajectoryRay ray, double time,
@@ -1,48 +1,147 @@
 package rejfree.processors;
 
+import rejfree.CheckpointReader;
+import rejfree.CheckpointWriter;
+import rejfree.Checkpointable;
+import rejfree.local.FactorGraphIndex;
 import rejfree.local.LocalRFSampler;
 import rejfree.local.TrajectoryRay;
 import blang.variables.RealVariable;
-import briefj.collections.Counter;
 
 
 
-public class MomentRayProcessor implements RayProcessor
+/**
+ * Integrals of x and x^2 along the trajectory of each variable.
+ * 
+ * The integrals are accumulated in arrays indexed by the variable indices 
+ * of the sampler's FactorGraphIndex, using compensated (Neumaier) 
+ * summation since long trajectories add up millions of small increments.
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public class MomentRayProcessor implements RayProcessor, Checkpointable
 {
-  public Counter<RealVariable> 
-    sum   = new Counter<RealVariable>(),
-    sumSq = new Counter<RealVariable>();
+  private FactorGraphIndex graph = null;
+  
+  /*
+   * running sums, and their compensation terms (the low order bits lost so far)
+   */
+  private double [] 
+    sum, sumCompensation, 
+    sumSq, sumSqCompensation;
+  
   public double currentTime = 0.0;
 
   public double getMeanEstimate(RealVariable variable) 
   { 
-    return sum.getCount(variable) / currentTime; 
+    return getSum(variable) / currentTime; 
   }
   
   public double getVarianceEstimate(RealVariable variable)
   {
     final double muBar = getMeanEstimate(variable);
-    return sumSq.getCount(variable) / currentTime - (muBar * muBar);
+    return getSumSq(variable) / currentTime - (muBar * muBar);
   }
   
   public double getSquaredVariableEstimate(RealVariable variable)
   {
-    return sumSq.getCount(variable) / currentTime;
+    return getSumSq(variable) / currentTime;
+  }
+  
+  /**
+   * @param variable
+   * @return The integral of the variable along the trajectory
+   */
+  public double getSum(RealVariable variable)
+  {
+    final int index = index(variable);
+    return sum[index] + sumCompensation[index];
+  }
+  
+  /**
+   * @param variable
+   * @return The integral of the square of the variable along the trajectory
+   */
+  public double getSumSq(RealVariable variable)
+  {
+    final int index = index(variable);
+    return sumSq[index] + sumSqCompensation[index];
+  }
+  
+  private int index(RealVariable variable)
+  {
+    if (graph == null)
+      throw new RuntimeException("MomentRayProcessor.init() should be called first.");
+    return graph.variableIndex(variable);
   }
   
   @Override
-  public void init(LocalRFSampler sampler) {}
+  public void init(LocalRFSampler sampler) 
+  {
+    graph = sampler.getFactorGraph();
+    final int nVariables = graph.nVariables();
+    sum = new double[nVariables];
+    sumCompensation = new double[nVariables];
+    sumSq = new double[nVariables];
+    sumSqCompensation = new double[nVariables];
+  }
   
   @Override
   public void processRay(RealVariable var, TrajectoryRay ray, double time,
       LocalRFSampler sampler)
   {
-    sum.incrementCount(var, 
-        indefIntegralForMean(ray.position_t, ray.velocity_t, time - ray.t));
+    processRay(-1, var, ray.t, ray.position_t, ray.velocity_t, time, sampler);
+  }
+  
+  @Override
+  public void processRay(int variableIndex, RealVariable var, double t, double position_t, 
+      double velocity_t, double time, LocalRFSampler sampler)
+  {
+    final int index = variableIndex == -1 ? index(var) : variableIndex;
     
-    sumSq.incrementCount(var, 
-        indefIntegralForVar(ray.position_t, ray.velocity_t, time - ray.t));
-    currentTime = time;
+    add(sum, sumCompensation, index, 
+        indefIntegralForMean(position_t, velocity_t, time - t));
+    
+    add(sumSq, sumSqCompensation, index, 
+        indefIntegralForVar(position_t, velocity_t, time - t));
+    // rays may arrive out of order (e.g. from the partitioned parallel mode)
+    currentTime = Math.max(currentTime, time);
+  }
+  
+  @Override
+  public void writeState(CheckpointWriter out)
+  {
+    out.putDouble(currentTime);
+    out.putDoubles(sum);
+    out.putDoubles(sumCompensation);
+    out.putDoubles(sumSq);
+    out.putDoubles(sumSqCompensation);
+  }
+  
+  @Override
+  public void readState(CheckpointReader in)
+  {
+    currentTime = in.getDouble();
+    in.getDoubles(sum);
+    in.getDoubles(sumCompensation);
+    in.getDoubles(sumSq);
+    in.getDoubles(sumSqCompensation);
+  }
+  
+  /**
+   * Neumaier's variant of Kahan summation.
+   */
+  private static void add(double [] sums, double [] compensations, int index, double increment)
+  {
+    final double 
+      current = sums[index],
+      next = current + increment;
+    if (Math.abs(current) >= Math.abs(increment))
+      compensations[index] += (current - next) + increment;
+    else
+      compensations[index] += (increment - next) + current;
+    sums[index] = next;
   }
   
   public static double indefIntegralForMean(double x0, double v, double t)
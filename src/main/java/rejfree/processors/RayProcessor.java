@@ -10,6 +10,17 @@ public interface RayProcessor
 {
   public void init(LocalRFSampler sampler);
   
+  /**
+   * Called instead of init() when the sampler is restored from a 
+   * checkpoint (see LocalRFSampler.restore()), once the sampler and the 
+   * RealVariables are at the state of the checkpoint. Processors recording
+   * the initial state in init() should override this method to skip that.
+   */
+  public default void resume(LocalRFSampler sampler)
+  {
+    init(sampler);
+  }
+  
   /**
    * Process a ray that bounced (closed) at the given time.
    * @param var
@@ -18,4 +29,24 @@ public interface RayProcessor
    * @param sampler
    */
   public void processRay(RealVariable var, TrajectoryRay ray, double time, LocalRFSampler sampler);
-}
\ No newline at end of file
+  
+  /**
+   * Same as processRay(var, ray, time, sampler), but with the ray passed as primitives.
+   * 
+   * This is the method called by the sampler. By default, it creates a TrajectoryRay
+   * and calls the above. Processors that do not need to keep the ray should override 
+   * this method to avoid that allocation.
+   * 
+   * @param variableIndex Index of var in the sampler's FactorGraphIndex
+   * @param var
+   * @param t Start time of the ray
+   * @param position_t Position at the start of the ray
+   * @param velocity_t Velocity along the ray
+   * @param time Time at which the ray closed
+   * @param sampler
+   */
+  public default void processRay(int variableIndex, RealVariable var, double t, double position_t, double velocity_t, double time, LocalRFSampler sampler)
+  {
+    processRay(var, new TrajectoryRay(t, position_t, velocity_t), time, sampler);
+  }
+}
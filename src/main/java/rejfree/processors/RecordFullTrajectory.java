@@ -46,6 +46,12 @@ public class RecordFullTrajectory implements RayProcessor
     process(sampler);
   }
   
+  @Override
+  public void resume(LocalRFSampler sampler)
+  {
+    lastT = sampler.getTrajectoryLength();
+  }
+  
   private void process(LocalRFSampler sampler)
   {
     DoubleMatrix current = new DoubleMatrix(variablesIndexer.size());
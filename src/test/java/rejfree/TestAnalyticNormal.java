@@ -58,7 +58,7 @@ public class TestAnalyticNormal
       DoubleMatrix 
         x      = collisionPoints.get(i),
         xPrime = collisionPoints.get(i+1);
-      double e = - Math.log(rand.nextDouble());
+      double e = StaticUtils.generateUnitRateExponential(rand);
       
       double 
         xv      = v     .dot(x),
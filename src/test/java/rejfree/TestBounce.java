@@ -42,4 +42,20 @@ public class TestBounce
     System.out.println(normAfter);
     Assert.assertEquals(normBefore, normAfter, NumericalUtils.THRESHOLD);
   }
+  
+  @Test
+  public void testBounceInPlaceMatchesBounce()
+  {
+    int dim = 4;
+    Random.seed(1001);
+    
+    DoubleMatrix 
+      gradient = DoubleMatrix.rand(dim),
+      velocityBefore = DoubleMatrix.rand(dim);
+    
+    DoubleMatrix bounced = StaticUtils.bounce(velocityBefore, gradient);
+    double [] velocity = velocityBefore.toArray();
+    StaticUtils.bounceInPlace(velocity, gradient.toArray(), dim);
+    Assert.assertEquals(bounced.distance1(new DoubleMatrix(velocity)), 0.0, NumericalUtils.THRESHOLD);
+  }
 }
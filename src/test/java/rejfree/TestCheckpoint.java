@@ -0,0 +1,203 @@
+package rejfree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions.RandomStreams;
+import rejfree.global.GlobalRFSampler;
+import rejfree.global.MomentSink;
+import rejfree.local.LocalRFSampler;
+import rejfree.local.TrajectoryRay;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.models.normal.NormalEnergy;
+import rejfree.processors.LocAtCollisionsProcessor;
+import rejfree.processors.MomentRayProcessor;
+import rejfree.processors.RayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestCheckpoint
+{
+  /**
+   * Restoring a checkpoint in a new sampler and continuing gives the same 
+   * trajectory and moments as continuing without interruption.
+   */
+  @Test
+  public void testLocal() throws IOException
+  {
+    final int nVariables = 15;
+    for (RandomStreams streams : RandomStreams.values())
+    {
+      BrownianBridge [] models = new BrownianBridge[3];
+      LocalRFSampler [] samplers = new LocalRFSampler[3];
+      MomentRayProcessor [] moments = new MomentRayProcessor[3];
+      for (int i = 0; i < 3; i++)
+      {
+        models[i] = BrownianBridge.regularlySpaced(nVariables);
+        RFSamplerOptions options = new RFSamplerOptions();
+        options.randomStreams = streams;
+        samplers[i] = new LocalRFSampler(new ProbabilityModel(models[i].localFactorModelSpec()), options);
+        moments[i] = new MomentRayProcessor();
+        samplers[i].addRayProcessor(moments[i]);
+      }
+      File file = File.createTempFile("checkpoint", ".bin");
+      file.deleteOnExit();
+      
+      for (int i = 0; i < 2; i++)
+      {
+        samplers[i].initialize(new Random(1));
+        samplers[i].advanceEvents(20_000);
+        samplers[i].flushRays();
+      }
+      samplers[1].checkpoint(file);
+      samplers[2].restore(file);
+      for (int i = 0; i < nVariables; i++)
+        Assert.assertEquals(models[1].variables.get(i).getValue(), models[2].variables.get(i).getValue(), 0.0);
+      
+      samplers[0].advanceEvents(20_000);
+      samplers[0].flushRays();
+      samplers[2].advanceEvents(20_000);
+      samplers[2].flushRays();
+      
+      Assert.assertEquals(samplers[0].getTrajectoryLength(), samplers[2].getTrajectoryLength(), 0.0);
+      Assert.assertEquals(samplers[0].getNCollisions(), samplers[2].getNCollisions());
+      for (int i = 0; i < nVariables; i++)
+      {
+        final RealVariable expected = models[0].variables.get(i), actual = models[2].variables.get(i);
+        Assert.assertEquals(expected.getValue(), actual.getValue(), 0.0);
+        Assert.assertEquals(samplers[0].getRay(expected).velocity_t, samplers[2].getRay(actual).velocity_t, 0.0);
+        Assert.assertEquals(moments[0].getSum(expected), moments[2].getSum(actual), 0.0);
+        Assert.assertEquals(moments[0].getSumSq(expected), moments[2].getSumSq(actual), 0.0);
+      }
+    }
+  }
+  
+  /**
+   * Processors recording the initial state in init() are resumed without 
+   * recording it again, and then record the same as without interruption.
+   */
+  @Test
+  public void testResumedProcessor() throws IOException
+  {
+    BrownianBridge [] models = new BrownianBridge[3];
+    LocalRFSampler [] samplers = new LocalRFSampler[3];
+    LocAtCollisionsProcessor [] locations = new LocAtCollisionsProcessor[3];
+    for (int i = 0; i < 3; i++)
+    {
+      models[i] = BrownianBridge.regularlySpaced(5);
+      samplers[i] = new LocalRFSampler(new ProbabilityModel(models[i].localFactorModelSpec()), new RFSamplerOptions());
+      locations[i] = new LocAtCollisionsProcessor(models[i].variables.get(0), models[i].variables.get(1));
+      samplers[i].addRayProcessor(locations[i]);
+    }
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    
+    for (int i = 0; i < 2; i++)
+    {
+      samplers[i].initialize(new Random(1));
+      samplers[i].advanceEvents(1_000);
+    }
+    samplers[1].checkpoint(file);
+    samplers[2].restore(file);
+    Assert.assertTrue(locations[2].locationsAtCollisions.isEmpty());
+    
+    final int nBefore = locations[0].locationsAtCollisions.size();
+    samplers[0].advanceEvents(1_000);
+    samplers[2].advanceEvents(1_000);
+    final List<DoubleMatrix> expected = locations[0].locationsAtCollisions;
+    Assert.assertFalse(locations[2].locationsAtCollisions.isEmpty());
+    Assert.assertEquals(expected.subList(nBefore, expected.size()), locations[2].locationsAtCollisions);
+  }
+  
+  @Test
+  public void testGlobal() throws IOException
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5},{0.5, 2.0}});
+    GlobalRFSampler [] samplers = new GlobalRFSampler[3];
+    MomentSink [] moments = new MomentSink[3];
+    for (int i = 0; i < 3; i++)
+    {
+      samplers[i] = new GlobalRFSampler(NormalEnergy.withCovariance(covar), new DoubleMatrix(2), new RFSamplerOptions());
+      moments[i] = new MomentSink();
+      samplers[i].addSink(moments[i]);
+    }
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    
+    Random [] rands = {new Random(1), new Random(1), null};
+    for (int i = 0; i < 2; i++)
+      samplers[i].iterate(rands[i], 500);
+    samplers[1].checkpoint(file, rands[1]);
+    rands[2] = samplers[2].restore(file);
+    samplers[0].iterate(rands[0], 500);
+    samplers[2].iterate(rands[2], 500);
+    
+    Assert.assertEquals(samplers[0].getCurrentPosition(), samplers[2].getCurrentPosition());
+    Assert.assertEquals(moments[0].getTotalTime(), moments[2].getTotalTime(), 0.0);
+    Assert.assertEquals(moments[0].getMean(), moments[2].getMean());
+    Assert.assertEquals(moments[0].getVariance(), moments[2].getVariance());
+  }
+  
+  /**
+   * A checkpoint interrupted while writing leaves the previous one intact.
+   */
+  @Test
+  public void testInterruptedCheckpoint() throws IOException
+  {
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(BrownianBridge.regularlySpaced(5).localFactorModelSpec()), new RFSamplerOptions());
+    sampler.initialize(new Random(1));
+    sampler.advanceEvents(100);
+    sampler.checkpoint(file);
+    final long length = file.length();
+    
+    sampler.addRayProcessor(new FailingProcessor());
+    try
+    {
+      sampler.checkpoint(file);
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+    Assert.assertEquals(length, file.length());
+    Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+    new LocalRFSampler(new ProbabilityModel(BrownianBridge.regularlySpaced(5).localFactorModelSpec()), new RFSamplerOptions()).restore(file);
+  }
+  
+  private static class FailingProcessor implements RayProcessor, Checkpointable
+  {
+    @Override
+    public void writeState(CheckpointWriter out)
+    {
+      throw new RuntimeException();
+    }
+    
+    @Override
+    public void readState(CheckpointReader in) {}
+    
+    @Override
+    public void init(LocalRFSampler sampler) {}
+    
+    @Override
+    public void processRay(RealVariable var, TrajectoryRay ray, double time, LocalRFSampler sampler) {}
+  }
+  
+  @Test(expected = RuntimeException.class)
+  public void testWrongModel() throws IOException
+  {
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(BrownianBridge.regularlySpaced(5).localFactorModelSpec()), new RFSamplerOptions());
+    sampler.initialize(new Random(1));
+    sampler.checkpoint(file);
+    new LocalRFSampler(new ProbabilityModel(BrownianBridge.regularlySpaced(6).localFactorModelSpec()), new RFSamplerOptions()).restore(file);
+  }
+}
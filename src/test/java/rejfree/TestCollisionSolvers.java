@@ -0,0 +1,136 @@
+package rejfree;
+
+import java.util.Random;
+
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.global.AnalyticQuadraticCollisionSolver;
+import rejfree.global.CollisionSolvers;
+import rejfree.global.GlobalRFSampler.CollisionSolver;
+import rejfree.global.NewtonConvexCollisionSolver;
+import rejfree.global.PegasusConvexCollisionSolver;
+import rejfree.models.normal.NormalEnergy;
+import bayonet.opt.DifferentiableFunction;
+
+
+
+public class TestCollisionSolvers
+{
+  @Test
+  public void testSelection()
+  {
+    Assert.assertTrue(CollisionSolvers.forEnergy(NormalEnergy.isotropic(2)) instanceof AnalyticQuadraticCollisionSolver);
+    Assert.assertTrue(CollisionSolvers.forEnergy(new QuarticEnergy(2)) instanceof NewtonConvexCollisionSolver);
+  }
+  
+  /**
+   * The numerical solvers should agree with the analytic one on a normal 
+   * energy.
+   */
+  @Test
+  public void testNormal()
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5, 0.0},{0.5, 2.0, 0.3},{0.0, 0.3, 1.0}});
+    final NormalEnergy energy = NormalEnergy.withCovariance(covar);
+    checkAgree(energy, new AnalyticQuadraticCollisionSolver(), new NewtonConvexCollisionSolver());
+    checkAgree(energy, new AnalyticQuadraticCollisionSolver(), new PegasusConvexCollisionSolver());
+  }
+  
+  @Test
+  public void testQuartic()
+  {
+    checkAgree(new QuarticEnergy(3), new PegasusConvexCollisionSolver(), new NewtonConvexCollisionSolver());
+  }
+  
+  /**
+   * The directional evaluations of a normal energy should match those 
+   * computed from the full position and gradient, also when the ray changes
+   * between calls.
+   */
+  @Test
+  public void testDirectional()
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5, 0.0},{0.5, 2.0, 0.3},{0.0, 0.3, 1.0}});
+    final NormalEnergy energy = NormalEnergy.withCovariance(covar);
+    Random rand = new Random(1);
+    for (int i = 0; i < 100; i++)
+    {
+      final DoubleMatrix x = StaticUtils.standardMultivariateNormal(3, rand);
+      final DoubleMatrix v = StaticUtils.uniformOnUnitBall(3, rand);
+      for (int j = 0; j < 3; j++)
+      {
+        final double t = 2.0 * rand.nextDouble();
+        final double [] position = x.add(v.mul(t)).data;
+        Assert.assertEquals(energy.valueAt(position), energy.valueAt(x.data, v.data, t), 1e-10);
+        Assert.assertEquals(new DoubleMatrix(energy.derivativeAt(position)).dot(v), energy.directionalDerivative(x.data, v.data, t), 1e-10);
+      }
+    }
+  }
+  
+  /**
+   * An energy which is flat along some directions never causes collisions 
+   * when moving along them.
+   */
+  @Test
+  public void testFlatDirection()
+  {
+    final DoubleMatrix precision = new DoubleMatrix(new double[][]{{1.0, 0.0},{0.0, 0.0}});
+    final DoubleMatrix x = new DoubleMatrix(new double[]{0.5, 1.0});
+    final DoubleMatrix v = new DoubleMatrix(new double[]{0.0, 1.0});
+    final NormalEnergy energy = NormalEnergy.withPrecision(precision);
+    Assert.assertEquals(Double.POSITIVE_INFINITY, new AnalyticQuadraticCollisionSolver().collisionTime(x, v, energy, 1.0), 0.0);
+    Assert.assertEquals(Double.POSITIVE_INFINITY, new NewtonConvexCollisionSolver().collisionTime(x, v, energy, 1.0), 0.0);
+  }
+  
+  private void checkAgree(DifferentiableFunction energy, CollisionSolver reference, CollisionSolver solver)
+  {
+    Random rand = new Random(1);
+    for (int i = 0; i < 1000; i++)
+    {
+      final DoubleMatrix x = StaticUtils.standardMultivariateNormal(energy.dimension(), rand).muli(2.0);
+      final DoubleMatrix v = StaticUtils.uniformOnUnitBall(energy.dimension(), rand);
+      final double exponential = StaticUtils.generateUnitRateExponential(rand);
+      final double expected = reference.collisionTime(x, v, energy, exponential);
+      Assert.assertEquals(expected, solver.collisionTime(x, v, energy, exponential), 1e-6 * (1.0 + expected));
+    }
+  }
+  
+  /**
+   * sum_i x_i^4 / 4 + x_i^2 / 2
+   */
+  private static class QuarticEnergy implements DifferentiableFunction
+  {
+    private final int dimension;
+    
+    QuarticEnergy(int dimension)
+    {
+      this.dimension = dimension;
+    }
+    
+    @Override
+    public int dimension()
+    {
+      return dimension;
+    }
+    
+    @Override
+    public double valueAt(double [] x)
+    {
+      double result = 0.0;
+      for (double xi : x)
+        result += xi * xi * xi * xi / 4.0 + xi * xi / 2.0;
+      return result;
+    }
+    
+    @Override
+    public double [] derivativeAt(double [] x)
+    {
+      final double [] result = new double[x.length];
+      for (int i = 0; i < x.length; i++)
+        result[i] = x[i] * x[i] * x[i] + x[i];
+      return result;
+    }
+  }
+}
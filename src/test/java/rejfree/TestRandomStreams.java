@@ -0,0 +1,77 @@
+package rejfree;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestRandomStreams
+{
+  /**
+   * Known answers of Philox4x32-10, from the Random123 distribution.
+   */
+  @Test
+  public void testPhilox()
+  {
+    checkPhilox(new int[]{0, 0, 0, 0}, 0, 0, 
+        new int[]{0x6627e8d5, 0xe169c58d, 0xbc57ac4c, 0x9b00dbd8});
+    checkPhilox(new int[]{0xffffffff, 0xffffffff, 0xffffffff, 0xffffffff}, 0xffffffff, 0xffffffff, 
+        new int[]{0x408f276d, 0x41c83b0e, 0xa20bc7c6, 0x6d5451fd});
+    checkPhilox(new int[]{0x243f6a88, 0x85a308d3, 0x13198a2e, 0x03707344}, 0xa4093822, 0x299f31d0, 
+        new int[]{0xd16cfe09, 0x94fdcceb, 0x5001e420, 0x24126ea1});
+  }
+  
+  private void checkPhilox(int [] counter, int k0, int k1, int [] expected)
+  {
+    CounterRandom.philox(counter, k0, k1);
+    Assert.assertArrayEquals(expected, counter);
+  }
+  
+  /**
+   * The draws of an event depend only on the seed, the stream and the event.
+   */
+  @Test
+  public void testSeek()
+  {
+    CounterRandom rand = new CounterRandom(1);
+    rand.seek(3, 7);
+    final double [] draws = new double[]{rand.nextDouble(), rand.nextGaussian(), rand.nextDouble()};
+    
+    rand.seek(3, 8);
+    final double other = rand.nextDouble();
+    
+    CounterRandom rand2 = new CounterRandom(1);
+    rand2.seek(4, 0);
+    rand2.nextGaussian();
+    for (CounterRandom r : new CounterRandom[]{rand, rand2})
+    {
+      r.seek(3, 7);
+      Assert.assertEquals(draws[0], r.nextDouble(), 0.0);
+      Assert.assertEquals(draws[1], r.nextGaussian(), 0.0);
+      Assert.assertEquals(draws[2], r.nextDouble(), 0.0);
+    }
+    Assert.assertNotEquals(draws[0], other, 0.0);
+  }
+  
+  @Test
+  public void testMoments()
+  {
+    for (Random rand : new Random[]{new XoroshiroRandom(1), new CounterRandom(1)})
+    {
+      final int n = 1_000_000;
+      double sum = 0.0, sumNormal = 0.0, sumSqNormal = 0.0;
+      for (int i = 0; i < n; i++)
+      {
+        sum += rand.nextDouble();
+        final double normal = rand.nextGaussian();
+        sumNormal += normal;
+        sumSqNormal += normal * normal;
+      }
+      Assert.assertEquals(0.5, sum / n, 0.001);
+      Assert.assertEquals(0.0, sumNormal / n, 0.005);
+      Assert.assertEquals(1.0, sumSqNormal / n, 0.005);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package rejfree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions.MomentMode;
+import rejfree.global.BinaryFileSink;
+import rejfree.global.GlobalRFSampler;
+import rejfree.global.InMemorySink;
+import rejfree.global.MomentSink;
+import rejfree.global.RingBufferSink;
+import rejfree.global.TrajectorySink;
+import rejfree.models.normal.NormalEnergy;
+
+
+
+public class TestTrajectorySinks
+{
+  @Test
+  public void testSinks() throws IOException
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5},{0.5, 2.0}});
+    GlobalRFSampler sampler = new GlobalRFSampler(NormalEnergy.withCovariance(covar), new DoubleMatrix(2), new RFSamplerOptions());
+    RingBufferSink ring = new RingBufferSink(5);
+    MomentSink moments = new MomentSink();
+    File file = File.createTempFile("trajectory", ".bin");
+    file.deleteOnExit();
+    BinaryFileSink binary = new BinaryFileSink(file);
+    sampler.addSink(ring);
+    sampler.addSink(moments);
+    sampler.addSink(binary);
+    sampler.iterate(new Random(1), 1000);
+    binary.close();
+    
+    // ring buffer: last positions of the trajectory
+    Assert.assertEquals(5, ring.size());
+    for (int i = 0; i < 5; i++)
+      Assert.assertEquals(sampler.getTrajectory().get(sampler.getTrajectory().size() - 5 + i), ring.getPosition(i));
+    Assert.assertEquals(sampler.getCurrentPosition(), ring.getPosition(4));
+    
+    // moments: same integrals as the sampler's
+    for (int i = 0; i < 2; i++)
+    {
+      final double mean = moments.getMean().get(i);
+      Assert.assertEquals(sampler.getMean().get(i), mean, 1e-10);
+      Assert.assertEquals(sampler.getVariance().get(i, i), moments.getVariance().get(i) + mean * mean, 1e-10);
+    }
+    
+    // binary file: read back exactly
+    InMemorySink read = new InMemorySink();
+    BinaryFileSink.read(file, read);
+    Assert.assertEquals(sampler.getTrajectory(), read.trajectory);
+    Assert.assertEquals(sampler.getSamples(), read.samples);
+    Assert.assertFalse(read.samples.isEmpty());
+  }
+  
+  /**
+   * The three moment modes agree with each other, and the full mode is 
+   * symmetric.
+   */
+  @Test
+  public void testMomentModes()
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5, 0.0},{0.5, 2.0, 0.3},{0.0, 0.3, 1.0}});
+    GlobalRFSampler [] samplers = new GlobalRFSampler[MomentMode.values().length];
+    for (MomentMode mode : MomentMode.values())
+    {
+      RFSamplerOptions options = new RFSamplerOptions();
+      options.momentMode = mode;
+      samplers[mode.ordinal()] = new GlobalRFSampler(NormalEnergy.withCovariance(covar), new DoubleMatrix(3), options);
+      samplers[mode.ordinal()].iterate(new Random(1), 100_000);
+    }
+    final GlobalRFSampler 
+      means = samplers[MomentMode.MEANS.ordinal()], 
+      diagonal = samplers[MomentMode.DIAGONAL.ordinal()], 
+      full = samplers[MomentMode.FULL.ordinal()];
+    final DoubleMatrix secondMoment = full.getVariance();
+    for (int i = 0; i < 3; i++)
+    {
+      Assert.assertEquals(full.getMean().get(i), means.getMean().get(i), 1e-10);
+      Assert.assertEquals(full.getMean().get(i), diagonal.getMean().get(i), 1e-10);
+      Assert.assertEquals(secondMoment.get(i, i), diagonal.getDiagonalSecondMoment().get(i), 1e-10);
+      for (int j = 0; j < 3; j++)
+      {
+        Assert.assertEquals(secondMoment.get(i, j), secondMoment.get(j, i), 1e-12);
+        Assert.assertEquals(covar.get(i, j), secondMoment.get(i, j) - full.getMean().get(i) * full.getMean().get(j), 0.1);
+      }
+    }
+  }
+  
+  /**
+   * Changing the energy keeps the position and velocity, and the sampler 
+   * then targets the new distribution.
+   */
+  @Test
+  public void testSetEnergy()
+  {
+    final DoubleMatrix covar = new DoubleMatrix(new double[][]{{1.0, 0.5},{0.5, 2.0}});
+    GlobalRFSampler sampler = new GlobalRFSampler(NormalEnergy.isotropic(2), new DoubleMatrix(2), new RFSamplerOptions());
+    RingBufferSink last = new RingBufferSink(1);
+    sampler.addSink(last);
+    Random rand = new Random(1);
+    sampler.iterate(rand, 100);
+    final DoubleMatrix position = last.getPosition(0), velocity = last.getVelocity(0);
+    
+    sampler.setEnergy(NormalEnergy.withCovariance(covar));
+    final DoubleMatrix [] first = new DoubleMatrix[2];
+    sampler.addSink(new TrajectorySink() {
+      @Override
+      public void processEvent(double time, DoubleMatrix position, DoubleMatrix velocity)
+      {
+        if (first[0] == null)
+        {
+          first[0] = position;
+          first[1] = velocity;
+        }
+      }
+    });
+    sampler.iterate(rand, 100_000);
+    Assert.assertEquals(position, first[0]);
+    Assert.assertEquals(velocity, first[1]);
+    for (int i = 0; i < 2; i++)
+      for (int j = 0; j < 2; j++)
+        Assert.assertEquals(covar.get(i, j), sampler.getVariance().get(i, j) - sampler.getMean().get(i) * sampler.getMean().get(j), 0.1);
+  }
+  
+  @Test(expected = RuntimeException.class)
+  public void testNotStored()
+  {
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.storeTrajectory = false;
+    GlobalRFSampler sampler = new GlobalRFSampler(NormalEnergy.isotropic(2), new DoubleMatrix(2), options);
+    sampler.iterate(new Random(1), 100);
+    sampler.getTrajectory();
+  }
+}
@@ -0,0 +1,55 @@
+package rejfree;
+
+import java.util.Random;
+
+import org.apache.commons.math3.distribution.ExponentialDistribution;
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.apache.commons.math3.distribution.RealDistribution;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestZiggurat
+{
+  /*
+   * Points at which the empirical CDFs are checked, including some in the 
+   * tails handled separately by the generators
+   */
+  private static final double [] NORMAL_POINTS = {-4.0, -3.5, -2.0, -1.0, -0.1, 0.0, 0.3, 1.5, 3.0, 3.5, 4.0};
+  private static final double [] EXPONENTIAL_POINTS = {0.01, 0.1, 0.5, 1.0, 2.0, 4.0, 7.0, 7.7, 8.0};
+  
+  @Test
+  public void testNormal()
+  {
+    final double [] samples = new double[2_000_000];
+    StaticUtils.fillStandardNormal(new Random(1), samples, samples.length);
+    checkCDF(new NormalDistribution(0.0, 1.0), NORMAL_POINTS, samples);
+  }
+  
+  @Test
+  public void testExponential()
+  {
+    final double [] samples = new double[2_000_000];
+    StaticUtils.fillUnitRateExponential(new XoroshiroRandom(1), samples, samples.length);
+    checkCDF(new ExponentialDistribution(1.0), EXPONENTIAL_POINTS, samples);
+  }
+  
+  /**
+   * Compare the empirical CDF at the given points to the exact one, within 
+   * 5 standard errors.
+   */
+  private void checkCDF(RealDistribution distribution, double [] points, double [] samples)
+  {
+    for (double point : points)
+    {
+      int count = 0;
+      for (double sample : samples)
+        if (sample <= point)
+          count++;
+      final double expected = distribution.cumulativeProbability(point);
+      final double standardError = Math.sqrt(expected * (1.0 - expected) / samples.length);
+      Assert.assertEquals("CDF at " + point, expected, ((double) count) / samples.length, 5.0 * standardError + 1e-7);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.ParallelMode;
+import rejfree.RFSamplerOptions.RandomStreams;
+import rejfree.RFSamplerOptions.RefreshmentMethod;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.processors.BatchMeansRayProcessor;
+import rejfree.processors.MomentRayProcessor;
+import rejfree.processors.RayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestBatchSampler implements RayProcessor
+{
+  private double lastRayEnd = 0.0;
+
+  @Test
+  public void testMarginals()
+  {
+    final int nVariables = 20;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    options.nThreads = 4;
+    options.parallelMode = ParallelMode.BATCH;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    final double trajectoryLength = 25_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(trajectoryLength / 50, 50);
+    MomentRayProcessor moments = new MomentRayProcessor();
+    sampler.addRayProcessor(moments);
+    sampler.addRayProcessor(batches);
+    sampler.addRayProcessor(this);
+    sampler.iterate(new Random(1), Integer.MAX_VALUE, trajectoryLength);
+
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < nVariables; i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      Assert.assertEquals(model.getMarginalVariance(i), moments.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+    }
+  }
+
+  /**
+   * With global refreshments, the collision times of all the factors are 
+   * recomputed in parallel.
+   */
+  @Test
+  public void testGlobalRefreshment()
+  {
+    final int nVariables = 20;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    options.nThreads = 4;
+    options.parallelMode = ParallelMode.BATCH;
+    options.refreshmentMethod = RefreshmentMethod.GLOBAL;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    final double trajectoryLength = 25_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(trajectoryLength / 50, 50);
+    MomentRayProcessor moments = new MomentRayProcessor();
+    sampler.addRayProcessor(moments);
+    sampler.addRayProcessor(batches);
+    sampler.iterate(new Random(1), Integer.MAX_VALUE, trajectoryLength);
+
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < nVariables; i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      Assert.assertEquals(model.getMarginalVariance(i), moments.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+    }
+  }
+
+  /**
+   * With the streams of the factors, the trajectories are exactly those of 
+   * the sequential sampler.
+   */
+  @Test
+  public void testReproducesSequential()
+  {
+    final int nVariables = 20;
+    MomentRayProcessor [] moments = new MomentRayProcessor[2];
+    BrownianBridge [] models = new BrownianBridge[2];
+    for (int i = 0; i < 2; i++)
+    {
+      models[i] = BrownianBridge.regularlySpaced(nVariables);
+      RFSamplerOptions options = new RFSamplerOptions();
+      options.collectRate = 0.0;
+      options.randomStreams = RandomStreams.COUNTER;
+      options.nThreads = i == 0 ? 1 : 4;
+      options.parallelMode = ParallelMode.BATCH;
+      LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(models[i].localFactorModelSpec()), options);
+      moments[i] = new MomentRayProcessor();
+      sampler.addRayProcessor(moments[i]);
+      sampler.iterate(new Random(1), 100_000);
+    }
+    
+    for (int i = 0; i < nVariables; i++)
+    {
+      Assert.assertEquals(moments[0].getSum(models[0].variables.get(i)), moments[1].getSum(models[1].variables.get(i)), 0.0);
+      Assert.assertEquals(models[0].variables.get(i).getValue(), models[1].variables.get(i).getValue(), 0.0);
+    }
+  }
+
+  @Override
+  public void init(LocalRFSampler sampler) {}
+
+  /**
+   * Committed rays should be processed in time order.
+   */
+  @Override
+  public void processRay(RealVariable var, TrajectoryRay ray, double time, LocalRFSampler sampler)
+  {
+    Assert.assertTrue(time >= lastRayEnd);
+    lastRayEnd = time;
+  }
+}
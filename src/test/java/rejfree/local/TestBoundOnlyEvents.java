@@ -0,0 +1,133 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import rejfree.RFSamplerOptions;
+import rejfree.models.normal.NormalFactor;
+import rejfree.processors.BatchMeansRayProcessor;
+import bayonet.math.JBlasUtils;
+import blang.ProbabilityModel;
+import blang.annotations.DefineFactor;
+import blang.annotations.FactorComponent;
+import blang.factors.FactorList;
+import blang.variables.RealVariable;
+
+
+
+/**
+ * Checks that events where the factor only returned a lower bound (and hence
+ * do not change the velocities) leave the stationary distribution unchanged.
+ */
+public class TestBoundOnlyEvents
+{
+  private static DoubleMatrix localCovar = new DoubleMatrix(new double[][]{{1,0.5},{0.5,1}});
+
+  @Test
+  public void test()
+  {
+    ChainModel modelSpec = new ChainModel();
+    ProbabilityModel model = new ProbabilityModel(modelSpec);
+
+    DoubleMatrix localPrecision = JBlasUtils.inversePositiveMatrix(localCovar);
+    DoubleMatrix fullPrecision = new DoubleMatrix(3, 3);
+    for (int i = 0; i < 2; i++)
+      for (int row = 0; row < localPrecision.rows; row++)
+        for (int col = 0; col < localPrecision.columns; col++)
+          fullPrecision.put(row + i, col + i, fullPrecision.get(row + i, col + i) + localPrecision.get(row, col));
+    DoubleMatrix fullCovar = JBlasUtils.inversePositiveMatrix(fullPrecision);
+
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.refreshRate = 0.0001;
+    options.collectRate = 0.0;
+    LocalRFSampler local = new LocalRFSampler(model, options);
+    final double trajectoryLength = 20_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(trajectoryLength / 50, 50);
+    local.addRayProcessor(batches);
+    local.iterate(new Random(1), Integer.MAX_VALUE, trajectoryLength);
+
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < 3; i++)
+    {
+      final RealVariable variable = modelSpec.vs[i];
+      Assert.assertEquals(fullCovar.get(i,i), batches.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+      Assert.assertEquals(0.0, batches.getMeanEstimate(variable), 5.0 * batches.getMeanStandardError(variable));
+    }
+  }
+
+  public static class ChainModel
+  {
+    RealVariable
+      v1 = RealVariable.real(),
+      v2 = RealVariable.real(),
+      v3 = RealVariable.real();
+
+    public RealVariable [] vs = new RealVariable[]{v1, v2, v3};
+
+    @DefineFactor
+    CappedFactor f12 = new CappedFactor(NormalFactor.withCovariance(localCovar, Lists.newArrayList(v1, v2)), 0.1);
+
+    @DefineFactor
+    CappedFactor f23 = new CappedFactor(NormalFactor.withCovariance(localCovar, Lists.newArrayList(v2, v3)), 0.1);
+  }
+
+  /**
+   * Returns a lower bound instead of the collision time whenever the latter
+   * is larger than a fixed cap. This is valid since the collision time is
+   * resampled from the current state at the end of each bound.
+   */
+  public static class CappedFactor implements CollisionFactor
+  {
+    @FactorComponent
+    public final FactorList<RealVariable> variables;
+
+    private final NormalFactor enclosed;
+    private final double cap;
+
+    public CappedFactor(NormalFactor enclosed, double cap)
+    {
+      this.enclosed = enclosed;
+      this.variables = enclosed.variables;
+      this.cap = cap;
+    }
+
+    @Override
+    public Pair<Double, Boolean> getLowerBoundForCollisionDeltaTime(CollisionContext context)
+    {
+      final double time = enclosed.getLowerBoundForCollisionDeltaTime(context).getLeft();
+      if (time > cap)
+        return Pair.of(cap, false);
+      return Pair.of(time, true);
+    }
+
+    @Override
+    public DoubleMatrix gradient()
+    {
+      return enclosed.gradient();
+    }
+
+    @Override
+    public RealVariable getVariable(int gradientCoordinate)
+    {
+      return enclosed.getVariable(gradientCoordinate);
+    }
+
+    @Override
+    public int nVariables()
+    {
+      return enclosed.nVariables();
+    }
+
+    @Override
+    public double logDensity()
+    {
+      return enclosed.logDensity();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package rejfree.local;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.models.normal.BrownianBridge;
+import blang.ProbabilityModel;
+import blang.factors.Factor;
+
+
+
+public class TestFactorGraphIndex
+{
+  @Test
+  public void testAgainstModel()
+  {
+    for (boolean precompute : new boolean[]{true, false})
+    {
+      ProbabilityModel model = new ProbabilityModel(BrownianBridge.regularlySpaced(10).localFactorModelSpec());
+      FactorGraphIndex graph = FactorGraphIndex.compile(model, precompute);
+      Assert.assertEquals(precompute, graph.hasPrecomputedNeighborhoods());
+      Assert.assertEquals(model.linearizedFactors().size(), graph.nFactors());
+      Assert.assertEquals(model.getLatentVariables().size(), graph.nVariables());
+
+      IndexSet
+        factors = new IndexSet(graph.nFactors()),
+        variables = new IndexSet(graph.nVariables());
+
+      for (int f = 0; f < graph.nFactors(); f++)
+      {
+        CollisionFactor factor = graph.getFactor(f);
+        Assert.assertEquals(f, graph.factorIndex(factor));
+        for (int k = 0; k < graph.factorDegree(f); k++)
+          Assert.assertEquals(factor.getVariable(k), graph.getVariable(graph.factorVariable(f, k)));
+
+        // expected neighborhoods, computed the way the sampler used to
+        Set<Object> expectedFactors = new LinkedHashSet<>();
+        for (Object variable : model.neighborLatentVariables(factor))
+          expectedFactors.addAll(model.neighborFactors(variable));
+        Set<Object> expectedVariables = new LinkedHashSet<>();
+        for (Object neighbor : expectedFactors)
+          expectedVariables.addAll(model.neighborLatentVariables((Factor) neighbor));
+
+        graph.neighborFactors(f, factors);
+        Assert.assertEquals(expectedFactors.size(), factors.size());
+        for (int i = 0; i < factors.size(); i++)
+          Assert.assertTrue(expectedFactors.contains(graph.getFactor(factors.get(i))));
+
+        graph.extendedNeighborVariables(f, variables);
+        Assert.assertEquals(expectedVariables.size(), variables.size());
+        for (int i = 0; i < variables.size(); i++)
+          Assert.assertTrue(expectedVariables.contains(graph.getVariable(variables.get(i))));
+      }
+    }
+  }
+
+  @Test
+  public void testIndexSet()
+  {
+    IndexSet set = new IndexSet(5);
+    Assert.assertTrue(set.add(3));
+    Assert.assertFalse(set.add(3));
+    Assert.assertTrue(set.add(1));
+    Assert.assertEquals(2, set.size());
+    Assert.assertEquals(3, set.get(0));
+    Assert.assertEquals(1, set.get(1));
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertFalse(set.contains(3));
+    Assert.assertTrue(set.add(3));
+  }
+}
@@ -0,0 +1,64 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.processors.BatchMeansRayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestHyperParameters
+{
+  /**
+   * After a change of the variance of a Brownian bridge, the sampler keeps
+   * the velocities and targets the new marginals.
+   */
+  @Test
+  public void testVarianceChange()
+  {
+    final int nVariables = 10;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    // batches covering the trajectory after the change
+    final double changeTime = 500.0, length = 50_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(changeTime, length / 50, 50);
+    sampler.addRayProcessor(batches);
+    sampler.initialize(new Random(1));
+    sampler.advanceTo(changeTime);
+
+    final double [] velocities = new double[nVariables];
+    for (int i = 0; i < nVariables; i++)
+      velocities[i] = sampler.getRay(model.variables.get(i)).velocity_t;
+
+    model.globalVariance.setValue(4.0);
+    sampler.hyperParametersChanged(model.globalVariance);
+    for (int i = 0; i < nVariables; i++)
+      Assert.assertEquals(velocities[i], sampler.getRay(model.variables.get(i)).velocity_t, 0.0);
+
+    sampler.advanceTo(changeTime + length);
+    sampler.flushRays();
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < nVariables; i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      Assert.assertEquals(model.getMarginalVariance(i), batches.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testUnknownHyperParameter()
+  {
+    BrownianBridge model = BrownianBridge.regularlySpaced(5);
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), new RFSamplerOptions());
+    sampler.initialize(new Random(1));
+    sampler.hyperParametersChanged(new RealVariable(1.0));
+  }
+}
@@ -0,0 +1,103 @@
+package rejfree.local;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestIndexedEventQueue
+{
+  /**
+   * Compare a random sequence of updates, removals and polls against a
+   * naive linear scan.
+   */
+  @Test
+  public void testAgainstNaive()
+  {
+    Random rand = new Random(1);
+    final int capacity = 50;
+    IndexedEventQueue queue = new IndexedEventQueue(capacity);
+    Map<Integer,Double> reference = new HashMap<>();
+
+    for (int i = 0; i < 100_000; i++)
+    {
+      final int id = rand.nextInt(capacity);
+      final int operation = rand.nextInt(4);
+      if (operation == 0)
+      {
+        queue.remove(id);
+        reference.remove(id);
+      }
+      else if (operation == 1 && !reference.isEmpty())
+      {
+        final int expected = naiveFirst(reference);
+        Assert.assertEquals(reference.get(expected), queue.peekTime(), 0.0);
+        Assert.assertEquals(expected, queue.pollEvent());
+        reference.remove(expected);
+      }
+      else
+      {
+        // coarse times to generate many ties
+        final double time = rand.nextInt(20);
+        queue.update(id, time);
+        reference.put(id, time);
+      }
+      Assert.assertEquals(reference.size(), queue.size());
+      Assert.assertEquals(reference.containsKey(id), queue.contains(id));
+    }
+  }
+
+  @Test
+  public void testInfiniteTimeRemoves()
+  {
+    IndexedEventQueue queue = new IndexedEventQueue(2);
+    queue.update(0, 1.0);
+    queue.update(1, 2.0);
+    queue.update(0, Double.POSITIVE_INFINITY);
+    Assert.assertFalse(queue.contains(0));
+    Assert.assertEquals(1, queue.pollEvent());
+    Assert.assertTrue(queue.isEmpty());
+    Assert.assertEquals(Double.POSITIVE_INFINITY, queue.peekTime(), 0.0);
+  }
+
+  @Test
+  public void testReset()
+  {
+    Random rand = new Random(1);
+    final int capacity = 100;
+    IndexedEventQueue queue = new IndexedEventQueue(capacity);
+    queue.update(3, 0.5);
+    double [] times = new double[capacity];
+    Map<Integer,Double> reference = new HashMap<>();
+    for (int id = 0; id < capacity; id++)
+    {
+      times[id] = rand.nextInt(5) == 0 ? Double.POSITIVE_INFINITY : rand.nextInt(20);
+      if (!Double.isInfinite(times[id]))
+        reference.put(id, times[id]);
+    }
+    queue.reset(times);
+    Assert.assertEquals(reference.size(), queue.size());
+    while (!reference.isEmpty())
+    {
+      final int expected = naiveFirst(reference);
+      Assert.assertEquals(expected, queue.pollEvent());
+      reference.remove(expected);
+    }
+    Assert.assertTrue(queue.isEmpty());
+  }
+
+  private static int naiveFirst(Map<Integer,Double> reference)
+  {
+    int result = -1;
+    for (int id : reference.keySet())
+      if (result == -1 ||
+          reference.get(id) < reference.get(result) ||
+          (reference.get(id).equals(reference.get(result)) && id < result))
+        result = id;
+    return result;
+  }
+}
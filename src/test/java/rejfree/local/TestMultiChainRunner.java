@@ -0,0 +1,70 @@
+package rejfree.local;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.StaticUtils;
+import rejfree.models.normal.BrownianBridge;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestMultiChainRunner
+{
+  /**
+   * Chains sharing the model, run concurrently, give the same trajectories
+   * as samplers with their own copy of the model.
+   */
+  @Test
+  public void testSharedModel()
+  {
+    final int nVariables = 10;
+    MultiChainRunner runner = new MultiChainRunner();
+    runner.options.nChains = 6;
+    runner.options.nThreads = 3;
+    runner.options.trajectoryLength = 200.0;
+    runner.options.silent = true;
+    BrownianBridge shared = BrownianBridge.regularlySpaced(nVariables);
+    runner.init(shared.localFactorModelSpec());
+    runner.run();
+    
+    for (int chain = 0; chain < runner.options.nChains; chain++)
+    {
+      BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+      LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), new RFSamplerOptions());
+      sampler.initialize(StaticUtils.substream(runner.options.seed, chain));
+      sampler.advanceTo(runner.options.trajectoryLength);
+      for (int i = 0; i < nVariables; i++)
+      {
+        Assert.assertEquals(model.variables.get(i).getValue(), runner.chains.get(chain).getPosition(shared.variables.get(i)), 0.0);
+        // the shared variables are not modified
+        Assert.assertEquals(0.0, shared.variables.get(i).getValue(), 0.0);
+      }
+    }
+  }
+  
+  @Test
+  public void testDiagnostics()
+  {
+    MultiChainRunner runner = new MultiChainRunner();
+    runner.options.nChains = 8;
+    runner.options.trajectoryLength = 5_000.0;
+    runner.options.silent = true;
+    BrownianBridge model = BrownianBridge.regularlySpaced(5);
+    runner.init(model.localFactorModelSpec());
+    runner.run();
+    
+    for (int i = 0; i < model.variables.size(); i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      // 5 Monte Carlo standard errors
+      Assert.assertEquals(0.0, runner.getMean(variable), 5.0 * runner.getMeanStandardError(variable));
+      Assert.assertEquals(model.getMarginalVariance(i), runner.getVariance(variable), 5.0 * runner.getVarianceStandardError(variable));
+      // the usual convergence threshold
+      Assert.assertTrue(runner.getRHat(variable) < 1.01);
+      Assert.assertTrue(runner.getESS(variable) > 100);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.ParallelMode;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.processors.BatchMeansRayProcessor;
+import rejfree.processors.MomentRayProcessor;
+import rejfree.processors.RayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestOptimisticSampler implements RayProcessor
+{
+  private double lastRayEnd = 0.0;
+
+  @Test
+  public void testMarginals()
+  {
+    final int nVariables = 20;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    options.nThreads = 4;
+    options.parallelMode = ParallelMode.OPTIMISTIC;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    final double trajectoryLength = 25_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(trajectoryLength / 50, 50);
+    MomentRayProcessor moments = new MomentRayProcessor();
+    sampler.addRayProcessor(moments);
+    sampler.addRayProcessor(batches);
+    sampler.addRayProcessor(this);
+    sampler.iterate(new Random(1), Integer.MAX_VALUE, trajectoryLength);
+
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < nVariables; i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      Assert.assertEquals(model.getMarginalVariance(i), moments.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+    }
+  }
+
+  @Override
+  public void init(LocalRFSampler sampler) {}
+
+  /**
+   * Committed rays should be processed in time order.
+   */
+  @Override
+  public void processRay(RealVariable var, TrajectoryRay ray, double time, LocalRFSampler sampler)
+  {
+    Assert.assertTrue(time >= lastRayEnd);
+    lastRayEnd = time;
+  }
+}
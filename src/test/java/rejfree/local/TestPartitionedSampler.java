@@ -0,0 +1,70 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.processors.BatchMeansRayProcessor;
+import rejfree.processors.MomentRayProcessor;
+import blang.ProbabilityModel;
+import blang.variables.RealVariable;
+
+
+
+public class TestPartitionedSampler
+{
+  @Test
+  public void testPartition()
+  {
+    final int nVariables = 40;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+    FactorGraphIndex graph = FactorGraphIndex.compile(new ProbabilityModel(model.localFactorModelSpec()));
+    GraphPartition partition = GraphPartition.compile(graph, 4);
+
+    // a chain cut in 4 pieces: one boundary variable per cut
+    Assert.assertEquals(3, partition.nBoundaryVariables());
+
+    // each factor touching an interior variable is in exactly one region
+    int nRegionFactors = 0;
+    for (int [] factors : partition.regionFactors)
+      nRegionFactors += factors.length;
+    int nInteriorFactors = 0;
+    for (int f = 0; f < graph.nFactors(); f++)
+      for (int i = 0; i < graph.factorDegree(f); i++)
+        if (!partition.isBoundaryVariable[graph.factorVariable(f, i)])
+        {
+          nInteriorFactors++;
+          break;
+        }
+    Assert.assertEquals(nInteriorFactors, nRegionFactors);
+  }
+
+  @Test
+  public void testMarginals()
+  {
+    final int nVariables = 20;
+    BrownianBridge model = BrownianBridge.regularlySpaced(nVariables);
+
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.collectRate = 0.0;
+    options.nThreads = 4;
+    options.windowLength = 0.5;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    final double trajectoryLength = 25_000.0;
+    BatchMeansRayProcessor batches = new BatchMeansRayProcessor(trajectoryLength / 50, 50);
+    MomentRayProcessor moments = new MomentRayProcessor();
+    sampler.addRayProcessor(moments);
+    sampler.addRayProcessor(batches);
+    sampler.iterate(new Random(1), Integer.MAX_VALUE, trajectoryLength);
+
+    // 5 Monte Carlo standard errors
+    for (int i = 0; i < nVariables; i++)
+    {
+      final RealVariable variable = model.variables.get(i);
+      Assert.assertEquals(model.getMarginalVariance(i), moments.getVarianceEstimate(variable), 5.0 * batches.getVarianceStandardError(variable));
+    }
+  }
+}
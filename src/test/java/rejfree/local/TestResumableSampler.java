@@ -0,0 +1,113 @@
+package rejfree.local;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.RFSamplerOptions;
+import rejfree.RFSamplerOptions.ParallelMode;
+import rejfree.models.normal.BrownianBridge;
+import rejfree.processors.MomentRayProcessor;
+import blang.ProbabilityModel;
+import blang.processing.Processor;
+import blang.processing.ProcessorContext;
+
+
+
+public class TestResumableSampler
+{
+  /**
+   * Simulating in several steps gives the same trajectory as simulating at
+   * once, and flushing the rays in between does not change the moments.
+   */
+  @Test
+  public void testSteps()
+  {
+    final int nVariables = 20;
+    MomentRayProcessor [] moments = new MomentRayProcessor[2];
+    BrownianBridge [] models = new BrownianBridge[2];
+    LocalRFSampler [] samplers = new LocalRFSampler[2];
+    for (int i = 0; i < 2; i++)
+    {
+      models[i] = BrownianBridge.regularlySpaced(nVariables);
+      samplers[i] = new LocalRFSampler(new ProbabilityModel(models[i].localFactorModelSpec()), new RFSamplerOptions());
+      moments[i] = new MomentRayProcessor();
+      samplers[i].addRayProcessor(moments[i]);
+      samplers[i].initialize(new Random(1));
+    }
+    samplers[0].advanceEvents(40_000);
+    for (int step = 0; step < 4; step++)
+    {
+      samplers[1].advanceEvents(10_000);
+      samplers[1].flushRays();
+    }
+    samplers[0].flushRays();
+
+    Assert.assertEquals(samplers[0].getTrajectoryLength(), samplers[1].getTrajectoryLength(), 0.0);
+    for (int i = 0; i < nVariables; i++)
+    {
+      Assert.assertEquals(models[0].variables.get(i).getValue(), models[1].variables.get(i).getValue(), 0.0);
+      Assert.assertEquals(samplers[0].getRay(models[0].variables.get(i)).velocity_t, samplers[1].getRay(models[1].variables.get(i)).velocity_t, 0.0);
+      Assert.assertEquals(moments[0].getSum(models[0].variables.get(i)), moments[1].getSum(models[1].variables.get(i)), 1e-8);
+    }
+  }
+
+  /**
+   * Same with time limits and collected points: the time of the next point 
+   * is kept across the steps.
+   */
+  @Test
+  public void testTimeSteps()
+  {
+    final int nVariables = 10;
+    BrownianBridge [] models = new BrownianBridge[2];
+    LocalRFSampler [] samplers = new LocalRFSampler[2];
+    final int [] nPoints = new int[2];
+    for (int i = 0; i < 2; i++)
+    {
+      models[i] = BrownianBridge.regularlySpaced(nVariables);
+      RFSamplerOptions options = new RFSamplerOptions();
+      options.collectRate = 1.0;
+      samplers[i] = new LocalRFSampler(new ProbabilityModel(models[i].localFactorModelSpec()), options);
+      final int index = i;
+      samplers[i].addPointProcessor(new Processor()
+      {
+        @Override
+        public void process(ProcessorContext context)
+        {
+          nPoints[index]++;
+        }
+      });
+      samplers[i].initialize(new Random(1));
+    }
+    samplers[0].advanceTo(400.0);
+    for (int step = 1; step <= 8; step++)
+      samplers[1].advanceTo(50.0 * step);
+
+    Assert.assertEquals(nPoints[0], nPoints[1]);
+    Assert.assertTrue(nPoints[0] > 0);
+    for (int i = 0; i < nVariables; i++)
+    {
+      Assert.assertEquals(models[0].variables.get(i).getValue(), models[1].variables.get(i).getValue(), 0.0);
+      Assert.assertEquals(samplers[0].getRay(models[0].variables.get(i)).velocity_t, samplers[1].getRay(models[1].variables.get(i)).velocity_t, 0.0);
+    }
+  }
+
+  @Test
+  public void testAdvanceTo()
+  {
+    BrownianBridge model = BrownianBridge.regularlySpaced(10);
+    RFSamplerOptions options = new RFSamplerOptions();
+    options.nThreads = 2;
+    options.parallelMode = ParallelMode.BATCH;
+    LocalRFSampler sampler = new LocalRFSampler(new ProbabilityModel(model.localFactorModelSpec()), options);
+    sampler.initialize(new Random(1));
+    sampler.advanceTo(1.5);
+    Assert.assertEquals(1.5, sampler.getTrajectoryLength(), 0.0);
+    sampler.advanceFor(2.0);
+    Assert.assertEquals(3.5, sampler.getTrajectoryLength(), 0.0);
+    sampler.iterate(new Random(2), Integer.MAX_VALUE, 1.0);
+    Assert.assertEquals(4.5, sampler.getTrajectoryLength(), 0.0);
+  }
+}
@@ -0,0 +1,78 @@
+package rejfree.models.normal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.local.PrimitiveCollisionContext;
+import blang.variables.RealVariable;
+
+
+
+public class TestNormalFactor
+{
+  /**
+   * Checks the incrementally updated P v against a factor computing it from
+   * scratch, while changing a few velocity coordinates at a time.
+   */
+  @Test
+  public void testVelocityCache()
+  {
+    final int dim = 6;
+    Random rand = new Random(1);
+    DoubleMatrix a = DoubleMatrix.zeros(dim, dim);
+    for (int i = 0; i < a.data.length; i++)
+      a.data[i] = rand.nextGaussian();
+    DoubleMatrix precision = a.mmul(a.transpose()).add(DoubleMatrix.eye(dim));
+
+    List<RealVariable> variables = new ArrayList<>();
+    for (int i = 0; i < dim; i++)
+      variables.add(RealVariable.real());
+    NormalFactor cached = new NormalFactor(precision, variables);
+
+    PrimitiveCollisionContext context = new PrimitiveCollisionContext(dim);
+    for (int i = 0; i < dim; i++)
+      context.velocity[i] = rand.nextGaussian();
+
+    for (int iter = 0; iter < 1000; iter++)
+    {
+      final int nChanges = rand.nextInt(dim);
+      for (int j = 0; j < nChanges; j++)
+        context.velocity[rand.nextInt(dim)] = rand.nextGaussian();
+      for (int i = 0; i < dim; i++)
+        context.position[i] = rand.nextGaussian();
+
+      final long seed = rand.nextLong();
+      context.random = new Random(seed);
+      final double actual = cached.getLowerBoundForCollisionDeltaTime(context);
+      context.random = new Random(seed);
+      final double expected = new NormalFactor(precision, variables).getLowerBoundForCollisionDeltaTime(context);
+      Assert.assertEquals(expected, actual, 1e-10 * Math.max(1.0, expected));
+    }
+  }
+  
+  /**
+   * Checks that scaling the variance by s shifts the log density of a 
+   * rank deficient factor by -(rank/2) log(s), at a point where the 
+   * quadratic form vanishes.
+   */
+  @Test
+  public void testRankDeficientScaling()
+  {
+    List<RealVariable> variables = new ArrayList<>();
+    variables.add(new RealVariable(1.5));
+    variables.add(new RealVariable(1.5));
+    DoubleMatrix pseudoPrecision = new DoubleMatrix(2, 2, new double[]{1.0, -1.0, -1.0, 1.0});
+    RealVariable variance = new RealVariable(1.0);
+    NormalFactor factor = new NormalFactor(pseudoPrecision, variables, 0.0, variance, 1);
+    Assert.assertEquals(0.0, factor.logDensity(), 1e-12);
+    
+    variance.setValue(4.0);
+    factor.hyperParametersChanged();
+    Assert.assertEquals(- 0.5 * Math.log(4.0), factor.logDensity(), 1e-12);
+  }
+}
@@ -0,0 +1,50 @@
+package rejfree.models.normal;
+
+import java.util.Random;
+
+import org.jblas.DoubleMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+
+import rejfree.local.PrimitiveCollisionContext;
+import bayonet.math.NumericalUtils;
+
+
+
+public class TestSparseNormalFactor
+{
+  @Test
+  public void testAgainstDense()
+  {
+    final int dim = 20;
+    BrownianBridge bridge = BrownianBridge.regularlySpaced(dim);
+    SparseNormalFactor sparse = bridge.globalCollisionFactor();
+    NormalFactor dense = new NormalFactor(new DoubleMatrix(bridge.precisionMatrix().toArray()), bridge.variables);
+    Assert.assertEquals(3 * dim - 2, sparse.nNonZeros());
+
+    Random rand = new Random(1);
+    PrimitiveCollisionContext context = new PrimitiveCollisionContext(dim);
+    double [] sparseGradient = new double[dim], denseGradient = new double[dim];
+    for (int iter = 0; iter < 100; iter++)
+    {
+      for (int i = 0; i < dim; i++)
+      {
+        context.position[i] = rand.nextGaussian();
+        context.velocity[i] = rand.nextGaussian();
+        bridge.variables.get(i).setValue(context.position[i]);
+      }
+      Assert.assertEquals(dense.logDensity(), sparse.logDensity(), NumericalUtils.THRESHOLD);
+
+      sparse.gradient(context.position, sparseGradient);
+      dense.gradient(context.position, denseGradient);
+      Assert.assertArrayEquals(denseGradient, sparseGradient, NumericalUtils.THRESHOLD);
+
+      final long seed = rand.nextLong();
+      context.random = new Random(seed);
+      final double sparseTime = sparse.getLowerBoundForCollisionDeltaTime(context);
+      context.random = new Random(seed);
+      final double denseTime = dense.getLowerBoundForCollisionDeltaTime(context);
+      Assert.assertEquals(denseTime, sparseTime, NumericalUtils.THRESHOLD);
+    }
+  }
+}